@@ -26,7 +26,6 @@
 package net.apkc.quary.analyzers;
 
 import java.io.Reader;
-import java.util.Set;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
@@ -47,7 +46,8 @@ import org.apache.lucene.util.Version;
 public class EnglishAnalyzer extends QuaryAnalyzer
 {
 
-    private Set<Object> stopWords;
+    /** The stop set is immutable, so it's built once and shared by all instances and token streams. */
+    private static final CharArraySet STOP_WORDS = CharArraySet.unmodifiableSet(StopFilter.makeStopSet(Version.LUCENE_46, StopWords.ENGLISH_STOP_WORDS));
     private boolean stemming = true;  // Always enabled unless explicitly disabled.
     private boolean filtering = true; // Always enabled unless explicitly disabled.
 
@@ -58,7 +58,6 @@ public class EnglishAnalyzer extends QuaryAnalyzer
 
     private EnglishAnalyzer()
     {
-        stopWords = StopFilter.makeStopSet(Version.LUCENE_46, StopWords.ENGLISH_STOP_WORDS);
     }
 
     @Override
@@ -86,7 +85,7 @@ public class EnglishAnalyzer extends QuaryAnalyzer
     {
         Tokenizer source = new StandardTokenizer(Version.LUCENE_46, reader);
         TokenStream filter = new StandardFilter(Version.LUCENE_46, source); // First filter with a very standard filter/analyzer.
-        filter = new StopFilter(Version.LUCENE_46, filter, new CharArraySet(Version.LUCENE_46, stopWords, false)); // Remove stop words.
+        filter = new StopFilter(Version.LUCENE_46, filter, STOP_WORDS); // Remove stop words.
         filter = stemming ? new EnglishMinimalStemFilter(filter) : filter; // Stem the words.
         filter = filtering ? new ASCIIFoldingFilter(filter) : filter; // Filter the words.
         filter = new LowerCaseFilter(Version.LUCENE_46, filter); // Always to lowercase.
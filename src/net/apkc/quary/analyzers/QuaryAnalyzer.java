@@ -34,49 +34,60 @@ import org.apache.lucene.util.Version;
 public abstract class QuaryAnalyzer extends Analyzer
 {
 
+    /**
+     * Returns the shared analyzer for the given ID.
+     *
+     * <p>
+     * Analyzers are thread-safe and keep their token stream components per thread,
+     * so a single instance per ID is reused by all writes and searches. Unknown IDs
+     * fall back to the default analyzer (ID 0).
+     * </p>
+     *
+     * @param analyzerID The ID of the analyzer, as declared in the definition.
+     *
+     * @return The shared analyzer instance.
+     */
     public static Analyzer getAnalyzer(byte analyzerID)
     {
-        switch (analyzerID) {
-            case 0:
-                return EnglishAnalyzer
-                        .newBuild()
-                        .enableFiltering(true)
-                        .enableStemming(true);
-            case 1:
-                return EnglishAnalyzer
-                        .newBuild()
-                        .enableFiltering(true)
-                        .enableStemming(false);
-            case 2:
-                return EnglishAnalyzer
-                        .newBuild()
-                        .enableFiltering(false)
-                        .enableStemming(false);
-            case 3:
-                return SpanishAnalyzer
-                        .newBuild()
-                        .enableFiltering(true)
-                        .enableStemming(true);
-            case 4:
-                return SpanishAnalyzer
-                        .newBuild()
-                        .enableFiltering(true)
-                        .enableStemming(false);
-            case 5:
-                return SpanishAnalyzer
-                        .newBuild()
-                        .enableFiltering(false)
-                        .enableStemming(false);
-            case 6:
-                return new StandardAnalyzer(Version.LUCENE_46);
-            case 7:
-                return new WhitespaceAnalyzer(Version.LUCENE_46);
-            default:
-                return EnglishAnalyzer
-                        .newBuild()
-                        .enableFiltering(true)
-                        .enableStemming(true);
-        }
+        Analyzer[] analyzers = Registry.ANALYZERS;
+        return (analyzerID >= 0 && analyzerID < analyzers.length) ? analyzers[analyzerID] : analyzers[0];
+    }
+
+    /**
+     * Holder of the shared analyzer instances. It's initialized the first time
+     * an analyzer is requested.
+     */
+    private static final class Registry
+    {
+
+        private static final Analyzer[] ANALYZERS = new Analyzer[]{
+            EnglishAnalyzer
+            .newBuild()
+            .enableFiltering(true)
+            .enableStemming(true),
+            EnglishAnalyzer
+            .newBuild()
+            .enableFiltering(true)
+            .enableStemming(false),
+            EnglishAnalyzer
+            .newBuild()
+            .enableFiltering(false)
+            .enableStemming(false),
+            SpanishAnalyzer
+            .newBuild()
+            .enableFiltering(true)
+            .enableStemming(true),
+            SpanishAnalyzer
+            .newBuild()
+            .enableFiltering(true)
+            .enableStemming(false),
+            SpanishAnalyzer
+            .newBuild()
+            .enableFiltering(false)
+            .enableStemming(false),
+            new StandardAnalyzer(Version.LUCENE_46),
+            new WhitespaceAnalyzer(Version.LUCENE_46)
+        };
     }
 
     /**
@@ -37,7 +37,7 @@ import org.apache.hadoop.ipc.VersionedProtocol;
 public interface BrainInterface extends VersionedProtocol
 {
 
-    public static long versionID = 1L;
+    public static long versionID = 2L;
 
     /**
      * Returns the version of the node.
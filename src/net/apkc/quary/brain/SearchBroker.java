@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.brain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.exceptions.ZeroNodesException;
+import net.apkc.quary.node.Node;
+import net.apkc.quary.node.NodeConnection;
+import net.apkc.quary.node.NodeHandler;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.ResultSet;
+import net.apkc.quary.util.QuaryConfiguration;
+import net.apkc.quary.util.TaskExecutor;
+import net.apkc.quary.util.Timer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * The broker sends a search to every node of the hive and merges the result
+ * sets of all of them into one.
+ *
+ * <p>
+ * Documents are written to random nodes, so every node holds a shard of each
+ * index. Each node is searched for the first (endOffset) hits with its ID as
+ * shard ID, and the merged hits are cut into the requested page. With a cursor
+ * every node returns one page after it, and the first page of the merge is
+ * kept. Batches of searches are sent to each node in one call.
+ * </p>
+ *
+ * <p>
+ * The lease of a search is the list of the leases of every shard, separated by
+ * commas, each one in the form shardID=leaseID. Shards are keyed by the ID of
+ * their node, so cursors and leases still match them when nodes join or leave
+ * the hive.
+ * </p>
+ *
+ * <p>
+ * Searches with a timeout send the time left to every node, which stop
+ * collecting when it runs out. Nodes that haven't answered shortly after the
+ * deadline are dropped, and the merged result set is marked as partial.
+ * </p>
+ *
+ * <p>
+ * The calls to the nodes run in a {@link TaskExecutor}, in a pool of threads
+ * or in virtual threads, as configured for the brain. Either way no more than
+ * a few calls are sent to the same node at once.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+public final class SearchBroker
+{
+
+    private static final Logger LOG = Logger.getLogger(SearchBroker.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final SearchBroker INSTANCE = new SearchBroker();
+    private final TaskExecutor SHARDS = TaskExecutor.newBuild()
+            .setName("QUARY:BROKER")
+            .setMode(CONF.get("brain.executor.mode", TaskExecutor.POOL))
+            .setThreads(CONF.getInt("brain.broker.threads", 16))
+            .setPermits(CONF.getInt("brain.executor.permitspernode", 64))
+            .start();
+    private final long DEADLINE_GRACE = CONF.getLong("brain.broker.deadline.grace", 50L);
+
+    /**
+     * Private default constructor.
+     */
+    private SearchBroker()
+    {
+    }
+
+    /**
+     * Returns the only instance of this class.
+     *
+     * @return The only instance of class.
+     */
+    public static SearchBroker getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Searches all the nodes of the hive and merges their results.
+     *
+     * @param def    The definition of the index to search.
+     * @param params The parameters of the search.
+     *
+     * @return The merged result set.
+     */
+    public ResultSet search(IndexDefinition def, Parameters params)
+    {
+        return searchBatch(def, new Parameters[]{params})[0];
+    }
+
+    /**
+     * Makes several searches on all the nodes of the hive, with one call per
+     * node, and merges the results of each search.
+     *
+     * @param def   The definition of the index to search.
+     * @param batch The parameters of each search.
+     *
+     * @return The merged result sets, in the same order as the parameters.
+     */
+    public ResultSet[] searchBatch(IndexDefinition def, Parameters[] batch)
+    {
+        Timer timer = new Timer();
+        timer.starTimer();
+        long received = System.currentTimeMillis();
+        ResultSet[] results = new ResultSet[batch.length];
+
+        Node[] nodes;
+        try {
+            nodes = NodeHandler.getInstance().getNodes();
+        }
+        catch (ZeroNodesException e) {
+            timer.endTimer();
+            for (int j = 0; j < batch.length; j++) {
+                results[j] = ResultSet.newBuild()
+                        .setErrorMessage("No nodes available!")
+                        .setSearchTime(timer.computeOperationTime(Timer.Time.SECOND));
+            }
+
+            return results;
+        }
+
+        // The shards are waited for until the last deadline of the batch, or forever if a
+        // search has none.
+        long deadline = 0L;
+        for (Parameters params : batch) {
+            if (params.getTimeout() <= 0) {
+                deadline = Long.MAX_VALUE;
+                break;
+            }
+            deadline = Math.max(deadline, received + params.getTimeout());
+        }
+
+        List<Future<ResultSet[]>> pending = new ArrayList<>(nodes.length);
+        for (int k = 0; k < nodes.length; k++) {
+            final Node node = nodes[k];
+            final Parameters[] shardBatch = new Parameters[batch.length];
+            for (int j = 0; j < batch.length; j++) {
+                shardBatch[j] = batch[j].duplicate()
+                        .setShardID(node.getNodeID())
+                        .setLeaseID(getShardLease(batch[j].getLeaseID(), node.getNodeID()));
+                if (batch[j].getSearchAfter() == null) {
+                    // Every shard must return the hits up to the end of the page.
+                    shardBatch[j].setStartOffset("0");
+                }
+                if (batch[j].getTimeout() > 0) {
+                    // Nodes get the time left.
+                    long left = received + batch[j].getTimeout() - System.currentTimeMillis();
+                    shardBatch[j].setTimeout(String.valueOf(Math.max(left, 1L)));
+                }
+            }
+
+            pending.add(SHARDS.submit(node.toString(), () -> NodeConnection.getSearchConnection(node).searchBatch(CONF, def, node, shardBatch)));
+        }
+
+        ResultSet[][] shards = new ResultSet[nodes.length][];
+        StringBuilder errors = new StringBuilder();
+        for (int k = 0; k < nodes.length; k++) {
+            try {
+                if (deadline == Long.MAX_VALUE) {
+                    shards[k] = pending.get(k).get();
+                }
+                else {
+                    long left = deadline + DEADLINE_GRACE - System.currentTimeMillis();
+                    shards[k] = pending.get(k).get(Math.max(left, 0L), TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (TimeoutException e) {
+                // Don't wait for shards that missed the deadline. Their results are left out.
+                pending.get(k).cancel(true);
+                errors.append("Node ").append(nodes[k].getNodeID()).append(" timed out. ");
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.append("Search interrupted. ");
+            }
+            catch (ExecutionException e) {
+                LOG.error("Error searching node *" + nodes[k].toString() + "*.", e.getCause());
+                errors.append("Node ").append(nodes[k].getNodeID()).append(" failed. ");
+            }
+        }
+
+        timer.endTimer();
+        for (int j = 0; j < batch.length; j++) {
+            Parameters params = batch[j];
+            List<ResultSet> shardResults = new ArrayList<>(nodes.length);
+            StringBuilder leaseID = new StringBuilder();
+            for (int k = 0; k < nodes.length; k++) {
+                ResultSet shard = shards[k] != null ? shards[k][j] : null;
+                shardResults.add(shard);
+                if (shard != null && !shard.getLeaseID().isEmpty()) {
+                    leaseID.append(leaseID.length() > 0 ? "," : "").append(nodes[k].getNodeID()).append('=').append(shard.getLeaseID());
+                }
+            }
+
+            int pageSize = params.getEndOffset() - params.getStartOffset();
+            ResultSet merged = ResultSet.merge(shardResults, params.getSearchAfter() != null ? 0 : params.getStartOffset(), pageSize);
+            if (errors.length() > 0) {
+                merged.setErrorMessage((errors.toString() + merged.getErrorMessage()).trim());
+            }
+            if (params.getOpenLease() || !params.getLeaseID().isEmpty()) {
+                merged.setLeaseID(leaseID.toString());
+            }
+
+            results[j] = merged.setSearchTime(timer.computeOperationTime(Timer.Time.SECOND));
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns the lease of a shard from the lease of a search.
+     *
+     * @param leaseID The lease of the search. i.e. shardA=leaseA,shardB=leaseB
+     * @param shardID The ID of the shard.
+     *
+     * @return The lease of the shard, or an empty string if it has none.
+     */
+    private static String getShardLease(String leaseID, String shardID)
+    {
+        for (String lease : leaseID.split(",")) {
+            int separator = lease.indexOf('=');
+            if (separator > 0 && lease.substring(0, separator).equals(shardID)) {
+                return lease.substring(separator + 1);
+            }
+        }
+
+        return "";
+    }
+}
@@ -31,6 +31,7 @@ import net.apkc.quary.config.XMLBuilder;
 import net.apkc.quary.definitions.index.IndexDefinitionDB;
 import net.apkc.quary.exceptions.ServerNotConfiguredException;
 import net.apkc.quary.node.NodeHandler;
+import net.apkc.quary.reactor.Gateway;
 import net.apkc.quary.reactor.Reactor;
 import net.apkc.quary.util.Constants;
 import net.apkc.quary.util.QuaryConfiguration;
@@ -68,6 +69,25 @@ public class Start
             }
         }.start();
 
+        new Thread("QUARY:GATEWAY:START")
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    final Integer GATEWAY_PORT = CONF.getInt("gateway.port", 14997);
+
+                    System.out.printf("Starting Gateway...\n");
+                    System.out.printf("\tPort: %d\n", GATEWAY_PORT);
+
+                    Gateway.newBuild().configure(GATEWAY_PORT).startGateway();
+                }
+                catch (IOException | ServerNotConfiguredException e) {
+                    LOG.fatal("Error starting *Gateway*.", e);
+                }
+            }
+        }.start();
+
         new Thread("QUARY:BRAIN:START")
         {
             @Override
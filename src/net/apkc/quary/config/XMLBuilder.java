@@ -43,7 +43,6 @@ public final class XMLBuilder
 {
 
     private static final Logger LOG = Logger.getLogger(XMLBuilder.class.getName());
-    private static XMLProcessor processor = XMLProcessor.getInstance();
 
     private XMLBuilder()
     {
@@ -66,7 +65,7 @@ public final class XMLBuilder
         timer.starTimer();
 
         // Re-start the parser and point to root node.
-        processor = processor.configure(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), null, "root");
+        XMLProcessor processor = XMLProcessor.getInstance().configure(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), null, "root");
 
         try {
             // Look in the IndexDefinitionDB for a match. For now use the *definitionID* to look for a match.
@@ -77,8 +76,8 @@ public final class XMLBuilder
 
             timer.endTimer();
 
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Tiempo Unmarshall: " + timer.computeOperationTime(Timer.Time.MILLISECOND) + "ms");
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Tiempo Unmarshall: " + timer.computeOperationTime(Timer.Time.MILLISECOND) + "ms");
             }
 
             return doc;
@@ -102,14 +101,16 @@ public final class XMLBuilder
         timer.starTimer();
 
         // Re-start the parser and point to root node.
-        processor = processor.configure(xml, XMLBuilder.class.getResourceAsStream(Constants.XSD_SCHEMA_FILE.getStringConstant()), "fields");
+        XMLProcessor processor = XMLProcessor.getInstance().configure(xml, XMLBuilder.class.getResourceAsStream(Constants.XSD_SCHEMA_FILE.getStringConstant()), "fields");
 
         try {
             IndexDefinition definition = IndexDefinition
                     .newBuild()
                     .setDefinitionID(processor.getTagAttribute("fields", "fields", "definitionID"))
                     .setScoreCoeficient(processor.getTagAttribute("fields", "fields", "scoreCoeficient"))
-                    .setFields(processor.getFields());
+                    .setFields(processor.getFields())
+                    .setWarmQueries(processor.getWarmQueries())
+                    .migrate();
 
             timer.endTimer();
 
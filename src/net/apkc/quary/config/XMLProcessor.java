@@ -65,16 +65,44 @@ class XMLProcessor
 {
 
     private static final Logger LOG = Logger.getLogger(XMLProcessor.class.getName());
-    private static final XMLProcessor _INSTANCE = new XMLProcessor();
+    /** Each thread has its own processor, since it keeps the document being parsed. */
+    private static final ThreadLocal<XMLProcessor> _INSTANCE = ThreadLocal.withInitial(XMLProcessor::new);
+    private static final ErrorHandler ERROR_HANDLER = new ErrorHandler()
+    {
+        @Override
+        public void warning(SAXParseException e) throws SAXException
+        {
+            LOG.warn("DOM Warning: " + e.toString(), e);
+        }
+
+        @Override
+        public void error(SAXParseException e) throws SAXException
+        {
+            LOG.error("DOM Error: " + e.toString(), e);
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException
+        {
+            LOG.fatal("DOM Fatal: " + e.toString(), e);
+            throw e;
+        }
+    };
     private final byte WALKER = DOMWalkerFactory.STACK_DOM_WALKER;
     private final boolean STRICT_MODE = false;
     private Processor processor = Processor.newBuild();
+    private DocumentBuilder builder = null; // Reused for the documents without schema.
     private Document doc;
     private NodeList nodes;
 
+    /**
+     * Returns the instance of this class of the current thread.
+     *
+     * @return The instance of the current thread.
+     */
     static XMLProcessor getInstance()
     {
-        return _INSTANCE;
+        return _INSTANCE.get();
     }
 
     private XMLProcessor()
@@ -93,46 +121,19 @@ class XMLProcessor
     XMLProcessor configure(InputStream xmlStream, InputStream schemaStream, String rootNode)
     {
         try {
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-
-            if (schemaStream != null) {
-                // Validate the XML file againts our default schema.
-                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                Schema schema = factory.newSchema(new StreamSource(schemaStream));
-                dbFactory.setSchema(schema);
-            }
-
-            // Configure to Focus on Content.
-            dbFactory.setValidating(false);
-            dbFactory.setNamespaceAware(true);
-            dbFactory.setCoalescing(true);
-            dbFactory.setExpandEntityReferences(true);
-            dbFactory.setIgnoringComments(true);
-            dbFactory.setIgnoringElementContentWhitespace(true);
-
-            // Create a DOM document.
-            DocumentBuilder builder = dbFactory.newDocumentBuilder();
-            builder.setErrorHandler(new ErrorHandler()
-            {
-                @Override
-                public void warning(SAXParseException e) throws SAXException
-                {
-                    LOG.warn("DOM Warning: " + e.toString(), e);
-                }
-
-                @Override
-                public void error(SAXParseException e) throws SAXException
-                {
-                    LOG.error("DOM Error: " + e.toString(), e);
+            // Documents without schema are parsed by the same builder, which is only reset.
+            DocumentBuilder builder;
+            if (schemaStream == null) {
+                if (this.builder == null) {
+                    this.builder = newBuilder(null);
                 }
-
-                @Override
-                public void fatalError(SAXParseException e) throws SAXException
-                {
-                    LOG.fatal("DOM Fatal: " + e.toString(), e);
-                    throw e;
-                }
-            });
+                builder = this.builder;
+                builder.reset();
+                builder.setErrorHandler(ERROR_HANDLER);
+            }
+            else {
+                builder = newBuilder(schemaStream);
+            }
 
             doc = builder.parse(new InputSource(xmlStream)); // Create document
             doc.getDocumentElement().normalize(); // Configure
@@ -145,6 +146,42 @@ class XMLProcessor
         return this;
     }
 
+    /**
+     * Creates a DOM builder.
+     *
+     * @param schemaStream The schema used to validate the XML, if null skip.
+     *
+     * @return The builder.
+     *
+     * @throws ParserConfigurationException If the builder can't be created.
+     * @throws SAXException                 If the schema can't be parsed.
+     */
+    private static DocumentBuilder newBuilder(InputStream schemaStream) throws ParserConfigurationException, SAXException
+    {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+
+        if (schemaStream != null) {
+            // Validate the XML file againts our default schema.
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            Schema schema = factory.newSchema(new StreamSource(schemaStream));
+            dbFactory.setSchema(schema);
+        }
+
+        // Configure to Focus on Content.
+        dbFactory.setValidating(false);
+        dbFactory.setNamespaceAware(true);
+        dbFactory.setCoalescing(true);
+        dbFactory.setExpandEntityReferences(true);
+        dbFactory.setIgnoringComments(true);
+        dbFactory.setIgnoringElementContentWhitespace(true);
+
+        // Create a DOM document.
+        DocumentBuilder builder = dbFactory.newDocumentBuilder();
+        builder.setErrorHandler(ERROR_HANDLER);
+
+        return builder;
+    }
+
     /**
      * Method for extracting all declared fields inside a definition document.
      *
@@ -241,6 +278,31 @@ class XMLProcessor
         return list;
     }
 
+    /**
+     * Method for extracting all warm queries declared inside a definition document.
+     *
+     * @return A list containing the query strings.
+     *
+     * @throws ParserNotInitializedException If the processor could not be started.
+     */
+    List<String> getWarmQueries() throws ParserNotInitializedException
+    {
+        if (nodes == null) {
+            throw new ParserNotInitializedException("Parser was not started!");
+        }
+
+        List<String> list = new ArrayList<>();
+        NodeList queries = doc.getElementsByTagName("warmquery");
+        for (int k = 0; k < queries.getLength(); k++) {
+            String query = queries.item(k).getTextContent();
+            if (query != null && !query.trim().isEmpty()) {
+                list.add(query.trim());
+            }
+        }
+
+        return list;
+    }
+
     QuaryDocument buildQuaryDocument(IndexDefinition definition) throws ParserNotInitializedException
     {
         if (nodes == null) {
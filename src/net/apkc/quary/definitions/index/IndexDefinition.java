@@ -25,7 +25,9 @@
  */
 package net.apkc.quary.definitions.index;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
@@ -33,14 +35,35 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.Writable;
 
 public final class IndexDefinition extends Object implements Comparable<IndexDefinition>, Externalizable, Writable
 {
 
+    /** The UID computed for the first release, kept so stored definitions can still be read. */
+    private static final long serialVersionUID = -7448098388824590146L;
     private String definitionID = "";
     private float scoreCoeficient = .0f;
     private List<IndexDefinitionField> fields = new ArrayList<>();
+    private List<String> warmQueries = new ArrayList<>();
+    private transient long version = 0L; // Computed on demand. Zero means not computed.
+    /**
+     * Written before the serialized definition, followed by the format version. It
+     * can't be the length of the ID written first by the legacy format, which had
+     * no version.
+     */
+    private static final int FORMAT_MARKER = 0xFFFF;
+    /** Version 1 added the warm queries. */
+    private static final byte FORMAT_VERSION = 1;
+    /** The string fields with the index time at different resolutions, replaced by the numeric "indextime" field. */
+    public static final String[] LEGACY_TIME_FIELDS = {"itsecond", "itminute", "ithour", "itday", "itmonth", "ityear"};
+    /** The fields with the gravity computed at index time, replaced by the gravity computed at query time. */
+    public static final String[] LEGACY_GRAVITY_FIELDS = {"gravity", "boostwithgravity"};
+    /** The fields that can be aggregated, which need SORTED doc values. */
+    public static final String[] FACET_FIELDS = {"filetype", "lang", "host", "domain"};
 
     public IndexDefinition()
     {
@@ -59,6 +82,7 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
         }
 
         definitionID = p;
+        version = 0L;
         return this;
     }
 
@@ -71,6 +95,7 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
 
         try {
             scoreCoeficient = Float.parseFloat(p);
+            version = 0L;
         }
         catch (NumberFormatException e) {
             // TODO: Do something
@@ -82,6 +107,14 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
     public IndexDefinition setFields(List<IndexDefinitionField> fields)
     {
         this.fields = fields;
+        version = 0L;
+        return this;
+    }
+
+    public IndexDefinition setWarmQueries(List<String> warmQueries)
+    {
+        this.warmQueries = warmQueries;
+        version = 0L;
         return this;
     }
 
@@ -96,9 +129,102 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
         }
 
         fields.add(field);
+        version = 0L;
         return this;
     }
 
+    /**
+     * Migrates a definition written for an older version of Quary. Each step only
+     * changes the fields that haven't been migrated yet, so migrating a definition
+     * twice has no effect.
+     *
+     * @return This instance.
+     */
+    public IndexDefinition migrate()
+    {
+        removeLegacyFields();
+        for (IndexDefinitionField f : fields) {
+            migrateIndexTime(f);
+            migrateBoost(f);
+            migrateDigest(f);
+            migrateFacet(f);
+        }
+        version = 0L;
+
+        return this;
+    }
+
+    /**
+     * Removes the legacy "it*" fields, which held the index time as strings at
+     * different resolutions, and the "gravity" and "boostwithgravity" fields,
+     * since gravity is now computed at query time from the doc values.
+     */
+    private void removeLegacyFields()
+    {
+        fields.removeIf((f) -> ArrayUtils.contains(LEGACY_TIME_FIELDS, f.getFieldName()) || ArrayUtils.contains(LEGACY_GRAVITY_FIELDS, f.getFieldName()));
+    }
+
+    /**
+     * The "indextime" field is indexed as a trie-encoded LONG with NUMERIC doc
+     * values. Existing indexes don't need to be rebuilt, since date range filters
+     * fall back to the legacy fields on segments written before the migration.
+     *
+     * @param f The field.
+     */
+    private static void migrateIndexTime(IndexDefinitionField f)
+    {
+        if (f.getFieldName().equals("indextime") && f.getNumericType() == null) {
+            setNumeric(f, "LONG");
+        }
+    }
+
+    /**
+     * The "boost" field is indexed as a FLOAT with NUMERIC doc values, so gravity
+     * can be applied to it at query time.
+     *
+     * @param f The field.
+     */
+    private static void migrateBoost(IndexDefinitionField f)
+    {
+        if (f.getFieldName().equals("boost") && f.getNumericType() == null) {
+            setNumeric(f, "FLOAT");
+        }
+    }
+
+    /**
+     * The "digest" field is indexed as a LONG with NUMERIC doc values, so
+     * near-duplicates can be collapsed while collecting the hits.
+     *
+     * @param f The field.
+     */
+    private static void migrateDigest(IndexDefinitionField f)
+    {
+        if (f.getFieldName().equals("digest") && f.getNumericType() == null) {
+            setNumeric(f, "LONG");
+        }
+    }
+
+    /**
+     * The fields in {@link #FACET_FIELDS} get SORTED doc values, so they can be
+     * aggregated over all the matching documents without loading stored fields.
+     *
+     * @param f The field.
+     */
+    private static void migrateFacet(IndexDefinitionField f)
+    {
+        if (ArrayUtils.contains(FACET_FIELDS, f.getFieldName()) && f.getDocValueType() == null) {
+            f.setDocValueType("SORTED");
+        }
+    }
+
+    private static void setNumeric(IndexDefinitionField f, String numericType)
+    {
+        f.setNumericType(numericType)
+                .setDocValueType("NUMERIC")
+                .setIndexOptions("DOCS_ONLY")
+                .addFieldProperty(IndexDefinitionField.OptionID.OMIT_NORMS, true);
+    }
+
     public String getDefinitionID()
     {
         return definitionID;
@@ -114,6 +240,59 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
         return fields.toArray(new IndexDefinitionField[0]);
     }
 
+    /**
+     * Returns the fields summaries can be made from, which are the fields that
+     * are stored and have term vectors with offsets.
+     *
+     * @return The names of the fields, in declaration order.
+     */
+    public String[] getSummaryFields()
+    {
+        return fields
+                .stream()
+                .filter((f) -> f.getFieldProperty(IndexDefinitionField.OptionID.STORED)
+                        && f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTORS)
+                        && f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_OFFSETS))
+                .map(IndexDefinitionField::getFieldName)
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Returns the queries declared in the definition that should be used to warm
+     * new searchers before they are put into service.
+     *
+     * @return The list of warm queries.
+     */
+    public List<String> getWarmQueries()
+    {
+        return warmQueries;
+    }
+
+    /**
+     * Returns a fingerprint of the definition, computed from all its declared
+     * properties. Two definitions with the same ID but different fields, analyzers
+     * or boosts will have different versions, so anything cached per definition
+     * can be keyed by it.
+     *
+     * @return The version of this definition.
+     */
+    public long getVersion()
+    {
+        if (version == 0L) {
+            try {
+                DataOutputBuffer buffer = new DataOutputBuffer();
+                internalWrite(buffer);
+                version = MD5Hash.digest(buffer.getData(), 0, buffer.getLength()).halfDigest();
+            }
+            catch (IOException e) {
+                // Can't happen, it's an in-memory buffer.
+                version = definitionID.hashCode();
+            }
+        }
+
+        return version;
+    }
+
     @Override
     public int compareTo(IndexDefinition o)
     {
@@ -146,17 +325,31 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
 
     private void internalWrite(DataOutput out) throws IOException
     {
+        out.writeShort(FORMAT_MARKER);
+        out.writeByte(FORMAT_VERSION);
         out.writeUTF(definitionID);
         out.writeFloat(scoreCoeficient);
         out.writeInt(fields.size());
         for (IndexDefinitionField f : fields) {
             f.write(out);
         }
+        out.writeInt(warmQueries.size());
+        for (String q : warmQueries) {
+            out.writeUTF(q);
+        }
     }
 
     private void internalRead(DataInput in) throws IOException
     {
-        definitionID = in.readUTF();
+        int head = in.readUnsignedShort();
+        byte format = 0;
+        if (head == FORMAT_MARKER) {
+            format = in.readByte();
+            definitionID = in.readUTF();
+        }
+        else {
+            definitionID = readLegacyUTF(in, head);
+        }
         scoreCoeficient = in.readFloat();
         int fieldsLength = in.readInt();
         for (int k = 0; k < fieldsLength; k++) {
@@ -164,5 +357,32 @@ public final class IndexDefinition extends Object implements Comparable<IndexDef
             f.readFields(in);
             fields.add(f);
         }
+        if (format >= 1) {
+            int warmQueriesLength = in.readInt();
+            for (int k = 0; k < warmQueriesLength; k++) {
+                warmQueries.add(in.readUTF());
+            }
+        }
+        version = 0L;
+    }
+
+    /**
+     * Reads a string written with writeUTF() whose length has already been read.
+     *
+     * @param in     The input.
+     * @param length The length in bytes of the string.
+     *
+     * @return The string.
+     *
+     * @throws IOException If the string can't be read.
+     */
+    private static String readLegacyUTF(DataInput in, int length) throws IOException
+    {
+        byte[] bytes = new byte[length + 2];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        in.readFully(bytes, 2, length);
+
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(bytes)));
     }
 }
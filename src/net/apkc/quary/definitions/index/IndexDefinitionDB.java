@@ -101,6 +101,10 @@ public final class IndexDefinitionDB
         finally {
             if (data != null) {
                 DEFINITIONS = SerializationUtils.<TreeMap<String, IndexDefinition>>castObject(data);
+                // Definitions stored by older versions are migrated as they are loaded.
+                DEFINITIONS.values().stream().forEach((IndexDefinition def) -> {
+                    def.migrate();
+                });
             }
             else {
                 DEFINITIONS = new TreeMap<>();
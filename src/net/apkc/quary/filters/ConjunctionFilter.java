@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.filters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Filter that only accepts the documents accepted by all its filters.
+ *
+ * <p>
+ * Unlike a ChainedFilter it doesn't build a new bitset per segment and query.
+ * The iterators of the filters are ordered by cost, the cheapest (sparsest) one
+ * leads and the others are advanced to its documents, so the work is bounded by
+ * the most selective filter. Combined with cached filters it costs nothing but the
+ * iteration itself.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class ConjunctionFilter extends Filter
+{
+
+    private final Filter[] filters;
+
+    public ConjunctionFilter(List<Filter> filters)
+    {
+        this.filters = filters.toArray(new Filter[filters.size()]);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException
+    {
+        final DocIdSet[] sets = new DocIdSet[filters.length];
+        for (int k = 0; k < filters.length; k++) {
+            // Deleted documents only need to be removed once, the conjunction does the rest.
+            sets[k] = filters[k].getDocIdSet(context, k == 0 ? acceptDocs : null);
+            if (sets[k] == null) {
+                return null; // No document matches in this segment.
+            }
+        }
+
+        return new DocIdSet()
+        {
+            @Override
+            public DocIdSetIterator iterator() throws IOException
+            {
+                DocIdSetIterator[] iterators = new DocIdSetIterator[sets.length];
+                for (int k = 0; k < sets.length; k++) {
+                    iterators[k] = sets[k].iterator();
+                    if (iterators[k] == null) {
+                        return null;
+                    }
+                }
+
+                return new ConjunctionIterator(iterators);
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConjunctionFilter(" + Arrays.toString(filters) + ")";
+    }
+
+    /**
+     * Leap-frog iterator over the intersection of several iterators.
+     */
+    private static final class ConjunctionIterator extends DocIdSetIterator
+    {
+
+        private final DocIdSetIterator[] iterators;
+        private final DocIdSetIterator lead;
+        private int doc = -1;
+
+        private ConjunctionIterator(DocIdSetIterator[] iterators)
+        {
+            Arrays.sort(iterators, Comparator.comparingLong(DocIdSetIterator::cost));
+            this.iterators = iterators;
+            this.lead = iterators[0];
+        }
+
+        @Override
+        public int docID()
+        {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException
+        {
+            return doNext(lead.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException
+        {
+            return doNext(lead.advance(target));
+        }
+
+        @Override
+        public long cost()
+        {
+            return lead.cost();
+        }
+
+        private int doNext(int target) throws IOException
+        {
+            outerLoop:
+            while (target != NO_MORE_DOCS) {
+                for (int k = 1; k < iterators.length; k++) {
+                    DocIdSetIterator other = iterators[k];
+                    if (other.docID() < target) {
+                        int next = other.advance(target);
+                        if (next > target) {
+                            // Miss. Move the lead to the next candidate and start over.
+                            target = lead.advance(next);
+                            continue outerLoop;
+                        }
+                    }
+                }
+
+                return doc = target;
+            }
+
+            return doc = NO_MORE_DOCS;
+        }
+    }
+}
@@ -28,6 +28,7 @@ package net.apkc.quary.filters;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import org.apache.lucene.document.DateTools;
 
 /**
  * Filter that implements a RangeTerm query.
@@ -48,6 +49,80 @@ public class DateRangeFilter implements QuaryFilter
     private int dateRange = 1;
     private int timeFactor = 60;
 
+    /**
+     * Returns the length in milliseconds of a date range unit.
+     *
+     * @param dateRange The date range. i.e. DateRangeFilter.SECOND_RANGE
+     *
+     * @return The length of the unit in milliseconds.
+     */
+    public static long getUnitMillis(int dateRange)
+    {
+        switch (dateRange) {
+            case MINUTE_RANGE:
+                return 60000L;
+            case HOUR_RANGE:
+                return 3600000L;
+            case DAY_RANGE:
+                return 86400000L;
+            case MONTH_RANGE:
+                return 2592000000L;
+            case YEAR_RANGE:
+                return 31104000000L;
+            default:
+                return 1000L;
+        }
+    }
+
+    /**
+     * Returns the resolution to which the bounds of a date range are rounded.
+     *
+     * @param dateRange The date range. i.e. DateRangeFilter.SECOND_RANGE
+     *
+     * @return The resolution, or NULL if the date range is unknown.
+     */
+    public static DateTools.Resolution getResolution(int dateRange)
+    {
+        switch (dateRange) {
+            case SECOND_RANGE:
+                return DateTools.Resolution.SECOND;
+            case MINUTE_RANGE:
+                return DateTools.Resolution.MINUTE;
+            case HOUR_RANGE:
+                return DateTools.Resolution.HOUR;
+            case DAY_RANGE:
+                return DateTools.Resolution.DAY;
+            case MONTH_RANGE:
+                return DateTools.Resolution.MONTH;
+            case YEAR_RANGE:
+                return DateTools.Resolution.YEAR;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the lower bound of a date range, the time N units before now
+     * rounded to the resolution of the range. Months and years are rounded on
+     * the calendar, so the bound only changes when the month or year does.
+     *
+     * @param dateRange  The date range. i.e. DateRangeFilter.SECOND_RANGE
+     * @param timeFactor The number of units.
+     * @param now        The current time in milliseconds.
+     *
+     * @return The lower bound in milliseconds, or NOW if the date range is
+     *         unknown.
+     */
+    public static long getLowerTimestamp(int dateRange, int timeFactor, long now)
+    {
+        DateTools.Resolution resolution = getResolution(dateRange);
+        if (resolution == null) {
+            return now;
+        }
+
+        return DateTools.round(now - (getUnitMillis(dateRange) * timeFactor), resolution);
+    }
+
     @Override
     public void setDateRange(int dateRange)
     {
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.filters;
+
+import java.io.IOException;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Filter for fields whose encoding changed between versions of a definition.
+ *
+ * <p>
+ * Segments written with the current encoding are filtered with the current
+ * filter, segments written before the migration with the legacy filter, and
+ * segments that mix both (after a merge) with the union of the two. The current
+ * encoding is detected by the doc values of the field, which legacy segments
+ * don't have.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class FallbackFilter extends Filter
+{
+
+    private final Filter filter;
+    private final String field;
+    private final Filter legacyFilter;
+    private final String legacyField;
+
+    /**
+     * Creates a new fallback filter.
+     *
+     * @param filter       The filter for the current encoding.
+     * @param field        The field with the current encoding.
+     * @param legacyFilter The filter for the legacy encoding.
+     * @param legacyField  The field with the legacy encoding.
+     */
+    public FallbackFilter(Filter filter, String field, Filter legacyFilter, String legacyField)
+    {
+        this.filter = filter;
+        this.field = field;
+        this.legacyFilter = legacyFilter;
+        this.legacyField = legacyField;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException
+    {
+        FieldInfos infos = context.reader().getFieldInfos();
+        FieldInfo current = infos.fieldInfo(field);
+        boolean hasCurrent = current != null && current.hasDocValues();
+        boolean hasLegacy = infos.fieldInfo(legacyField) != null;
+
+        if (!hasLegacy) {
+            return filter.getDocIdSet(context, acceptDocs);
+        }
+        if (!hasCurrent) {
+            return legacyFilter.getDocIdSet(context, acceptDocs);
+        }
+
+        // Mixed segment.
+        FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+        or(bits, filter.getDocIdSet(context, acceptDocs));
+        or(bits, legacyFilter.getDocIdSet(context, acceptDocs));
+
+        return bits;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FallbackFilter(" + filter + ", " + legacyFilter + ")";
+    }
+
+    private void or(FixedBitSet bits, DocIdSet set) throws IOException
+    {
+        if (set != null) {
+            DocIdSetIterator iterator = set.iterator();
+            if (iterator != null) {
+                bits.or(iterator);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.apkc.quary.filters.DateRangeFilter;
+import net.apkc.quary.reactor.Aggregations;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Collector that computes aggregations over all the matching documents, while
+ * passing them on to another collector.
+ *
+ * <p>
+ * Term counts are kept per segment by ordinal of the field's SortedDocValues,
+ * and resolved to terms once per segment, so the cost per hit is an array
+ * increment. The date histogram reads the "indextime" NumericDocValues. No
+ * stored fields are loaded. Segments without doc values for a field don't
+ * contribute to its aggregation.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class AggregatingCollector extends Collector
+{
+
+    private final Collector delegate;
+    private final String[] fields;
+    private final int histogramUnit;
+    private final Aggregations aggregations;
+    // Per segment state.
+    private final SortedDocValues[] values;
+    private final int[][] counts;
+    private NumericDocValues indexTime;
+    private final Map<Long, Integer> histogram = new HashMap<>();
+
+    /**
+     * Creates a new collector.
+     *
+     * @param delegate      The collector that gets all the hits.
+     * @param fields        The fields whose terms should be counted.
+     * @param histogramUnit The unit of the date histogram, or 0 for no histogram.
+     */
+    AggregatingCollector(Collector delegate, List<String> fields, int histogramUnit)
+    {
+        this.delegate = delegate;
+        this.fields = fields.toArray(new String[fields.size()]);
+        this.histogramUnit = histogramUnit;
+        this.aggregations = Aggregations.newBuild().setHistogramUnit(histogramUnit);
+        this.values = new SortedDocValues[this.fields.length];
+        this.counts = new int[this.fields.length][];
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException
+    {
+        delegate.setScorer(scorer);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException
+    {
+        delegate.collect(doc);
+
+        for (int k = 0; k < values.length; k++) {
+            if (values[k] != null) {
+                int ord = values[k].getOrd(doc);
+                if (ord >= 0) {
+                    counts[k][ord]++;
+                }
+            }
+        }
+        if (indexTime != null) {
+            histogram.merge(bucket(indexTime.get(doc)), 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException
+    {
+        flush();
+
+        for (int k = 0; k < fields.length; k++) {
+            values[k] = context.reader().getSortedDocValues(fields[k]);
+            counts[k] = values[k] != null ? new int[values[k].getValueCount()] : null;
+        }
+        indexTime = histogramUnit > 0 ? context.reader().getNumericDocValues("indextime") : null;
+
+        delegate.setNextReader(context);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return delegate.acceptsDocsOutOfOrder();
+    }
+
+    /**
+     * Returns the aggregations of all the documents collected.
+     *
+     * @return The aggregations.
+     */
+    Aggregations getAggregations()
+    {
+        flush();
+        return aggregations;
+    }
+
+    /**
+     * Moves the counts of the current segment into the aggregations.
+     */
+    private void flush()
+    {
+        BytesRef term = new BytesRef();
+        for (int k = 0; k < fields.length; k++) {
+            if (counts[k] != null) {
+                for (int ord = 0; ord < counts[k].length; ord++) {
+                    if (counts[k][ord] > 0) {
+                        values[k].lookupOrd(ord, term);
+                        aggregations.addTermCount(fields[k], term.utf8ToString(), counts[k][ord]);
+                    }
+                }
+                counts[k] = null;
+                values[k] = null;
+            }
+        }
+        histogram.entrySet().stream().forEach((e) -> {
+            aggregations.addHistogramCount(e.getKey(), e.getValue());
+        });
+        histogram.clear();
+    }
+
+    private long bucket(long time)
+    {
+        switch (histogramUnit) {
+            case DateRangeFilter.MONTH_RANGE:
+                return DateTools.round(time, DateTools.Resolution.MONTH);
+            case DateRangeFilter.YEAR_RANGE:
+                return DateTools.round(time, DateTools.Resolution.YEAR);
+            default:
+                // Fixed length units.
+                long unit = DateRangeFilter.getUnitMillis(histogramUnit);
+                return time - (time % unit);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.apkc.quary.analyzers.QuaryAnalyzer;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionField;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Version;
+
+/**
+ * Keeps the analysis objects of each definition, and the queries already parsed
+ * with them, so they can be reused across requests.
+ *
+ * <p>
+ * The per field analyzer, searchable fields and boosts of a definition are built
+ * once per definition version. Parsed queries are kept in a bounded cache keyed by
+ * the definition version and the query string, since they are never modified once
+ * built and can be shared by concurrent searches.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class AnalysisCache
+{
+
+    private static final Logger LOG = Logger.getLogger(AnalysisCache.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final AnalysisCache INSTANCE = new AnalysisCache();
+    /** The analysis context of each definition ID. */
+    private final Map<String, Context> CONTEXTS = new ConcurrentHashMap<>();
+    /** The parsed queries. */
+    private final Cache<String, Query> QUERIES = CacheBuilder
+            .newBuilder()
+            .maximumSize(CONF.getInt("node.cache.queries.size", 1024))
+            .build();
+
+    /**
+     * Private default constructor.
+     */
+    private AnalysisCache()
+    {
+    }
+
+    static AnalysisCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the per field analyzer of a definition. Fields use the analyzer
+     * declared for them, anything else uses the default analyzer.
+     *
+     * @param def The definition object.
+     *
+     * @return The analyzer.
+     */
+    Analyzer getAnalyzer(IndexDefinition def)
+    {
+        return getContext(def).analyzer;
+    }
+
+    /**
+     * Parses a query string using the searchable fields, boosts and analyzers
+     * declared in the definition. If the same query was parsed before for the same
+     * version of the definition, then the cached query is returned.
+     *
+     * @param def         The definition object to use.
+     * @param queryString The query string entered by the user.
+     *
+     * @return The Lucene query. Must not be modified.
+     *
+     * @throws ParseException If the query string is malformed.
+     */
+    Query getQuery(IndexDefinition def, String queryString) throws ParseException
+    {
+        String key = def.getDefinitionID() + ":" + def.getVersion() + ":" + queryString;
+        Query query = QUERIES.getIfPresent(key);
+        if (query == null) {
+            Context ctx = getContext(def);
+            // The parser isn't thread-safe, but it's cheap once the analyzer is built.
+            query = new MultiFieldQueryParser(Version.LUCENE_46, ctx.fields, ctx.analyzer, ctx.boosts).parse(queryString);
+            QUERIES.put(key, query);
+        }
+
+        return query;
+    }
+
+    private Context getContext(IndexDefinition def)
+    {
+        Context ctx = CONTEXTS.get(def.getDefinitionID());
+        if (ctx == null || ctx.version != def.getVersion()) {
+            ctx = new Context(def);
+            CONTEXTS.put(def.getDefinitionID(), ctx);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Analysis context built for definition " + def.getDefinitionID() + ". Version: " + ctx.version);
+            }
+        }
+
+        return ctx;
+    }
+
+    /**
+     * The analysis objects of one version of a definition.
+     */
+    private static final class Context
+    {
+
+        private final long version;
+        private final String[] fields;
+        private final Map<String, Float> boosts = new HashMap<>();
+        private final Analyzer analyzer;
+
+        private Context(IndexDefinition def)
+        {
+            Map<String, Analyzer> analyzerPerField = new HashMap<>();
+            List<String> sf = new ArrayList<>();
+
+            for (IndexDefinitionField f : def.getFields()) {
+                boosts.put(f.getFieldName(), f.getFieldBoost());
+                analyzerPerField.put(f.getFieldName(), QuaryAnalyzer.getAnalyzer(f.getAnalyzer()));
+                if (f.getSearchable()) {
+                    sf.add(f.getFieldName());
+                }
+            }
+
+            version = def.getVersion();
+            fields = sf.toArray(new String[0]);
+            analyzer = new PerFieldAnalyzerWrapper(QuaryAnalyzer.getAnalyzer((byte) 0), analyzerPerField); // #TODO: Detect language.
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Top-k collector that collapses near-duplicate hits, by the Hamming distance
+ * between the 64-bit SimHash "digest" of the documents.
+ *
+ * <p>
+ * Hits are kept in score order, and a hit is dropped if a better hit within
+ * the maximum distance was already kept. Kept hits are found by splitting the
+ * digest in (distance + 1) blocks, since two digests within the distance must
+ * share at least one whole block, and looking each block up in its own table.
+ * More hits than requested are kept, so the page can be backfilled when hits
+ * collapse.
+ * </p>
+ *
+ * <p>
+ * The digest is read from its NUMERIC doc values. Segments written before the
+ * digest had doc values fall back to its stored value.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class DeduplicatingCollector extends TopDocsCollector<ScoreDoc>
+{
+
+    private static final Set<String> DIGEST_FIELD = Collections.singleton("digest");
+    /** Best score first, then lowest document. */
+    private static final Comparator<ScoreDoc> ORDER = (a, b) -> {
+        int c = Float.compare(b.score, a.score);
+        return c != 0 ? c : Integer.compare(a.doc, b.doc);
+    };
+    private final int numHits;
+    private final int capacity;
+    private final TreeSet<Hit> hits = new TreeSet<>(ORDER);
+    private final BlockIndex index;
+    private final ScoreDoc after;
+    // Per segment state.
+    private Scorer scorer;
+    private int docBase;
+    private AtomicReader reader;
+    private NumericDocValues digests;
+    private Bits docsWithDigest;
+
+    /**
+     * Creates a new collector.
+     *
+     * @param numHits            The number of hits to return.
+     * @param overfetch          How many times numHits are kept, to backfill.
+     * @param maxHammingDistance The maximum distance in bits between two
+     *                           near-duplicates.
+     * @param after              Only hits after this one are collected, or
+     *                           NULL to collect from the top.
+     */
+    DeduplicatingCollector(int numHits, int overfetch, int maxHammingDistance, ScoreDoc after)
+    {
+        super(null);
+        this.numHits = numHits;
+        this.capacity = numHits * Math.max(overfetch, 1);
+        this.index = new BlockIndex(maxHammingDistance);
+        this.after = after;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException
+    {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException
+    {
+        totalHits++;
+        float score = scorer.score();
+
+        // On a previous page.
+        if (after != null && (score > after.score || (score == after.score && docBase + doc <= after.doc))) {
+            return;
+        }
+
+        // Worse than all the kept hits.
+        if (hits.size() >= capacity && score <= hits.last().score) {
+            return;
+        }
+
+        Hit hit = new Hit(docBase + doc, score);
+        if (digests != null) {
+            if (!docsWithDigest.get(doc)) {
+                add(hit);
+                return;
+            }
+            hit.digest = digests.get(doc);
+        }
+        else {
+            String digest = reader.document(doc, DIGEST_FIELD).get("digest");
+            if (digest == null) {
+                add(hit);
+                return;
+            }
+            try {
+                hit.digest = Long.parseLong(digest);
+            }
+            catch (NumberFormatException e) {
+                add(hit);
+                return;
+            }
+        }
+        hit.hasDigest = true;
+
+        List<Hit> duplicates = index.find(hit.digest);
+        for (Hit d : duplicates) {
+            if (ORDER.compare(d, hit) < 0) {
+                return; // A better near-duplicate is kept.
+            }
+        }
+        for (Hit d : duplicates) {
+            remove(d);
+        }
+        add(hit);
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException
+    {
+        docBase = context.docBase;
+        reader = context.reader();
+        digests = reader.getNumericDocValues("digest");
+        docsWithDigest = digests != null ? reader.getDocsWithField("digest") : null;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        // Ties are broken by document, and which of two near-duplicates is kept depends on
+        // the order in which they are seen, so the documents must arrive in order.
+        return false;
+    }
+
+    @Override
+    protected int topDocsSize()
+    {
+        return Math.min(hits.size(), numHits);
+    }
+
+    @Override
+    public TopDocs topDocs(int start, int howMany)
+    {
+        int size = topDocsSize();
+        if (start < 0 || start >= size || howMany <= 0) {
+            return newTopDocs(null, start);
+        }
+
+        howMany = Math.min(size - start, howMany);
+        ScoreDoc[] results = new ScoreDoc[howMany];
+        Iterator<Hit> i = hits.iterator();
+        for (int k = 0; k < start; k++) {
+            i.next();
+        }
+        for (int k = 0; k < howMany; k++) {
+            Hit hit = i.next();
+            results[k] = new ScoreDoc(hit.doc, hit.score);
+        }
+
+        return newTopDocs(results, start);
+    }
+
+    @Override
+    protected TopDocs newTopDocs(ScoreDoc[] results, int start)
+    {
+        if (results == null) {
+            return new TopDocs(totalHits, new ScoreDoc[0], Float.NaN);
+        }
+
+        return new TopDocs(totalHits, results, hits.first().score);
+    }
+
+    private void add(Hit hit)
+    {
+        hits.add(hit);
+        if (hit.hasDigest) {
+            index.add(hit);
+        }
+        if (hits.size() > capacity) {
+            remove(hits.last());
+        }
+    }
+
+    private void remove(Hit hit)
+    {
+        hits.remove(hit);
+        if (hit.hasDigest) {
+            index.remove(hit);
+        }
+    }
+
+    /**
+     * A kept hit.
+     */
+    private static final class Hit extends ScoreDoc
+    {
+
+        long digest;
+        boolean hasDigest = false;
+
+        Hit(int doc, float score)
+        {
+            super(doc, score);
+        }
+    }
+
+    /**
+     * Lookup tables of the kept hits, one per block of the digest.
+     */
+    private static final class BlockIndex
+    {
+
+        private final int maxDistance;
+        private final int[] shifts;
+        private final long[] masks;
+        private final List<Map<Long, List<Hit>>> tables;
+
+        BlockIndex(int maxDistance)
+        {
+            this.maxDistance = Math.min(Math.max(maxDistance, 0), 63);
+            int blocks = this.maxDistance + 1;
+            shifts = new int[blocks];
+            masks = new long[blocks];
+            tables = new ArrayList<>(blocks);
+            int shift = 0;
+            for (int k = 0; k < blocks; k++) {
+                // Spread the remainder bits over the first blocks.
+                int width = 64 / blocks + (k < 64 % blocks ? 1 : 0);
+                shifts[k] = shift;
+                masks[k] = width == 64 ? -1L : (1L << width) - 1L;
+                tables.add(new HashMap<>());
+                shift += width;
+            }
+        }
+
+        void add(Hit hit)
+        {
+            for (int k = 0; k < shifts.length; k++) {
+                tables.get(k).computeIfAbsent(block(hit.digest, k), (b) -> new ArrayList<>(1)).add(hit);
+            }
+        }
+
+        void remove(Hit hit)
+        {
+            for (int k = 0; k < shifts.length; k++) {
+                Long b = block(hit.digest, k);
+                List<Hit> bucket = tables.get(k).get(b);
+                if (bucket != null) {
+                    bucket.remove(hit);
+                    if (bucket.isEmpty()) {
+                        tables.get(k).remove(b);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the kept hits within the maximum distance of a digest.
+         *
+         * @param digest The digest.
+         *
+         * @return The near-duplicates.
+         */
+        List<Hit> find(long digest)
+        {
+            List<Hit> found = new ArrayList<>(0);
+            for (int k = 0; k < shifts.length; k++) {
+                List<Hit> bucket = tables.get(k).get(block(digest, k));
+                if (bucket != null) {
+                    for (Hit h : bucket) {
+                        if (Long.bitCount(h.digest ^ digest) <= maxDistance && !found.contains(h)) {
+                            found.add(h);
+                        }
+                    }
+                }
+            }
+
+            return found;
+        }
+
+        private long block(long digest, int k)
+        {
+            return (digest >>> shifts[k]) & masks[k];
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionField;
+import net.apkc.quary.docs.QuaryDocument;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+
+/**
+ * The Lucene document of a definition, reused for every document a thread
+ * writes.
+ *
+ * <p>
+ * Lucene is done with a document when addDocument() returns, so the same
+ * document and fields can be filled with the values of the next one. Each
+ * thread keeps one template per definition, which is built again when the
+ * definition changes. Numeric values are parsed once per document, for the
+ * field and for its doc values.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class DocumentTemplate
+{
+
+    private static final ThreadLocal<Map<String, DocumentTemplate>> TEMPLATES = ThreadLocal.withInitial(HashMap::new);
+    private static final FieldType SIGNATURE_TYPE = new FieldType();
+    private final long version;
+    private final Document document = new Document();
+    private final IndexDefinitionField[] definitionFields;
+    private final Field[] fields;
+    private final Field[] docValues; // NULL for the fields without doc values.
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final Field signature;
+
+    static {
+        SIGNATURE_TYPE.setIndexed(true);
+        SIGNATURE_TYPE.setStored(true);
+        SIGNATURE_TYPE.setTokenized(false);
+        SIGNATURE_TYPE.freeze();
+    }
+
+    /**
+     * Builds the template of a definition with the values of a document.
+     *
+     * @param def The definition.
+     * @param doc The document.
+     */
+    private DocumentTemplate(IndexDefinition def, QuaryDocument doc)
+    {
+        // The fields are added sorted by name, and only once.
+        TreeMap<String, IndexDefinitionField> sorted = new TreeMap<>();
+        for (IndexDefinitionField f : def.getFields()) {
+            sorted.put(f.getFieldName(), f);
+        }
+
+        version = def.getVersion();
+        definitionFields = sorted.values().toArray(new IndexDefinitionField[sorted.size()]);
+        fields = new Field[definitionFields.length];
+        docValues = new Field[definitionFields.length];
+        for (int k = 0; k < definitionFields.length; k++) {
+            String value = doc.getFieldValue(definitionFields[k].getFieldName());
+            fields[k] = NodeImplementation.newField(definitionFields[k], value);
+            docValues[k] = NodeImplementation.newDocValuesField(definitionFields[k], value);
+            positions.put(definitionFields[k].getFieldName(), k);
+            document.add(fields[k]);
+        }
+        for (Field f : docValues) {
+            if (f != null) {
+                document.add(f);
+            }
+        }
+
+        // Force the signature.
+        signature = new Field("signature", doc.getSignature(), SIGNATURE_TYPE);
+        document.add(signature);
+    }
+
+    /**
+     * Returns the Lucene document of a definition for the current thread,
+     * filled with the values of a document.
+     *
+     * @param def The definition.
+     * @param doc The document.
+     *
+     * @return The template. Its document is only valid until the next call of
+     *         the thread.
+     */
+    static DocumentTemplate fill(IndexDefinition def, QuaryDocument doc)
+    {
+        Map<String, DocumentTemplate> templates = TEMPLATES.get();
+        DocumentTemplate template = templates.get(def.getDefinitionID());
+        if (template == null || template.version != def.getVersion()) {
+            template = new DocumentTemplate(def, doc);
+            templates.put(def.getDefinitionID(), template);
+
+            return template;
+        }
+
+        for (int k = 0; k < template.definitionFields.length; k++) {
+            template.set(k, doc.getFieldValue(template.definitionFields[k].getFieldName()));
+        }
+        template.signature.setStringValue(doc.getSignature());
+
+        return template;
+    }
+
+    /**
+     * Returns the Lucene document.
+     *
+     * @return The document.
+     */
+    Document getDocument()
+    {
+        return document;
+    }
+
+    /**
+     * Changes the value of a field, and of its doc values.
+     *
+     * @param name  The name of the field.
+     * @param value The new value.
+     */
+    void setValue(String name, String value)
+    {
+        Integer k = positions.get(name);
+        if (k != null) {
+            set(k, value);
+        }
+    }
+
+    private void set(int k, String value)
+    {
+        Number number = NodeImplementation.parseNumber(definitionFields[k], value); // Once for both fields.
+        NodeImplementation.setFieldValue(fields[k], value, number);
+        if (docValues[k] != null) {
+            NodeImplementation.setDocValuesFieldValue(definitionFields[k], docValues[k], value, number);
+        }
+    }
+}
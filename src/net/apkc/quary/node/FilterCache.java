@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.concurrent.ExecutionException;
+import net.apkc.quary.filters.DateRangeFilter;
+import net.apkc.quary.filters.FallbackFilter;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.TermRangeFilter;
+
+/**
+ * Cache of the filters used in searches.
+ *
+ * <p>
+ * Each filter is wrapped in a CachingWrapperFilter, which keeps its bitset per
+ * segment, so a filter is only computed once for each segment and after a
+ * refresh only the new segments pay for it. Term filters are keyed by field and
+ * term. Date range filters are numeric ranges keyed by their lower bound rounded
+ * to the resolution of the range, i.e. a range in hours is the same filter during
+ * the whole hour.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class FilterCache
+{
+
+    private static final Logger LOG = Logger.getLogger(FilterCache.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final FilterCache INSTANCE = new FilterCache();
+    private final Cache<String, Filter> FILTERS = CacheBuilder
+            .newBuilder()
+            .maximumSize(CONF.getInt("node.cache.filters.size", 256))
+            .recordStats()
+            .build();
+
+    /**
+     * Private default constructor.
+     */
+    private FilterCache()
+    {
+    }
+
+    static FilterCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the filter for documents having a term in a field.
+     *
+     * @param field The name of the field.
+     * @param term  The term.
+     *
+     * @return The cached filter.
+     */
+    Filter getTermFilter(String field, String term)
+    {
+        return get("t:" + field + ":" + term, () -> new TermsFilter(new Term(field, term)));
+    }
+
+    /**
+     * Returns the filter for documents indexed in the last N units of time.
+     *
+     * <p>
+     * The filter is a numeric range over the "indextime" field. Segments written
+     * before the field was numeric are filtered by the legacy "it*" string field
+     * of the same resolution.
+     * </p>
+     *
+     * @param dateRange     The unit of the range. i.e. DateRangeFilter.HOUR_RANGE
+     * @param timeFactor    The number of units.
+     * @param precisionStep The precision step of the "indextime" field.
+     * @param now           The current time in milliseconds.
+     *
+     * @return The cached filter, or NULL if the unit is unknown.
+     */
+    Filter getDateRangeFilter(int dateRange, int timeFactor, int precisionStep, long now)
+    {
+        String legacyField;
+        switch (dateRange) {
+            case DateRangeFilter.SECOND_RANGE:
+                legacyField = "itsecond";
+                break;
+            case DateRangeFilter.MINUTE_RANGE:
+                legacyField = "itminute";
+                break;
+            case DateRangeFilter.HOUR_RANGE:
+                legacyField = "ithour";
+                break;
+            case DateRangeFilter.DAY_RANGE:
+                legacyField = "itday";
+                break;
+            case DateRangeFilter.MONTH_RANGE:
+                legacyField = "itmonth";
+                break;
+            case DateRangeFilter.YEAR_RANGE:
+                legacyField = "ityear";
+                break;
+            default:
+                return null;
+        }
+
+        // The lower bound is rounded to the resolution of the range. The upper bound is left open, since
+        // documents can't be indexed in the future, so the filter only changes when the lower bound does.
+        DateTools.Resolution resolution = DateRangeFilter.getResolution(dateRange);
+        long lowerTimestamp = DateRangeFilter.getLowerTimestamp(dateRange, timeFactor, now);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Lower Timestamp: " + lowerTimestamp);
+            LOG.debug("Now: " + now);
+        }
+
+        return get("d:indextime:" + precisionStep + ":" + lowerTimestamp, () -> new FallbackFilter(
+                NumericRangeFilter.newLongRange("indextime", precisionStep, lowerTimestamp, null, true, true),
+                "indextime",
+                TermRangeFilter.newStringRange(legacyField, DateTools.timeToString(lowerTimestamp, resolution), null, true, true),
+                legacyField));
+    }
+
+    /**
+     * Returns the hit/miss metrics of the cache in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        CacheStats stats = FILTERS.stats();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<filtercache>");
+        xml.append("<size>").append(FILTERS.size()).append("</size>");
+        xml.append("<hits>").append(stats.hitCount()).append("</hits>");
+        xml.append("<misses>").append(stats.missCount()).append("</misses>");
+        xml.append("<hitrate>").append(stats.hitRate()).append("</hitrate>");
+        xml.append("<evictions>").append(stats.evictionCount()).append("</evictions>");
+        xml.append("</filtercache>");
+
+        return xml.toString();
+    }
+
+    private Filter get(String key, FilterFactory factory)
+    {
+        try {
+            return FILTERS.get(key, () -> new CachingWrapperFilter(factory.create()));
+        }
+        catch (ExecutionException e) {
+            // Building a filter doesn't throw checked exceptions, so this can't happen.
+            LOG.error("Error building filter " + key + ". Error: " + e.toString(), e);
+            return new CachingWrapperFilter(factory.create());
+        }
+    }
+
+    @FunctionalInterface
+    private interface FilterFactory
+    {
+
+        Filter create();
+    }
+}
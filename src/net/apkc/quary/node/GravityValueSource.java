@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.Map;
+import net.apkc.quary.util.Rank;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Value source with the boost with gravity of each document, evaluated at query
+ * time from the "indextime" and "boost" doc values.
+ *
+ * <p>
+ * Documents written before these fields had doc values, in their own segments
+ * or merged with newer ones, get the same value computed from their stored
+ * "indextime" and "boost" fields. Those are read per document, so they're
+ * slower to score until the index is rebuilt.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see Rank#calculateBoostWithGravity(float, long)
+ */
+final class GravityValueSource extends ValueSource
+{
+
+    private static final Logger LOG = Logger.getLogger(GravityValueSource.class.getName());
+    private final long now;
+
+    /**
+     * Creates a new value source.
+     *
+     * @param now The time against which the age of the documents is computed.
+     */
+    GravityValueSource(long now)
+    {
+        this.now = now;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException
+    {
+        final AtomicReader reader = readerContext.reader();
+        final NumericDocValues indexTime = reader.getNumericDocValues("indextime");
+        final Bits hasIndexTime = reader.getDocsWithField("indextime");
+        final NumericDocValues boost = reader.getNumericDocValues("boost");
+        final Bits hasBoost = reader.getDocsWithField("boost");
+
+        return new FloatDocValues(this)
+        {
+            @Override
+            public float floatVal(int doc)
+            {
+                if (indexTime == null || hasIndexTime == null || !hasIndexTime.get(doc)) {
+                    return storedValue(reader, doc);
+                }
+
+                float b = boost != null && hasBoost != null && hasBoost.get(doc) ? Float.intBitsToFloat((int) boost.get(doc)) : 1.0f;
+                return (float) Rank.calculateBoostWithGravity(b, Math.max(now - indexTime.get(doc), 0L));
+            }
+        };
+    }
+
+    /**
+     * Computes the boost with gravity of a document without doc values, from its
+     * stored "indextime" and "boost" fields.
+     *
+     * @param reader The reader of the segment.
+     * @param doc    The document in the segment.
+     *
+     * @return The boost with gravity, or 0 if the document has no index time.
+     */
+    private float storedValue(AtomicReader reader, int doc)
+    {
+        try {
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("indextime", "boost");
+            reader.document(doc, visitor);
+            String t = visitor.getDocument().get("indextime");
+            String b = visitor.getDocument().get("boost");
+            if (t == null) {
+                return 0.0f;
+            }
+
+            return (float) Rank.calculateBoostWithGravity(b != null ? Float.parseFloat(b) : 1.0f, Math.max(now - Long.parseLong(t), 0L));
+        }
+        catch (IOException | NumberFormatException e) {
+            LOG.error("Impossible to compute the gravity of document " + doc + ". Error: " + e.toString(), e);
+            return 0.0f;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof GravityValueSource && ((GravityValueSource) o).now == now;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return GravityValueSource.class.hashCode() ^ Long.hashCode(now);
+    }
+
+    @Override
+    public String description()
+    {
+        return "gravity(indextime,boost,now=" + now + ")";
+    }
+}
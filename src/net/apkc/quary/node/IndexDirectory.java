@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.File;
+import java.io.IOException;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+/**
+ * Opens the Lucene directory of an index.
+ *
+ * <p>
+ * The implementation is selected with "node.directory.type", which can be
+ * overridden per definition with "node.directory.type.[definitionID]":
+ * <ul>
+ * <li>fs: Let Lucene pick the best one for the platform. This is the default.</li>
+ * <li>mmap: Map the files in memory. Best for large indexes that are mostly read.</li>
+ * <li>nio: Read the files with positional reads of a FileChannel.</li>
+ * <li>simple: Read the files with a RandomAccessFile.</li>
+ * </ul>
+ * Besides, the directory can be wrapped in an NRT caching directory, which keeps
+ * the small segments flushed by the writer in RAM until they are committed, so
+ * near real-time readers don't have to go to disk for them.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class IndexDirectory
+{
+
+    private static final Logger LOG = Logger.getLogger(IndexDirectory.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final double MAX_MERGE_MB = CONF.getFloat("node.directory.nrtcache.maxmergemb", 5.0f);
+    private static final double MAX_CACHED_MB = CONF.getFloat("node.directory.nrtcache.maxcachedmb", 60.0f);
+
+    /**
+     * Private default constructor.
+     */
+    private IndexDirectory()
+    {
+    }
+
+    /**
+     * Opens the directory of an index.
+     *
+     * @param definitionID The ID of the definition of the index.
+     * @param path         The path to the index.
+     *
+     * @return The directory.
+     *
+     * @throws IOException If the directory couldn't be opened.
+     */
+    static Directory open(String definitionID, String path) throws IOException
+    {
+        String type = CONF.get("node.directory.type." + definitionID, CONF.get("node.directory.type", "fs")).trim().toLowerCase();
+        boolean cache = CONF.getBoolean("node.directory.nrtcache." + definitionID, CONF.getBoolean("node.directory.nrtcache", false));
+
+        File file = new File(path);
+        Directory dir;
+        switch (type) {
+            case "mmap":
+                dir = new MMapDirectory(file);
+                break;
+            case "nio":
+                dir = new NIOFSDirectory(file);
+                break;
+            case "simple":
+                dir = new SimpleFSDirectory(file);
+                break;
+            default:
+                if (!type.equals("fs")) {
+                    LOG.warn("Unknown directory type \"" + type + "\" for definition " + definitionID + ". Using the default.");
+                }
+                dir = FSDirectory.open(file);
+                break;
+        }
+
+        if (cache) {
+            dir = new NRTCachingDirectory(dir, MAX_MERGE_MB, MAX_CACHED_MB);
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Directory opened for index " + path + ": " + dir);
+        }
+
+        return dir;
+    }
+
+    /**
+     * Returns the name of the implementation of a directory.
+     *
+     * @param dir The directory.
+     *
+     * @return The name.
+     */
+    static String getType(Directory dir)
+    {
+        if (dir instanceof NRTCachingDirectory) {
+            return getType(((NRTCachingDirectory) dir).getDelegate()) + "+nrtcache";
+        }
+        else if (dir instanceof MMapDirectory) {
+            return "mmap";
+        }
+        else if (dir instanceof NIOFSDirectory) {
+            return "nio";
+        }
+        else if (dir instanceof SimpleFSDirectory) {
+            return "simple";
+        }
+
+        return dir.getClass().getSimpleName();
+    }
+
+    /**
+     * Returns the bytes of a directory that are kept in RAM.
+     *
+     * @param dir The directory.
+     *
+     * @return The bytes in RAM.
+     */
+    static long getCachedBytes(Directory dir)
+    {
+        return dir instanceof NRTCachingDirectory ? ((NRTCachingDirectory) dir).sizeInBytes() : 0L;
+    }
+
+    /**
+     * Returns the statistics of the directories of the indexes of this node.
+     *
+     * @return The statistics as an XML fragment.
+     */
+    static String getStats()
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<directories>");
+        for (IndexState index : IndexRegistry.getInstance().getIndexes()) {
+            Directory dir = index.getOpenedDirectory();
+            if (dir != null) {
+                xml.append("<directory index=\"").append(index.getDefinitionID()).append(".").append(index.getNodeID()).append("\">");
+                xml.append("<type>").append(getType(dir)).append("</type>");
+                xml.append("<cached>").append(getCachedBytes(dir)).append("</cached>");
+                xml.append("</directory>");
+            }
+        }
+        xml.append("</directories>");
+
+        return xml.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import net.apkc.quary.util.Constants;
+
+/**
+ * Reports how much of each index of a node is mapped in memory, and how much of
+ * it is resident in RAM.
+ *
+ * <p>
+ * The mappings are read from /proc/[pid]/smaps of the node, so it only works on
+ * Linux. Only the files mapped by memory mapped directories are reported as
+ * mapped. The files of the other directories are read through the page cache of
+ * the kernel, which isn't accounted to the process, and segments cached by NRT
+ * caching directories are reported by the statistics of the node.
+ * </p>
+ *
+ * <p>
+ * Usage: IndexMemory [pid]
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class IndexMemory
+{
+
+    public static void main(String[] args)
+    {
+        if (args.length < 1) {
+            System.err.printf("PID parameter not passed! Try again.\n");
+            System.exit(-1);
+        }
+
+        String prefix = Constants.INDEX_FILE.getStringConstant();
+        Map<String, long[]> indexes = new TreeMap<>(); // Index -> {disk, mapped, resident}
+
+        // Size on disk of each index.
+        File root = new File(prefix).getParentFile();
+        File[] dirs = root.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getPath().startsWith(prefix)) {
+                    long[] bytes = getIndex(indexes, dir.getName());
+                    File[] files = dir.listFiles();
+                    if (files != null) {
+                        for (File f : files) {
+                            bytes[0] += f.length();
+                        }
+                    }
+                }
+            }
+        }
+
+        // Mapped and resident bytes of each index.
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + args[0] + "/smaps"))) {
+            long[] bytes = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int start = line.indexOf(prefix);
+                if (start > 0) {
+                    // A new mapping of a file of an index.
+                    String file = line.substring(start);
+                    int end = file.indexOf('/', prefix.length());
+                    bytes = end > 0 ? getIndex(indexes, new File(file.substring(0, end)).getName()) : null;
+                }
+                else if (!line.contains(":") || line.indexOf(' ') < line.indexOf(':')) {
+                    bytes = null; // A new mapping of something else.
+                }
+                else if (bytes != null && line.startsWith("Size:")) {
+                    bytes[1] += parseKB(line);
+                }
+                else if (bytes != null && line.startsWith("Rss:")) {
+                    bytes[2] += parseKB(line);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.printf("Error reading the mappings of process %s. Error: %s\n", args[0], e.toString());
+            System.exit(-1);
+        }
+
+        System.out.printf("%-40s %15s %15s %15s %10s\n", "Index", "Disk", "Mapped", "Resident", "Resident%");
+        long[] total = new long[3];
+        for (Map.Entry<String, long[]> e : indexes.entrySet()) {
+            print(e.getKey(), e.getValue());
+            for (int k = 0; k < total.length; k++) {
+                total[k] += e.getValue()[k];
+            }
+        }
+        print("Total", total);
+    }
+
+    private static long[] getIndex(Map<String, long[]> indexes, String name)
+    {
+        long[] bytes = indexes.get(name);
+        if (bytes == null) {
+            indexes.put(name, bytes = new long[3]);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Parses a line of smaps like "Rss:     1234 kB".
+     *
+     * @param line The line.
+     *
+     * @return The bytes.
+     */
+    private static long parseKB(String line)
+    {
+        String[] tokens = line.trim().split("\\s+");
+
+        return tokens.length > 1 ? Long.parseLong(tokens[1]) * 1024L : 0L;
+    }
+
+    private static void print(String name, long[] bytes)
+    {
+        System.out.printf(
+                "%-40s %15d %15d %15d %9.1f%%\n",
+                name,
+                bytes[0],
+                bytes[1],
+                bytes[2],
+                bytes[1] > 0 ? 100.0 * bytes[2] / bytes[1] : 0.0);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of all the indexes served by this node. Each index is identified by
+ * the pair (definitionID, nodeID) and has its own writer and searchers.
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class IndexRegistry
+{
+
+    private static final IndexRegistry INSTANCE = new IndexRegistry();
+    private final ConcurrentMap<String, IndexState> INDEXES = new ConcurrentHashMap<>();
+
+    /**
+     * Private default constructor.
+     */
+    private IndexRegistry()
+    {
+    }
+
+    /**
+     * Returns the only instance of this class.
+     *
+     * @return The only instance of class.
+     */
+    static IndexRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the index for a definition in a node. If the index isn't registered
+     * yet, then it's created.
+     *
+     * @param definitionID The ID of the index.
+     * @param node         The node in which to operate.
+     *
+     * @return The index.
+     */
+    IndexState getIndex(String definitionID, Node node)
+    {
+        return INDEXES.computeIfAbsent(definitionID + "." + node.getNodeID(), (String k) -> new IndexState(definitionID, node.getNodeID()));
+    }
+
+    /**
+     * Returns all the indexes registered in this node.
+     *
+     * @return All the indexes.
+     */
+    Collection<IndexState> getIndexes()
+    {
+        return INDEXES.values();
+    }
+}
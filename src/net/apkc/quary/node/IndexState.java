@@ -0,0 +1,598 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.apkc.quary.analyzers.QuaryAnalyzer;
+import net.apkc.quary.reactor.Searcher;
+import net.apkc.quary.util.Constants;
+import net.apkc.quary.util.GeneralUtilities;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.commons.lang.math.RandomUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * This class holds the writer and the searchers of one index, identified by the
+ * pair (definitionID, nodeID).
+ *
+ * <p>
+ * Each index has its own lifecycle, so several definitions can be indexed and
+ * searched in parallel on the same node without interfering with each other. The
+ * writer is shared by all the callers of openWriter() and is only closed when the
+ * last of them calls closeWriter(). The readers are reference counted, so a reader
+ * that is replaced after a re-open is only closed when the last search using it
+ * releases it.
+ * </p>
+ *
+ * <p>
+ * The writer is committed every (node.write.commit.interval) documents, and when
+ * it's closed. After a commit the searchers are refreshed in the background, so
+ * the writes never wait for the re-opening and warming of the readers. All the
+ * (node.readers) searchers share the same reader, which is opened and warmed
+ * once per commit.
+ * </p>
+ *
+ * <p>
+ * The documents replaced by the writes are looked up among the ones written
+ * since the last commit, and then with a reader opened at the last commit, so
+ * the writer doesn't have to be flushed for every document.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class IndexState
+{
+
+    private static final Logger LOG = Logger.getLogger(IndexState.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    /** The similarity of all the writers and searchers. It's stateless, so it's shared. */
+    static final Similarity SIMILARITY = new DefaultSimilarity();
+    /** Re-opens and warms the searchers of all the indexes after their commits, one at a time. */
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("QUARY:REFRESH:%d")
+            .setDaemon(true)
+            .build());
+    /** Returned when there is no open searcher. */
+    private static final Searcher CLOSED = Searcher
+            .newBuild()
+            .setIsOpen(false)
+            .setSearcher(null)
+            .setShouldClose(false)
+            .checkObject();
+    private final String definitionID;
+    private final String nodeID;
+    private final String path;
+    private final List<IndexSearcher> searchers = Collections.synchronizedList(new ArrayList<IndexSearcher>(0));
+    /** The searchers of the list, as given to the searches. They're built once per reader. */
+    private final Map<IndexSearcher, Searcher> opened = new ConcurrentHashMap<>();
+    /** Held while the searchers are opened or re-opened, so a reader is opened and warmed only once. */
+    private final Object reopenLock = new Object();
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private final Object writerLock = new Object();
+    private volatile IndexWriter writer = null;
+    private int writerUsers = 0;
+    private final int COMMIT_INTERVAL = Math.max(CONF.getInt("node.write.commit.interval", 1000), 1);
+    private final Object lookupLock = new Object();
+    /** Finds the documents replaced by the writes. Opened after each commit. */
+    private IndexSearcher lookupSearcher = null;
+    /** The stored fields of the documents written since the last commit, by signature. */
+    private final Map<String, Document> pendingWrites = new HashMap<>();
+    private int writesSinceCommit = 0;
+    private volatile ExecutorService searchExecutor = null; // Created on the first parallel search.
+    private volatile Directory directory = null; // Shared by the writer and the readers.
+
+    IndexState(String definitionID, String nodeID)
+    {
+        this.definitionID = definitionID;
+        this.nodeID = nodeID;
+        this.path = Constants.INDEX_FILE.getStringConstant() + definitionID + "." + nodeID;
+    }
+
+    String getDefinitionID()
+    {
+        return definitionID;
+    }
+
+    String getNodeID()
+    {
+        return nodeID;
+    }
+
+    /**
+     * Returns the directory of this index, and opens it the first time. The same
+     * directory is used by the writer and the readers, so segments cached in RAM
+     * are visible to both.
+     *
+     * @return The directory.
+     *
+     * @throws IOException If the directory couldn't be opened.
+     */
+    Directory getDirectory() throws IOException
+    {
+        if (directory == null) {
+            synchronized (this) {
+                if (directory == null) {
+                    directory = IndexDirectory.open(definitionID, path);
+                }
+            }
+        }
+
+        return directory;
+    }
+
+    /**
+     * Returns the directory of this index, without opening it.
+     *
+     * @return The directory, or NULL if it hasn't been opened.
+     */
+    Directory getOpenedDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the writer of this index, if it's open, and keeps it open until
+     * unpinWriter() is called, so it can't be closed while it's being used.
+     *
+     * @return The writer, or NULL if the writer hasn't been opened.
+     */
+    IndexWriter pinWriter()
+    {
+        synchronized (writerLock) {
+            if (writer != null) {
+                writerUsers++;
+            }
+
+            return writer;
+        }
+    }
+
+    /**
+     * Gives back a writer obtained with pinWriter(). If it was the last user of the
+     * writer, then the writer is closed and the readers are refreshed.
+     */
+    void unpinWriter()
+    {
+        try {
+            closeWriter();
+        }
+        catch (IOException e) {
+            LOG.error("Error closing writer. Error: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Opens the writer of this index, or shares the one that is already open.
+     *
+     * @return The writer.
+     *
+     * @throws IOException If the writer couldn't be opened.
+     */
+    IndexWriter openWriter() throws IOException
+    {
+        synchronized (writerLock) {
+            if (writer == null) {
+                writer = new IndexWriter(
+                        getDirectory(),
+                        new IndexWriterConfig(Version.LUCENE_46, QuaryAnalyzer.getAnalyzer((byte) 0))
+                        .setUseCompoundFile(true)
+                        .setSimilarity(SIMILARITY));
+            }
+            writerUsers++;
+
+            return writer;
+        }
+    }
+
+    /**
+     * Releases the writer of this index. The writer is closed when the last user
+     * releases it, and then the readers are refreshed in the background.
+     *
+     * @return TRUE if the writer was closed, FALSE if it's still in use.
+     *
+     * @throws IOException If the writer couldn't be closed.
+     */
+    boolean closeWriter() throws IOException
+    {
+        synchronized (writerLock) {
+            if (writerUsers > 0) {
+                writerUsers--;
+            }
+
+            if (writerUsers == 0 && writer != null) {
+                resetLookup();
+                writer.close(); // Close the writer.
+                writer = null; // Allow for GC to recall this object.
+                refresh();
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Returns the stored fields of the indexed document with the given
+     * signature. Documents written since the last commit are returned as
+     * recorded by recordWrite().
+     *
+     * @param w         The writer of this index.
+     * @param signature The signature of the document.
+     *
+     * @return The stored fields, or NULL if there is no such document.
+     *
+     * @throws IOException If the index couldn't be read.
+     */
+    Document findDocument(IndexWriter w, String signature) throws IOException
+    {
+        synchronized (lookupLock) {
+            Document pending = pendingWrites.get(signature);
+            if (pending != null) {
+                return pending;
+            }
+
+            if (lookupSearcher == null) {
+                lookupSearcher = new IndexSearcher(DirectoryReader.open(w, true));
+            }
+            TopDocs hits = lookupSearcher.search(new TermQuery(new Term("signature", signature)), 1);
+
+            return hits.totalHits > 0 ? lookupSearcher.doc(hits.scoreDocs[0].doc) : null;
+        }
+    }
+
+    /**
+     * Records a document written to this index, and commits the writer every
+     * (node.write.commit.interval) documents.
+     *
+     * @param w         The writer of this index.
+     * @param signature The signature of the document.
+     * @param stored    The stored fields of the document needed by later
+     *                  updates of it.
+     *
+     * @throws IOException If the writer couldn't be committed.
+     */
+    void recordWrite(IndexWriter w, String signature, Document stored) throws IOException
+    {
+        synchronized (lookupLock) {
+            pendingWrites.put(signature, stored);
+            if (++writesSinceCommit >= COMMIT_INTERVAL) {
+                w.commit();
+                resetLookup();
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Forgets the writes since the last commit, and closes the reader used to
+     * find documents. Called after a commit.
+     */
+    private void resetLookup() throws IOException
+    {
+        synchronized (lookupLock) {
+            pendingWrites.clear();
+            writesSinceCommit = 0;
+            if (lookupSearcher != null) {
+                lookupSearcher.getIndexReader().close();
+                lookupSearcher = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of threads that searches slices of this index in parallel.
+     *
+     * @return The pool.
+     */
+    ExecutorService getSearchExecutor()
+    {
+        if (searchExecutor == null) {
+            synchronized (this) {
+                if (searchExecutor == null) {
+                    searchExecutor = ParallelSearcher.getInstance().newExecutor(definitionID + "." + nodeID);
+                }
+            }
+        }
+
+        return searchExecutor;
+    }
+
+    /**
+     * Returns an open searcher for this index. The reader of the searcher has been
+     * referenced, so it must always be given back by calling release(). The
+     * writer can stay open across many documents, so the searchers only see the
+     * documents committed until their last refresh.
+     *
+     * @return An IndexSearcher for this index.
+     *
+     * @throws IOException
+     */
+    Searcher getOpenSearcher() throws IOException
+    {
+        openSearchers(false);
+
+        synchronized (searchers) {
+            for (int k = 0; k < searchers.size(); k++) {
+                IndexSearcher e = searchers.get(RandomUtils.nextInt(searchers.size()));
+                if (e.getIndexReader().tryIncRef()) {
+                    return opened.get(e);
+                }
+            }
+        }
+
+        return CLOSED;
+    }
+
+    /**
+     * Makes a searcher for a reader.
+     *
+     * @param reader The reader.
+     *
+     * @return The searcher.
+     */
+    private static IndexSearcher newSearcher(IndexReader reader)
+    {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(SIMILARITY);
+
+        return searcher;
+    }
+
+    /**
+     * Adds a searcher to the list of this index, or replaces one of it.
+     *
+     * @param oldSearcher The searcher to replace, or NULL to add the searcher.
+     * @param newSearcher The new searcher.
+     *
+     * @return FALSE if the searcher to replace isn't in the list anymore.
+     */
+    private boolean putSearcher(IndexSearcher oldSearcher, IndexSearcher newSearcher)
+    {
+        // The searcher is built before it becomes visible.
+        opened.put(newSearcher, Searcher
+                .newBuild()
+                .setIsOpen(true)
+                .setSearcher(newSearcher)
+                .setShouldClose(false)
+                .checkObject());
+
+        synchronized (searchers) {
+            if (oldSearcher == null) {
+                searchers.add(newSearcher);
+                return true;
+            }
+
+            int position = searchers.indexOf(oldSearcher);
+            if (position < 0) {
+                opened.remove(newSearcher);
+                return false;
+            }
+            searchers.set(position, newSearcher);
+            opened.remove(oldSearcher);
+            return true;
+        }
+    }
+
+    /**
+     * Gives back a searcher obtained with getOpenSearcher().
+     *
+     * @param searcher The searcher to release.
+     */
+    void release(Searcher searcher)
+    {
+        if (searcher == null || !searcher.getIsOpen()) {
+            return;
+        }
+
+        try {
+            // Readers replaced by a refresh are closed when their last search is done.
+            searcher.getSearcher().getIndexReader().decRef();
+        }
+        catch (IOException e) {
+            LOG.error("Error releasing reader. Error: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Re-opens the searchers of this index in the background, so the caller
+     * doesn't wait for the warming. Several calls made before the re-open
+     * starts are served by a single re-open.
+     */
+    void refresh()
+    {
+        if (!refreshPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        REFRESHER.execute(() -> {
+            // Commits made during the re-open ask for another one.
+            refreshPending.set(false);
+            openSearchers(true);
+        });
+    }
+
+    /**
+     * This method opens all the readers and searchers to this index. All the
+     * searchers share the same reader, which is warmed once before it becomes
+     * visible.
+     *
+     * @param reOpenSearchers If TRUE we must re-open all readers and
+     *                        searchers to the index, FALSE we leave them
+     *                        alone.
+     */
+    void openSearchers(boolean reOpenSearchers)
+    {
+        if (!searchers.isEmpty() && !reOpenSearchers) {
+            return;
+        }
+
+        synchronized (reopenLock) {
+            try {
+                if (searchers.isEmpty()) {
+                    Directory dir = getDirectory();
+
+                    // Only open the reader if there is an index.
+                    if (DirectoryReader.indexExists(dir)) {
+                        IndexSearcher newSearcher = newSearcher(DirectoryReader.open(dir));
+                        // Warm the searcher before it becomes visible.
+                        SearcherWarmer.getInstance().warm(definitionID, newSearcher);
+                        publish(null, newSearcher);
+
+                        if (LOG.isInfoEnabled()) {
+                            LOG.info("Readers closed: New reader was opened for index " + definitionID + "." + nodeID + ".");
+                        }
+                    }
+                }
+                else {
+                    // Only re-opens change the searchers, and they hold the lock, so all of them
+                    // have the same reader.
+                    IndexSearcher oldSearcher = searchers.get(0);
+                    DirectoryReader newReader = DirectoryReader.openIfChanged((DirectoryReader) oldSearcher.getIndexReader());
+                    if (newReader == null) {
+                        return; // The index hasn't changed, keep the current searchers.
+                    }
+
+                    // Warm the new searcher before it becomes visible.
+                    IndexSearcher newSearcher = newSearcher(newReader);
+                    SearcherWarmer.getInstance().warm(definitionID, newSearcher);
+                    publish(oldSearcher.getIndexReader(), newSearcher);
+
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Readers re-opened: Reader was re-opened for index " + definitionID + "." + nodeID + ".");
+                    }
+                }
+            }
+            catch (IOException e) {
+                LOG.fatal("Error trying to open reader. Error: " + e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Makes the (node.readers) searchers use a new reader. Each searcher holds a
+     * reference of the reader. Must be called holding the re-open lock.
+     *
+     * @param oldReader   The reader of the current searchers, or NULL if there
+     *                    are no searchers yet.
+     * @param newSearcher The searcher of the new reader, already warmed.
+     *
+     * @throws IOException If the old reader can't be released.
+     */
+    private void publish(IndexReader oldReader, IndexSearcher newSearcher) throws IOException
+    {
+        int readersQt = oldReader == null ? Math.max(CONF.getInt("node.readers", 10), 1) : searchers.size();
+        IndexReader newReader = newSearcher.getIndexReader();
+        for (int k = 0; k < readersQt; k++) {
+            IndexSearcher slot = k == 0 ? newSearcher : newSearcher(newReader);
+            if (k > 0) {
+                newReader.incRef();
+            }
+
+            if (oldReader == null) {
+                putSearcher(null, slot);
+            }
+            else {
+                putSearcher(searchers.get(k), slot);
+                oldReader.decRef(); // Closed when the last search using it is done.
+            }
+        }
+    }
+
+    /**
+     * This method checks if at least one reader of this index is open.
+     *
+     * @param reOpenReaders If the reader/s should be re-open first.
+     *
+     * @return TRUE if the reader is open, FALSE otherwise.
+     */
+    boolean areSearchersOpen(boolean reOpenReaders)
+    {
+        // First try to open readers.
+        openSearchers(reOpenReaders);
+
+        synchronized (searchers) {
+            for (IndexSearcher e : searchers) {
+                if (e != null && e.getIndexReader().tryIncRef()) {
+                    try {
+                        e.getIndexReader().decRef();
+                    }
+                    catch (IOException ex) {
+                        LOG.error("Error decrementing reader reference. Error: " + ex.toString());
+                    }
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This method cleans/deletes up all the files of this index.
+     *
+     * @return TRUE if the files had been deleted, FALSE otherwise.
+     */
+    boolean clean()
+    {
+        if (writer != null) {
+            return false;
+        }
+
+        if (GeneralUtilities.directoryExists(path)) {
+            if (!GeneralUtilities.deleteDirectoryContents(path, true)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
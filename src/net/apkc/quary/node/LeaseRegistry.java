@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.apkc.quary.reactor.Searcher;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Registry of point-in-time leases.
+ *
+ * <p>
+ * A lease pins the reader a search was made with, so the next pages of the
+ * same search can be made with it too and don't see documents shifting while
+ * the index is refreshed. The lease holds a reference to the reader, which is
+ * given back when the lease hasn't been used for its TTL. The number of open
+ * leases is bounded, since every pinned reader keeps its segments open. When
+ * the bound is reached no new leases are given.
+ * </p>
+ *
+ * <p>
+ * The cache only evicts expired leases when it's used, so a background thread
+ * cleans it up every quarter of the TTL. Otherwise the leases of an idle node
+ * would keep their readers pinned forever.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class LeaseRegistry
+{
+
+    private static final Logger LOG = Logger.getLogger(LeaseRegistry.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final LeaseRegistry INSTANCE = new LeaseRegistry();
+    private static final int MAX_LEASES = CONF.getInt("node.leases.max", 64);
+    private final long TTL = Math.max(CONF.getLong("node.leases.ttl", 300000L), 1L);
+    private final Cache<String, Lease> LEASES = CacheBuilder
+            .newBuilder()
+            .expireAfterAccess(TTL, TimeUnit.MILLISECONDS)
+            .removalListener((RemovalListener<String, Lease>) (n) -> {
+                n.getValue().release();
+            })
+            .build();
+    private final ScheduledExecutorService CLEANER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("QUARY:LEASES:%d")
+            .setDaemon(true)
+            .build());
+
+    /**
+     * Private default constructor.
+     */
+    private LeaseRegistry()
+    {
+        long period = Math.max(TTL / 4, 1000L);
+        CLEANER.scheduleWithFixedDelay(() -> {
+            LEASES.cleanUp(); // The removal listener gives back the readers of the expired leases.
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static LeaseRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Opens a lease on the reader of a searcher.
+     *
+     * @param index       The index of the searcher.
+     * @param searcher    An open searcher, obtained from the index.
+     * @param scoringTime The time against which the age of documents is computed,
+     *                    which is pinned too, so scores don't change between pages.
+     *
+     * @return The ID of the lease, or NULL if the maximum number of leases are
+     *         open.
+     */
+    synchronized String open(IndexState index, Searcher searcher, long scoringTime)
+    {
+        LEASES.cleanUp(); // Give back the expired leases first.
+        if (LEASES.size() >= MAX_LEASES) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Lease not opened, " + MAX_LEASES + " leases are open.");
+            }
+
+            return null;
+        }
+
+        IndexSearcher s = searcher.getSearcher();
+        if (!s.getIndexReader().tryIncRef()) {
+            return null;
+        }
+
+        String id = UUID.randomUUID().toString();
+        LEASES.put(id, new Lease(index.getDefinitionID() + "." + index.getNodeID(), s, scoringTime));
+
+        return id;
+    }
+
+    /**
+     * Returns a searcher with the reader pinned by a lease, and extends the
+     * lease. Like the searchers of the index, it must be given back by calling
+     * IndexState.release().
+     *
+     * @param index The index the lease must belong to.
+     * @param id    The ID of the lease.
+     *
+     * @return The searcher, or NULL if the lease has expired or doesn't belong to
+     *         the index.
+     */
+    Searcher acquire(IndexState index, String id)
+    {
+        Lease lease = LEASES.getIfPresent(id);
+        if (lease == null || !lease.indexKey.equals(index.getDefinitionID() + "." + index.getNodeID())) {
+            return null;
+        }
+
+        if (!lease.wrapper.getSearcher().getIndexReader().tryIncRef()) {
+            return null;
+        }
+
+        return lease.wrapper;
+    }
+
+    /**
+     * Returns the scoring time pinned by a lease.
+     *
+     * @param id The ID of the lease.
+     *
+     * @return The scoring time of the lease, or the current one if the lease has
+     *         expired.
+     */
+    long getScoringTime(String id)
+    {
+        Lease lease = LEASES.getIfPresent(id);
+        return lease != null ? lease.scoringTime : NodeImplementation.getScoringTime();
+    }
+
+    /**
+     * Returns the metrics of the leases in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        LEASES.cleanUp();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<leases>");
+        xml.append("<open>").append(LEASES.size()).append("</open>");
+        xml.append("<max>").append(MAX_LEASES).append("</max>");
+        xml.append("</leases>");
+
+        return xml.toString();
+    }
+
+    /**
+     * An open lease.
+     */
+    private static final class Lease
+    {
+
+        final String indexKey;
+        /** The searcher given to the searches of the lease. */
+        final Searcher wrapper;
+        final long scoringTime;
+
+        Lease(String indexKey, IndexSearcher searcher, long scoringTime)
+        {
+            this.indexKey = indexKey;
+            this.wrapper = Searcher
+                    .newBuild()
+                    .setIsOpen(true)
+                    .setSearcher(searcher)
+                    .setShouldClose(false)
+                    .checkObject();
+            this.scoringTime = scoringTime;
+        }
+
+        void release()
+        {
+            try {
+                wrapper.getSearcher().getIndexReader().decRef();
+            }
+            catch (IOException e) {
+                LOG.error("Error releasing leased reader. Error: " + e.toString(), e);
+            }
+        }
+    }
+}
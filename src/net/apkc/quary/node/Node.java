@@ -25,7 +25,9 @@
  */
 package net.apkc.quary.node;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import net.apkc.quary.util.QuaryWritable;
@@ -40,10 +42,21 @@ import org.apache.log4j.Logger;
 public final class Node extends QuaryWritable
 {
 
+    /** The UID computed for the first release, kept so stored nodes can still be read. */
+    private static final long serialVersionUID = 2093217954291834610L;
     private static final Logger LOG = Logger.getLogger(Node.class.getName());
+    /**
+     * Written before the serialized node, followed by the format version. It
+     * can't be the length of the ID written first by the legacy format, which had
+     * no version.
+     */
+    private static final int FORMAT_MARKER = 0xFFFF;
+    /** Version 1 added the search port. */
+    private static final byte FORMAT_VERSION = 1;
     private String nodeID = "";
     private String ipAddress = "";
     private int port = 15000;
+    private int searchPort = 0; // 0 means searches are served on the main port.
 
     public static Node newBuild()
     {
@@ -60,7 +73,7 @@ public final class Node extends QuaryWritable
         return this;
     }
 
-    String getNodeID()
+    public String getNodeID()
     {
         return nodeID;
     }
@@ -101,6 +114,41 @@ public final class Node extends QuaryWritable
         return port;
     }
 
+    /**
+     * The port of the RPC server of the node that only serves searches, so they
+     * don't queue behind writes.
+     *
+     * @param newString The port number.
+     *
+     * @return This object.
+     */
+    public Node setSearchPort(String newString)
+    {
+        if (newString == null || newString.isEmpty()) {
+            return this;
+        }
+
+        try {
+            searchPort = Integer.parseInt(newString);
+        }
+        catch (Exception e) {
+            LOG.warn("Impossible to parse node search port. Using main port.", e);
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the port where searches must be sent.
+     *
+     * @return The search port, or the main port if the node has no search
+     *         server.
+     */
+    public int getSearchPort()
+    {
+        return searchPort > 0 ? searchPort : port;
+    }
+
     @Override
     public String toString()
     {
@@ -113,17 +161,49 @@ public final class Node extends QuaryWritable
     @Override
     public void internalWrite(DataOutput out) throws IOException
     {
+        out.writeShort(FORMAT_MARKER);
+        out.writeByte(FORMAT_VERSION);
         out.writeUTF(nodeID);
         out.writeUTF(ipAddress);
         out.writeInt(port);
+        out.writeInt(searchPort);
     }
 
     @Override
     public void internalRead(DataInput in) throws IOException
     {
-        nodeID = in.readUTF();
+        int head = in.readUnsignedShort();
+        byte format = 0;
+        if (head == FORMAT_MARKER) {
+            format = in.readByte();
+            nodeID = in.readUTF();
+        }
+        else {
+            nodeID = readLegacyUTF(in, head);
+        }
         ipAddress = in.readUTF();
         port = in.readInt();
+        searchPort = format >= 1 ? in.readInt() : 0;
+    }
+
+    /**
+     * Reads a string written with writeUTF() whose length has already been read.
+     *
+     * @param in     The input.
+     * @param length The length in bytes of the string.
+     *
+     * @return The string.
+     *
+     * @throws IOException If the string can't be read.
+     */
+    private static String readLegacyUTF(DataInput in, int length) throws IOException
+    {
+        byte[] bytes = new byte[length + 2];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        in.readFully(bytes, 2, length);
+
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(bytes)));
     }
 
     @Override
@@ -133,6 +213,15 @@ public final class Node extends QuaryWritable
         return this.nodeID.compareTo(otherNode.nodeID);
     }
 
+    /**
+     * Two nodes are the same node if they have the same ID, address and port.
+     * The search port isn't part of the identity, since it can change when the
+     * node registers again.
+     *
+     * @param obj The other node.
+     *
+     * @return TRUE if both are the same node.
+     */
     @Override
     public boolean equals(Object obj)
     {
@@ -162,7 +251,8 @@ public final class Node extends QuaryWritable
             return ((Node) super.clone())
                     .setNodeID(nodeID)
                     .setIpAddress(ipAddress)
-                    .setPort(String.valueOf(port));
+                    .setPort(String.valueOf(port))
+                    .setSearchPort(String.valueOf(searchPort));
         }
         catch (CloneNotSupportedException e) {
             LOG.warn("Error cloning *Node* object.", e);
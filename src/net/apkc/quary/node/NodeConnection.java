@@ -31,6 +31,7 @@ import net.apkc.quary.exceptions.ZeroNodesException;
 import net.apkc.quary.util.QuaryConfiguration;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.VersionedProtocol;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.UserGroupInformation;
 
@@ -52,11 +53,32 @@ public class NodeConnection
      */
     public static NodeInterface getConnection(Node node) throws IOException, ZeroNodesException
     {
-        return RPC.getProtocolProxy(NodeInterface.class,
-                                    NodeInterface.versionID,
+        return getConnection(NodeInterface.class, NodeInterface.versionID, node, node.getPort());
+    }
+
+    /**
+     * Establish a live connection to the search server of a given node. Searches
+     * are served by their own handlers there, so they don't wait behind writes.
+     *
+     * @param node The node where to open the connection to.
+     *
+     * @return A NodeSearchInterface object. It can only be used for searching.
+     *
+     * @throws ZeroNodesException If no nodes was found.
+     * @throws IOException        If a connection wasn't possible.
+     */
+    public static NodeSearchInterface getSearchConnection(Node node) throws IOException, ZeroNodesException
+    {
+        return getConnection(NodeSearchInterface.class, NodeSearchInterface.versionID, node, node.getSearchPort());
+    }
+
+    private static <T extends VersionedProtocol> T getConnection(Class<T> protocol, long version, Node node, int port) throws IOException, ZeroNodesException
+    {
+        return RPC.getProtocolProxy(protocol,
+                                    version,
                                     new InetSocketAddress(
                                             node.getIpAddress(),
-                                            node.getPort()),
+                                            port),
                                     UserGroupInformation.getCurrentUser(),
                                     CONF,
                                     NetUtils.getDefaultSocketFactory(CONF),
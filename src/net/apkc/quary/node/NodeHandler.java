@@ -108,9 +108,13 @@ public final class NodeHandler
         final Node NEW_NODE = node.setNodeID(NODE_ID);
 
         synchronized (NODES) {
-            if (!NODES.contains(NEW_NODE)) {
+            int position = NODES.indexOf(NEW_NODE);
+            if (position < 0) {
                 NODES.add(NEW_NODE);
             }
+            else if (NODES.get(position).getSearchPort() != NEW_NODE.getSearchPort()) {
+                NODES.set(position, NEW_NODE); // The node registered again with another search port.
+            }
             else {
                 return;
             }
@@ -119,6 +123,7 @@ public final class NodeHandler
                 LOG.info("****** NEW NODE ******");
                 LOG.info("* Host ==> " + NEW_NODE.getIpAddress());
                 LOG.info("* Port ==> " + NEW_NODE.getPort());
+                LOG.info("* Search Port ==> " + NEW_NODE.getSearchPort());
                 LOG.info("* Nodes Hive ==>");
                 NODES.stream().forEach((Node n) -> {
                     LOG.info("\t" + n.toString());
@@ -25,66 +25,58 @@
  */
 package net.apkc.quary.node;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.TreeMap;
-import net.apkc.quary.analyzers.EnglishAnalyzer;
-import net.apkc.quary.analyzers.QuaryAnalyzer;
 import net.apkc.quary.definitions.index.IndexDefinition;
 import net.apkc.quary.definitions.index.IndexDefinitionField;
 import net.apkc.quary.docs.QuaryDocument;
-import net.apkc.quary.filters.DateRangeFilter;
+import net.apkc.quary.filters.ConjunctionFilter;
 import net.apkc.quary.filters.QuaryFilter;
 import net.apkc.quary.filters.QuaryFilters;
+import net.apkc.quary.reactor.Aggregations;
 import net.apkc.quary.reactor.Parameters;
 import net.apkc.quary.reactor.Result;
+import net.apkc.quary.reactor.ResultSet;
 import net.apkc.quary.reactor.Searcher;
-import net.apkc.quary.util.Constants;
+import net.apkc.quary.reactor.Summarizer;
 import net.apkc.quary.util.GeneralUtilities;
-import net.apkc.quary.util.Normalizer;
 import net.apkc.quary.util.QuaryConfiguration;
-import net.apkc.quary.util.Rank;
 import net.apkc.quary.util.Timer;
-import org.apache.commons.lang.math.RandomUtils;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.ipc.ProtocolSignature;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
-import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.document.FloatField;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.FieldInfo;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queries.ChainedFilter;
-import org.apache.lucene.queries.TermsFilter;
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.queries.function.FunctionQuery;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Filter;
-import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TermRangeFilter;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocsCollector;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.search.similarities.DefaultSimilarity;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.Version;
+import org.apache.lucene.util.NumericUtils;
 
 class NodeImplementation implements NodeInterface
 {
@@ -92,8 +84,11 @@ class NodeImplementation implements NodeInterface
     private static final Logger LOG = Logger.getLogger(NodeImplementation.class.getName());
     private static final Configuration CONF = new QuaryConfiguration().create();
     private static final int MAX_URL_LENGTH = 80;
-    private static final List<IndexSearcher> SEARCHERS = Collections.synchronizedList(new ArrayList<IndexSearcher>(0));
-    private static volatile IndexWriter writer = null; // This object should be accesed from within the entire package.
+    /** The stored fields of a document that are read when it's updated. */
+    private static final String[] REPLACED_FIELDS = {"indextime", "digest", "segment", "boost"};
+    private static final boolean GRAVITY_ENABLED = CONF.getBoolean("node.scoring.gravity.enabled", true);
+    private static final long GRAVITY_RESOLUTION = Math.max(CONF.getLong("node.scoring.gravity.resolution", 60000L), 1L);
+    private static final int DEDUPLICATION_OVERFETCH = Math.max(CONF.getInt("node.search.deduplication.overfetch", 3), 1);
 
     @Override
     public void shutdown()
@@ -123,17 +118,9 @@ class NodeImplementation implements NodeInterface
     public int close(String definitionID, Node node)
     {
         try {
-            if (writer != null) {
-                writer.close(); // Close the writer.
-                writer = null; // Allow for GC to recall this object.
-            }
-
-            // The index has changed, so update the readers.
-            if (areSearchersOpen(true, definitionID, node)) {
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Index changed: All readers where updated.");
-                }
-            }
+            // Close the writer, if nobody else is using it. The readers are then updated in the
+            // background, so the close doesn't wait for their warming.
+            IndexRegistry.getInstance().getIndex(definitionID, node).closeWriter();
 
             return 0;
         }
@@ -160,11 +147,7 @@ class NodeImplementation implements NodeInterface
     {
         try {
             // Open an index writer to instance index.
-            writer = new IndexWriter(
-                    FSDirectory.open(new File(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID())),
-                    new IndexWriterConfig(Version.LUCENE_46, EnglishAnalyzer.newBuild().enableFiltering(true).enableStemming(true))
-                    .setUseCompoundFile(true)
-                    .setSimilarity(new DefaultSimilarity()));
+            IndexRegistry.getInstance().getIndex(definitionID, node).openWriter();
 
             return 0;
         }
@@ -175,531 +158,875 @@ class NodeImplementation implements NodeInterface
     }
 
     @Override
-    public void write(Text key, QuaryDocument doc, IndexDefinition def, long elapsedTime)
+    public void write(Text key, QuaryDocument doc, IndexDefinition def, Node node, long elapsedTime)
     {
-        DirectoryReader rdr = null;
-        IndexSearcher scr;
-        TreeMap<String, Field> fields = new TreeMap<>();
-        try {
-            Document newDoc = new Document();
-
-            for (IndexDefinitionField f : def.getFields()) {
-                FieldType type = new FieldType();
-                type.setDocValueType(f.getDocValueType() == null ? null : FieldInfo.DocValuesType.valueOf(f.getDocValueType()));
-                type.setIndexOptions(FieldInfo.IndexOptions.valueOf(f.getIndexOptions()));
-                type.setIndexed(f.getFieldProperty(IndexDefinitionField.OptionID.INDEXED));
-                type.setNumericPrecisionStep(f.getNumericPrecisionStep());
-                type.setNumericType(f.getNumericType() == null ? null : FieldType.NumericType.valueOf(f.getNumericType()));
-                type.setOmitNorms(f.getFieldProperty(IndexDefinitionField.OptionID.OMIT_NORMS));
-                type.setStoreTermVectorOffsets(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_OFFSETS));
-                type.setStoreTermVectorPayloads(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_PAYLOADS));
-                type.setStoreTermVectorPositions(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_POSITIONS));
-                type.setStoreTermVectors(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTORS));
-                type.setStored(f.getFieldProperty(IndexDefinitionField.OptionID.STORED));
-                type.setTokenized(f.getFieldProperty(IndexDefinitionField.OptionID.TOKENIZED));
-
-                Field field = new Field(f.getFieldName(), doc.getFieldValue(f.getFieldName()), type);
-                if (type.indexed()) {
-                    field.setBoost(f.getFieldBoost());
-                    field.tokenStream(QuaryAnalyzer.getAnalyzer(f.getAnalyzer()));
-                }
-
-                fields.put(f.getFieldName(), field);
-            }
-
-            // Add all fields to document.
-            fields.entrySet().stream().forEach((e) -> {
-                newDoc.add(e.getValue());
-            });
-
-            // Force the signature.
-            FieldType type = new FieldType();
-            type.setIndexed(true);
-            type.setStored(true);
-            type.setTokenized(false);
-            newDoc.add(new Field("signature", doc.getSignature(), type));
+        IndexState index = IndexRegistry.getInstance().getIndex(def.getDefinitionID(), node);
+        IndexWriter writer = index.pinWriter(); // Can't be closed by another thread while the document is written.
+        Analyzer analyzer = AnalysisCache.getInstance().getAnalyzer(def); // Each field is analyzed with the analyzer declared for it.
+        if (writer == null) {
+            LOG.error("The writer of index " + def.getDefinitionID() + "." + node.getNodeID() + " isn't open. The document won't be indexed.");
+            return;
+        }
 
-            rdr = DirectoryReader.open(writer, true); // Always return an NRT reader. Dispose it at the end.
-            scr = new IndexSearcher(rdr);
+        try {
+            // The document and its fields are reused by this thread, and updated in place from here on.
+            DocumentTemplate template = DocumentTemplate.fill(def, doc);
+            Document newDoc = template.getDocument();
 
             // If it exists then return the document that matches this URL. Documents are always unique in their URLs.
-            // No two exact URLs can exists in the index at the same time.
-            Query uniqueID = new TermQuery(new Term("signature", doc.getSignature()));
-            TopDocs uniqueIDDoc = scr.search(uniqueID, 1);
+            // No two exact URLs can exists in the index at the same time. The writer isn't flushed for the lookup.
+            Document kernelIndexExistingDocument = index.findDocument(writer, doc.getSignature());
 
             // NEW DOCUMENT
-            if (uniqueIDDoc.totalHits == 0) {
+            if (kernelIndexExistingDocument == null) {
                 if (LOG.isInfoEnabled()) {
-                    LOG.info("Indexing: [" + GeneralUtilities.trimURL(newDoc.get("url"), MAX_URL_LENGTH) + "] " + "Hash: [" + MD5Hash.digest(newDoc.get("url")).toString() + "]");
+                    LOG.info("Indexing: [" + GeneralUtilities.trimURL(doc.getFieldValue("url"), MAX_URL_LENGTH) + "]");
                 }
-
-                // Add gravity to boost.
-                float boostWithoutGravity = Float.parseFloat(newDoc.get("boost"));
-                double gravity = Rank.calculateGravity(String.valueOf(System.currentTimeMillis() - Long.parseLong(newDoc.get("indextime"))));
-                fields.get("boostwithgravity").setStringValue(String.valueOf(Normalizer.normalize(boostWithoutGravity / gravity) * 10));
-
-                // Save gravity field, in the same format as the SocialCoefficient. [12 seconds ago] - 0.9999919691519064
-                fields.get("gravity").setStringValue(
-                        "[" + GeneralUtilities.computeOperationTime(Long.parseLong(newDoc.get("indextime")), System.currentTimeMillis(), "s", true) + " seconds ago]"
-                        + "-"
-                        + String.valueOf(gravity));
-
-                // Save indexable time fields.
-                // Note: DateTools saves dates in GMT time. We must substract -4 for PY.
-                fields.get("itsecond").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.SECOND));
-                fields.get("itminute").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.MINUTE));
-                fields.get("ithour").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.HOUR));
-                fields.get("itday").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.DAY));
-                fields.get("itmonth").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.MONTH));
-                fields.get("ityear").setStringValue(DateTools.timeToString(Long.valueOf(newDoc.get("indextime")), DateTools.Resolution.YEAR));
-
-                // Re-Add all fields to document.
-                fields.entrySet().stream().forEach((e) -> {
-                    newDoc.add(e.getValue());
-                });
-
-                // Write the new document.
-                writer.addDocument(newDoc);
-                writer.commit();
             }
             // EXISTING DOCUMENT
             else {
-                ScoreDoc[] hits = uniqueIDDoc.scoreDocs;
-                for (ScoreDoc hit1 : hits) {
-                    int docId = hit1.doc;
-                    Document kernelIndexExistingDocument = scr.doc(docId);
-
-                    // IMPORTANT!!! The index date should never be updated, since it reflects the exact moment that the doc was first indexed.
-                    // Save original index date.
-                    String originalIndexDate = kernelIndexExistingDocument.get("indextime");
-
-                    // Update the doc with the original date.
-                    fields.get("indextime").setStringValue(originalIndexDate);
-                    if (LOG.isInfoEnabled()) {
-                        LOG.info("Updating: [" + GeneralUtilities.trimURL(newDoc.get("url"), MAX_URL_LENGTH) + "] " + "Hash: [" + MD5Hash.digest(newDoc.get("url")).toString() + "]");
-                    }
-                    if (!kernelIndexExistingDocument.get("digest").equalsIgnoreCase(newDoc.get("digest")) && LOG.isDebugEnabled()) {
+                // IMPORTANT!!! The index date should never be updated, since it reflects the exact moment that the doc was first indexed.
+                // Save original index date.
+                String originalIndexDate = kernelIndexExistingDocument.get("indextime");
+
+                // Update the doc with the original date.
+                template.setValue("indextime", originalIndexDate);
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Updating: [" + GeneralUtilities.trimURL(doc.getFieldValue("url"), MAX_URL_LENGTH) + "]");
+                }
+                if (LOG.isDebugEnabled()) {
+                    if (!kernelIndexExistingDocument.get("digest").equalsIgnoreCase(doc.getFieldValue("digest"))) {
                         LOG.debug("Signatures don't match!");
                     }
-                    if (!kernelIndexExistingDocument.get("segment").equalsIgnoreCase(newDoc.get("segment")) && LOG.isDebugEnabled()) {
+                    if (!kernelIndexExistingDocument.get("segment").equalsIgnoreCase(doc.getFieldValue("segment"))) {
                         LOG.debug("Segments don't match!");
                     }
 
-                    // Check the old score against the new one. If new > old then all is correct and perform notification to console. Else if
-                    // old > new then probably something wrong has occur and a notification via email is to be sent.
-                    if (Float.parseFloat(kernelIndexExistingDocument.get("boost")) < Float.parseFloat(newDoc.get("boost")) && LOG.isDebugEnabled()) {
+                    // Check the old score against the new one. If new > old then all is correct and perform notification to console.
+                    float previousBoost = Float.parseFloat(kernelIndexExistingDocument.get("boost"));
+                    float currentBoost = Float.parseFloat(doc.getFieldValue("boost"));
+                    if (previousBoost < currentBoost) {
                         LOG.debug("Scores don't match!");
-                        LOG.debug("Previous: " + kernelIndexExistingDocument.get("boost"));
-                        LOG.debug("Current: " + newDoc.get("boost"));
-                    }
-                    else if (Float.parseFloat(kernelIndexExistingDocument.get("boost")) > Float.parseFloat(newDoc.get("boost"))) {
-                        // Nothing to do here...
+                        LOG.debug("Previous: " + previousBoost);
+                        LOG.debug("Current: " + currentBoost);
                     }
-
-                    // Delete the old document.
-                    writer.deleteDocuments(new Term("signature", doc.getSignature())); // Borrar el documento viejo.
-
-                    // Add gravity to boost.
-                    float boostWithoutGravity = Float.parseFloat(newDoc.get("boost"));
-                    double gravity = Rank.calculateGravity(String.valueOf(System.currentTimeMillis() - Long.parseLong(originalIndexDate)));
-                    fields.get("boostwithgravity").setStringValue(String.valueOf(Normalizer.normalize(boostWithoutGravity / gravity) * 10));
-
-                    // Save gravity field, in the same format as the SocialCoefficient. [12 seconds ago] - 0.9999919691519064
-                    fields.get("gravity").setStringValue(
-                            "[" + GeneralUtilities.computeOperationTime(Long.parseLong(originalIndexDate), System.currentTimeMillis(), "s", true) + " seconds ago]"
-                            + "-"
-                            + String.valueOf(gravity));
-
-                    // Save indexable time fields.
-                    // Note: DateTools saves dates in GMT time. We must substract -4 for PY.
-                    fields.get("itsecond").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.SECOND));
-                    fields.get("itminute").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.MINUTE));
-                    fields.get("ithour").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.HOUR));
-                    fields.get("itday").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.DAY));
-                    fields.get("itmonth").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.MONTH));
-                    fields.get("ityear").setStringValue(DateTools.timeToString(Long.valueOf(originalIndexDate), DateTools.Resolution.YEAR));
-
-                    // Re-Add all fields to document.
-                    fields.entrySet().stream().forEach((e) -> {
-                        newDoc.add(e.getValue());
-                    });
-
-                    // Write the new document.
-                    writer.addDocument(newDoc);
-                    writer.commit();
                 }
             }
+
+            // Write the new document, deleting the old one if it exists. The writer is committed by the index every few documents.
+            writer.updateDocument(new Term("signature", doc.getSignature()), newDoc, analyzer);
+            index.recordWrite(writer, doc.getSignature(), getReplacedFields(newDoc));
         }
         catch (IOException | NumberFormatException e) {
             LOG.error("Error adding new document to IndexServer's index. Error: " + e.toString(), e);
         }
         finally {
-            try {
-                // Always close the searcher, and reader.
-                if (rdr != null) {
-                    rdr.close();
-                }
-            }
-            catch (IOException e) {
-                LOG.error("Error closing down IndexServer's readers after adding new document. Error: " + e.toString(), e);
+            index.unpinWriter();
+        }
+    }
+
+    /**
+     * Copies the stored fields of a written document that are read when it's
+     * updated. The document itself is reused for the next write.
+     *
+     * @param doc The document.
+     *
+     * @return The copy.
+     */
+    private static Document getReplacedFields(Document doc)
+    {
+        Document copy = new Document();
+        for (String name : REPLACED_FIELDS) {
+            String value = doc.get(name);
+            if (value != null) {
+                copy.add(new StoredField(name, value));
             }
         }
+
+        return copy;
     }
 
     @Override
-    public Text search(Configuration conf, IndexDefinition def, Node node, Parameters params)
+    public ResultSet search(Configuration conf, IndexDefinition def, Node node, Parameters params)
     {
-        StringBuilder xml = new StringBuilder();
-        Query query;
-        TopScoreDocCollector collector;
+        return searchBatch(conf, def, node, new Parameters[]{params})[0];
+    }
+
+    @Override
+    public ResultSet[] searchBatch(Configuration conf, IndexDefinition def, Node node, Parameters[] batch)
+    {
+        ResultSet[] results = new ResultSet[batch.length];
+        if (batch.length == 0) {
+            return results;
+        }
+
         Timer timer = new Timer();
         timer.starTimer();
-        Searcher searcher;
-        // Weights
-        HashMap<String, Float> boosts = new HashMap<>();
-        // Analyzer
-        Map<String, Analyzer> analyzerPerField = new HashMap<>();
-        // Searchable fields.
-        List<String> sf = new ArrayList<>();
+        long received = System.currentTimeMillis();
+        IndexState index = IndexRegistry.getInstance().getIndex(def.getDefinitionID(), node);
 
+        ParallelSearcher.getInstance().enter();
         try {
-            searcher = getOpenSearcher(def.getDefinitionID(), node);
-            if (!searcher.getIsOpen()) {
-                xml.append(Result.dummyResult(timer.computeOperationTime(Timer.Time.SECOND)));
-
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("No open searchers are available for searching.");
-                }
-
-                return new Text(xml.toString());
+            // Keep track of the queries, so new searchers can be warmed with real traffic.
+            for (Parameters params : batch) {
+                SearcherWarmer.getInstance().record(def, params);
             }
 
-            searcher.getSearcher().setSimilarity(new DefaultSimilarity());
-
-            for (IndexDefinitionField f : def.getFields()) {
-                boosts.put(f.getFieldName(), f.getFieldBoost());
-                analyzerPerField.put(f.getFieldName(), QuaryAnalyzer.getAnalyzer(f.getAnalyzer()));
-                if (f.getSearchable()) {
-                    sf.add(f.getFieldName());
-                }
+            // Searches with different leases use different readers, so the batch is split by lease.
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            for (int k = 0; k < batch.length; k++) {
+                groups.computeIfAbsent(getLeaseGroup(batch[k]), (String g) -> new ArrayList<>()).add(k);
+            }
+            for (List<Integer> group : groups.values()) {
+                searchGroup(def, node, index, batch, group, results, timer, received);
             }
 
-            PerFieldAnalyzerWrapper analyzer = new PerFieldAnalyzerWrapper(EnglishAnalyzer.newBuild(), analyzerPerField); // #TODO: Detect language.
+            return results;
+        }
+        finally {
+            ParallelSearcher.getInstance().exit();
+        }
+    }
 
-            // Build the query.
-            MultiFieldQueryParser queryParser = new MultiFieldQueryParser(Version.LUCENE_46, sf.toArray(new String[0]), analyzer, boosts);
-            query = queryParser.parse(params.getQueryString());
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Query: " + query.toString());
-            }
+    /**
+     * Returns the group of a search in a batch. Searches with the same lease are
+     * made together, and so are the searches that open a new lease, which
+     * share it.
+     *
+     * @param params The parameters of the search.
+     *
+     * @return The group.
+     */
+    private static String getLeaseGroup(Parameters params)
+    {
+        if (!params.getLeaseID().isEmpty()) {
+            return "lease:" + params.getLeaseID();
+        }
 
-            // Request N documents from the index, but offsets are available, so pagination is enabled.
-            // Use the endOffset in this case as the results quantity, otherwise it doesn't work.
-            collector = TopScoreDocCollector.create(params.getEndOffset(), true);
-
-            // Set up the query filters.
-            List<Filter> fltr = new ArrayList<>(0);
-            for (QuaryFilter filter : params.getFilters().getFilters()) {
-                switch (filter.getType()) {
-                    case QuaryFilters.DATE_RANGE_FILTER:
-                        // Create the number range filter for timestamps.
-                        long now = System.currentTimeMillis();
-                        long second = 1000L;
-                        long minute = 60000L;
-                        long hour = 3600000L;
-                        long day = 86400000L;
-                        long month = 2592000000L;
-                        long year = 31104000000L;
-                        BytesRef lowerTimestamp = null;
-                        BytesRef upperTimestamp = null;
-                        Filter rangeFilter = null;
-
-                        switch (filter.getDateRange()) {
-                            case DateRangeFilter.SECOND_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (second * filter.getTimeFactor()), DateTools.Resolution.SECOND));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.SECOND));
-                                rangeFilter = new TermRangeFilter("itsecond", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                            case DateRangeFilter.MINUTE_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (minute * filter.getTimeFactor()), DateTools.Resolution.MINUTE));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.MINUTE));
-                                rangeFilter = new TermRangeFilter("itminute", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                            case DateRangeFilter.HOUR_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (hour * filter.getTimeFactor()), DateTools.Resolution.HOUR));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.HOUR));
-                                rangeFilter = new TermRangeFilter("ithour", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                            case DateRangeFilter.DAY_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (day * filter.getTimeFactor()), DateTools.Resolution.DAY));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.DAY));
-                                rangeFilter = new TermRangeFilter("itday", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                            case DateRangeFilter.MONTH_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (month * filter.getTimeFactor()), DateTools.Resolution.MONTH));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.MONTH));
-                                rangeFilter = new TermRangeFilter("itmonth", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                            case DateRangeFilter.YEAR_RANGE:
-                                lowerTimestamp = new BytesRef(DateTools.timeToString(now - (year * filter.getTimeFactor()), DateTools.Resolution.YEAR));
-                                upperTimestamp = new BytesRef(DateTools.timeToString(now, DateTools.Resolution.YEAR));
-                                rangeFilter = new TermRangeFilter("ityear", lowerTimestamp, upperTimestamp, true, true);
-                                break;
-                        }
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Lower Timestamp: " + lowerTimestamp);
-                            LOG.debug("Upper Timestamp: " + upperTimestamp);
-                            LOG.debug("Now - 6 months: " + (now - (month * 6)));
-                            LOG.debug(" Now: " + now);
-                            LOG.debug(" 6 months back: " + (month * 6));
-                        }
+        return params.getOpenLease() ? "open" : "none";
+    }
 
-                        fltr.add(rangeFilter);
-                        break;
-                    case QuaryFilters.TERM_FILTER:
-                        TermsFilter termFilter = new TermsFilter(new Term(filter.getField(), filter.getTerm()));
-                        fltr.add(termFilter);
-                        break;
+    /**
+     * Performs the searches of a batch that belong to the same lease group. The
+     * searcher is acquired once for the whole group.
+     *
+     * @param def      The definition object to use.
+     * @param node     The node where the index is at.
+     * @param index    The index.
+     * @param batch    The parameters of every search of the batch.
+     * @param group    The positions of the searches of the group in the batch.
+     * @param results  Where to put the result sets, by position in the batch.
+     * @param timer    The timer of the batch.
+     * @param received The time when the batch was received.
+     */
+    private static void searchGroup(IndexDefinition def, Node node, IndexState index, Parameters[] batch, List<Integer> group, ResultSet[] results, Timer timer, long received)
+    {
+        Parameters first = batch[group.get(0)];
+        Searcher searcher = null;
+        String leaseID = null;
+
+        try {
+            // Next pages of a search with a lease use the same reader. If the lease has expired
+            // a new one is opened.
+            if (!first.getLeaseID().isEmpty()) {
+                searcher = LeaseRegistry.getInstance().acquire(index, first.getLeaseID());
+                if (searcher != null) {
+                    leaseID = first.getLeaseID();
                 }
             }
-
-            // Search the index.
-            if (fltr.size() > 0) {
-                searcher.getSearcher().search(query, new ChainedFilter(fltr.toArray(new Filter[fltr.size()]), ChainedFilter.AND), collector);
+            if (searcher == null) {
+                searcher = index.getOpenSearcher();
+                if (searcher.getIsOpen() && (first.getOpenLease() || !first.getLeaseID().isEmpty())) {
+                    leaseID = LeaseRegistry.getInstance().open(index, searcher, getScoringTime());
+                }
             }
-            else {
-                searcher.getSearcher().search(query, collector);
+            if (!searcher.getIsOpen()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No open searchers are available for searching.");
+                }
+
+                for (int k : group) {
+                    results[k] = finishResultSet(null, null, timer);
+                }
+
+                return;
             }
-            // If the collector is null, then the search has not been done well. Return a dummy result.
-            if (collector == null) {
-                xml.append(Result.dummyResult(timer.computeOperationTime(Timer.Time.SECOND)));
 
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("There's been an error processing the query \"" + params.getQueryString() + "\". An empty result would be given.");
+            // The whole group is scored and filtered at the same time.
+            long scoringTime = leaseID != null ? LeaseRegistry.getInstance().getScoringTime(leaseID) : getScoringTime();
+            long now = System.currentTimeMillis();
+            for (int k : group) {
+                // Deadlines count from the moment the batch was received.
+                long deadline = batch[k].getTimeout() > 0 ? received + batch[k].getTimeout() : 0L;
+                ResultSet result = search(def, node, index, searcher, batch[k], scoringTime, now, deadline);
+                results[k] = finishResultSet(result, result != null ? leaseID : null, timer);
+                if (result != null && batch[k].getPrefetch()) {
+                    prefetchNextPage(def, node, index, searcher, batch[k], result, scoringTime, now);
                 }
+            }
+        }
+        catch (IOException e) {
+            LOG.fatal("Error querying IndexServer. Error: " + e.toString(), e);
 
-                return new Text(xml.toString());
+            // Always return empty results if an exception as ocurred.
+            for (int k : group) {
+                results[k] = finishResultSet(null, null, timer);
             }
+        }
+        finally {
+            // Give back the reader.
+            index.release(searcher);
+        }
+    }
 
-            // Collect the results.
-            ScoreDoc[] hits = collector.topDocs(params.getStartOffset(), params.getEndOffset() - params.getStartOffset()).scoreDocs;
+    /**
+     * Performs one search with an acquired searcher.
+     *
+     * @param def         The definition object to use.
+     * @param node        The node where the index is at.
+     * @param index       The index.
+     * @param searcher    The searcher.
+     * @param params      The parameters of the search.
+     * @param scoringTime The time used for scoring with gravity.
+     * @param now         The time used for the date range filters.
+     * @param deadline    The time when the collection of hits must stop, or 0
+     *                    for no deadline.
+     *
+     * @return The result set, without lease and search time.
+     */
+    private static ResultSet search(IndexDefinition def, Node node, IndexState index, Searcher searcher, Parameters params, long scoringTime, long now, long deadline)
+    {
+        try {
+            // Build the query.
+            Query query = applyGravity(parseQuery(def, params.getQueryString()), scoringTime);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Query: " + query.toString());
+            }
 
-            // Build the response.
-            String res = Result.makeXMLResponse(hits, params, searcher, query, collector, timer);
+            // Check the result cache first. Entries are tied to the reader version, so they're never stale.
+            String key = ResultCache.getInstance().key(def, node, searcher, scoringTime, now, params);
+            ResultCache.Entry cached = ResultCache.getInstance().get(key);
+            if (cached != null) {
+                return cached.results != null
+                        ? cached.results.duplicate()
+                        : Result.makeResultSet(def, cached.hits, params, searcher, query, cached.totalHits, cached.aggregations);
+            }
 
-            // Close the reader.
-            if (searcher.getShouldClose()) {
-                searcher.getSearcher().getIndexReader().close();
+            // Then the pages fetched in the background.
+            ResultSet prefetched = Prefetcher.getInstance().get(key);
+            if (prefetched != null) {
+                return prefetched.duplicate();
             }
 
-            return new Text(res);
+            // Identical searches in flight are executed only once.
+            return SearchCoalescer.getInstance().execute(key, deadline, () -> collect(def, index, searcher, params, query, now, deadline, key).duplicate());
         }
         catch (IOException e) {
             LOG.fatal("Error querying IndexServer. Error: " + e.toString(), e);
 
-            // Always return a dummy result if an exception as ocurred.
-            xml.append(Result.dummyResult(timer.computeOperationTime(Timer.Time.SECOND)));
-
-            return new Text(xml.toString());
+            // Always return an empty result if an exception as ocurred.
+            return null;
         }
         catch (ParseException e) {
             // Fail silents this one.
-            // Always return a dummy result if an exception as ocurred.
-            xml.append(Result.dummyResult(timer.computeOperationTime(Timer.Time.SECOND)));
-
             if (LOG.isDebugEnabled()) {
                 LOG.debug("There's been an error processing the query \"" + params.getQueryString() + "\". An empty result would be given.");
             }
 
-            return new Text(xml.toString());
+            // Always return an empty result if an exception as ocurred.
+            return null;
         }
     }
 
-    @Override
-    public boolean areSearchersOpen(boolean reOpenReaders, String definitionID, Node node)
+    /**
+     * Searches the index and builds the result set.
+     *
+     * @param def      The definition object to use.
+     * @param index    The index, or NULL to never search it in parallel.
+     * @param searcher The searcher.
+     * @param params   The parameters of the search.
+     * @param query    The query.
+     * @param now      The time used for the date range filters.
+     * @param deadline The time when the collection of hits must stop, or 0 for
+     *                 no deadline.
+     * @param key      The key to cache the result with, or NULL to not cache it.
+     *
+     * @return The result set, without lease and search time. It's partial if the
+     *         deadline was reached, and then it's never cached.
+     *
+     * @throws IOException If the index can't be searched.
+     */
+    private static ResultSet collect(IndexDefinition def, IndexState index, Searcher searcher, Parameters params, Query query, long now, long deadline, String key) throws IOException
     {
-        // First try to open readers.
-        openSearchers(reOpenReaders, definitionID, node);
+        Filter filter = buildFilter(def, params.getFilters(), now);
+        ScoreDoc[] hits;
+        int totalHits;
+        Aggregations aggregations;
+        boolean partial = false;
+
+        // When the node is idle, large indexes are searched by slices of segments in parallel.
+        if (index != null && ParallelSearcher.getInstance().shouldSplit(searcher.getSearcher(), params)) {
+            ParallelSearcher.Slice merged = ParallelSearcher.getInstance().search(index.getSearchExecutor(), searcher.getSearcher(), query, filter, params, deadline);
+            hits = merged.hits;
+            totalHits = merged.totalHits;
+            aggregations = merged.aggregations;
+            partial = merged.partial;
+        }
+        else {
+            // Request N documents from the index, but offsets are available, so pagination is enabled.
+            // Use the endOffset in this case as the results quantity, otherwise it doesn't work. If the
+            // search continues from a cursor only the page is requested.
+            TopDocsCollector<ScoreDoc> collector = newCollector(params);
+            // Aggregations are computed over all the matching documents, from doc values.
+            AggregatingCollector aggregator = new AggregatingCollector(collector, params.getFacets(), params.getHistogramUnit());
 
-        synchronized (SEARCHERS) {
-            ListIterator<IndexSearcher> i = SEARCHERS.listIterator();
-            while (i.hasNext()) {
-                IndexSearcher e = i.next(); // Get the searcher.
-                try {
-                    if (e != null && e.getIndexReader().tryIncRef()) {
-                        return true;
-                    }
-                }
-                catch (Exception ex) {
-                    LOG.error("Error checking if reader is open. Error: " + ex.toString());
+            // With a deadline the collection stops when it's reached, keeping the best hits found until then.
+            Collector limited = deadline > 0
+                    ? new TimeLimitingCollector(aggregator, TimeLimitingCollector.getGlobalCounter(), Math.max(deadline - System.currentTimeMillis(), 0L))
+                    : aggregator;
+
+            // Search the index.
+            try {
+                if (filter != null) {
+                    searcher.getSearcher().search(query, filter, limited);
                 }
-                finally {
-                    try {
-                        if (e != null) {
-                            IndexReader ir = e.getIndexReader();
-                            if (ir != null) {
-                                ir.decRef();
-                            }
-                        }
-                    }
-                    catch (IOException ex) {
-                        LOG.error("Error decrementing reader reference. Error: " + ex.toString());
-                    }
+                else {
+                    searcher.getSearcher().search(query, limited);
                 }
             }
+            catch (TimeLimitingCollector.TimeExceededException e) {
+                partial = true;
+            }
+
+            // Collect the results.
+            hits = getPage(collector, params);
+            totalHits = collector.getTotalHits();
+            aggregations = aggregator.getAggregations();
+        }
+
+        if (partial && LOG.isDebugEnabled()) {
+            LOG.debug("Search of \"" + params.getQueryString() + "\" ran out of time.");
+        }
+
+        // Build the result set, and cache it.
+        ResultSet results = Result.makeResultSet(def, hits, params, searcher, query, totalHits, aggregations).setPartial(partial);
+        if (key != null && !partial) {
+            ResultCache.getInstance().put(key, hits, totalHits, aggregations, results);
         }
 
-        return false;
+        return results;
     }
 
-    @Override
-    public boolean cleanIndex(String definitionID, Node node)
+    /**
+     * Fetches the next page of a search in the background. The searcher is
+     * referenced until the page is fetched, so the page belongs to the same
+     * reader.
+     *
+     * @param def         The definition object to use.
+     * @param node        The node where the index is at.
+     * @param index       The index.
+     * @param searcher    The searcher of the current page.
+     * @param params      The parameters of the current page.
+     * @param results     The result set of the current page.
+     * @param scoringTime The time used for scoring with gravity.
+     * @param now         The time used for the date range filters.
+     */
+    private static void prefetchNextPage(IndexDefinition def, Node node, IndexState index, Searcher searcher, Parameters params, ResultSet results, long scoringTime, long now)
+    {
+        Parameters next = getNextPage(params, results);
+        if (next == null) {
+            return;
+        }
+
+        String key = ResultCache.getInstance().key(def, node, searcher, scoringTime, now, next);
+        if (ResultCache.getInstance().contains(key) || !searcher.getSearcher().getIndexReader().tryIncRef()) {
+            return;
+        }
+
+        Prefetcher.getInstance().prefetch(key, () -> {
+            try {
+                long deadline = next.getTimeout() > 0 ? System.currentTimeMillis() + next.getTimeout() : 0L;
+                return collect(def, null, searcher, next, applyGravity(parseQuery(def, next.getQueryString()), scoringTime), now, deadline, null);
+            }
+            catch (ParseException e) {
+                return null;
+            }
+        }, () -> index.release(searcher));
+    }
+
+    /**
+     * Returns the parameters of the page after the given one.
+     *
+     * @param params  The parameters of the current page.
+     * @param results The result set of the current page.
+     *
+     * @return The parameters of the next page, or NULL if there are no more hits.
+     */
+    static Parameters getNextPage(Parameters params, ResultSet results)
     {
-        if (writer != null) {
-            return false;
+        int pageSize = params.getEndOffset() - params.getStartOffset();
+        if (pageSize <= 0) {
+            return null;
         }
 
-        if (GeneralUtilities.directoryExists(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID())) {
-            if (!GeneralUtilities.deleteDirectoryContents(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID(), true)) {
-                return false;
+        if (params.getSearchAfter() != null) {
+            if (results.getHits().size() < pageSize) {
+                return null;
             }
+
+            return params.duplicate().setSearchAfter(results.getCursor());
         }
+        else {
+            if (params.getEndOffset() >= results.getTotalHits()) {
+                return null;
+            }
 
-        return true;
+            return params
+                    .duplicate()
+                    .setStartOffset(String.valueOf(params.getEndOffset()))
+                    .setEndOffset(String.valueOf(params.getEndOffset() + pageSize));
+        }
+    }
+
+    /**
+     * Adds the lease and the search time to a result set.
+     *
+     * @param results The result set, or NULL for an empty one.
+     * @param leaseID The ID of the lease of the search, or NULL.
+     * @param timer   The search timer.
+     *
+     * @return The result set.
+     */
+    private static ResultSet finishResultSet(ResultSet results, String leaseID, Timer timer)
+    {
+        // Mark end of processing.
+        timer.endTimer();
+
+        return (results != null ? results : ResultSet.newBuild())
+                .setLeaseID(leaseID)
+                .setSearchTime(timer.computeOperationTime(Timer.Time.SECOND));
+    }
+
+    @Override
+    public Text stats()
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\"?>");
+        xml.append("<stats>");
+        xml.append(ResultCache.getInstance().getStats());
+        xml.append(FilterCache.getInstance().getStats());
+        xml.append(LeaseRegistry.getInstance().getStats());
+        xml.append(SearchCoalescer.getInstance().getStats());
+        xml.append(ParallelSearcher.getInstance().getStats());
+        xml.append(IndexDirectory.getStats());
+        xml.append(Prefetcher.getInstance().getStats());
+        xml.append(Summarizer.getInstance().getStats());
+        xml.append("</stats>");
+
+        return new Text(xml.toString());
+    }
+
+    @Override
+    public boolean areSearchersOpen(boolean reOpenReaders, String definitionID, Node node)
+    {
+        return IndexRegistry.getInstance().getIndex(definitionID, node).areSearchersOpen(reOpenReaders);
+    }
+
+    @Override
+    public boolean cleanIndex(String definitionID, Node node)
+    {
+        return IndexRegistry.getInstance().getIndex(definitionID, node).clean();
     }
 
     @Override
     public long getProtocolVersion(String protocol, long clientVersion) throws IOException
     {
-        return versionID;
+        return protocol.equals(NodeSearchInterface.class.getName()) ? NodeSearchInterface.versionID : versionID;
     }
 
     @Override
     public ProtocolSignature getProtocolSignature(String string, long l, int i) throws IOException
     {
-        return new ProtocolSignature(versionID, null);
+        return new ProtocolSignature(getProtocolVersion(string, l), null);
     }
 
     /**
-     * Returns an IndexSearcher for this IndexServer instance.
+     * Builds a field of a document as declared in the definition. Numeric fields
+     * are indexed trie-encoded, so they can be searched with numeric range
+     * filters.
      *
-     * @return An IndexSearcher for the IndexServer.
+     * @param f     The definition of the field.
+     * @param value The value of the field.
      *
-     * @throws IOException
+     * @return The new field.
      */
-    protected static Searcher getOpenSearcher(String definitionID, Node node) throws IOException
+    static Field newField(IndexDefinitionField f, String value)
     {
-        if (writer == null) {
-            openSearchers(false, definitionID, node);
-
-            // Check if there is an index available.
-            if (!DirectoryReader.indexExists(FSDirectory.open(new File(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID())))) {
-                return Searcher
-                        .newBuild()
-                        .setIsOpen(false)
-                        .setSearcher(null)
-                        .setShouldClose(false)
-                        .checkObject();
+        FieldType type = new FieldType();
+        type.setIndexOptions(FieldInfo.IndexOptions.valueOf(f.getIndexOptions()));
+        type.setIndexed(f.getFieldProperty(IndexDefinitionField.OptionID.INDEXED));
+        type.setNumericPrecisionStep(f.getNumericPrecisionStep());
+        type.setNumericType(f.getNumericType() == null ? null : FieldType.NumericType.valueOf(f.getNumericType()));
+        type.setOmitNorms(f.getFieldProperty(IndexDefinitionField.OptionID.OMIT_NORMS));
+        type.setStoreTermVectorOffsets(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_OFFSETS));
+        type.setStoreTermVectorPayloads(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_PAYLOADS));
+        type.setStoreTermVectorPositions(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTOR_POSITIONS));
+        type.setStoreTermVectors(f.getFieldProperty(IndexDefinitionField.OptionID.STORE_TERM_VECTORS));
+        type.setStored(f.getFieldProperty(IndexDefinitionField.OptionID.STORED));
+        type.setTokenized(f.getFieldProperty(IndexDefinitionField.OptionID.TOKENIZED));
+
+        Field field;
+        if (type.numericType() == null) {
+            field = new Field(f.getFieldName(), value, type);
+        }
+        else {
+            switch (type.numericType()) {
+                case INT:
+                    field = new IntField(f.getFieldName(), Integer.parseInt(value), type);
+                    break;
+                case LONG:
+                    field = new LongField(f.getFieldName(), Long.parseLong(value), type);
+                    break;
+                case FLOAT:
+                    field = new FloatField(f.getFieldName(), Float.parseFloat(value), type);
+                    break;
+                default:
+                    field = new DoubleField(f.getFieldName(), Double.parseDouble(value), type);
+                    break;
             }
+        }
 
-            // If there is an index available.
-            synchronized (SEARCHERS) {
-                if (SEARCHERS.size() < 1) {
-                    return null;
-                }
+        // Index time boosts are kept in the norms.
+        if (type.indexed() && !type.omitNorms()) {
+            field.setBoost(f.getFieldBoost());
+        }
 
-                IndexSearcher e = SEARCHERS.get(RandomUtils.nextInt(SEARCHERS.size()));
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Reader use: Reader_" + RandomUtils.nextInt(SEARCHERS.size()) + " was asigned for dutty.");
-                }
+        return field;
+    }
 
-                return Searcher
-                        .newBuild()
-                        .setIsOpen(true)
-                        .setSearcher(e)
-                        .setShouldClose(false)
-                        .checkObject();
-            }
+    /**
+     * Builds the doc values field of a document field.
+     *
+     * @param f     The definition of the field.
+     * @param value The value of the field.
+     *
+     * @return The doc values field, or NULL if the definition doesn't declare doc
+     *         values for the field.
+     */
+    static Field newDocValuesField(IndexDefinitionField f, String value)
+    {
+        if (f.getDocValueType() == null) {
+            return null;
+        }
+
+        switch (FieldInfo.DocValuesType.valueOf(f.getDocValueType())) {
+            case NUMERIC:
+                return new NumericDocValuesField(f.getFieldName(), toDocValue(f, parseNumber(f, value)));
+            case BINARY:
+                return new BinaryDocValuesField(f.getFieldName(), new BytesRef(value));
+            case SORTED:
+                return new SortedDocValuesField(f.getFieldName(), new BytesRef(value));
+            default:
+                return new SortedSetDocValuesField(f.getFieldName(), new BytesRef(value));
+        }
+    }
+
+    /**
+     * Parses the value of a numeric field, or of a field with numeric doc values.
+     *
+     * @param f     The definition of the field.
+     * @param value The value of the field.
+     *
+     * @return The number, or NULL if the field isn't numeric.
+     */
+    static Number parseNumber(IndexDefinitionField f, String value)
+    {
+        if (f.getNumericType() == null) {
+            return "NUMERIC".equals(f.getDocValueType()) ? Long.parseLong(value) : null;
+        }
+
+        switch (f.getNumericType()) {
+            case "INT":
+                return Integer.parseInt(value);
+            case "LONG":
+                return Long.parseLong(value);
+            case "FLOAT":
+                return Float.parseFloat(value);
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    /**
+     * Returns the numeric doc value of a number. Floating point numbers are kept
+     * as their raw bits.
+     *
+     * @param f      The definition of the field.
+     * @param number The number.
+     *
+     * @return The doc value.
+     */
+    static long toDocValue(IndexDefinitionField f, Number number)
+    {
+        if ("FLOAT".equals(f.getNumericType())) {
+            return Float.floatToRawIntBits(number.floatValue());
+        }
+        else if ("DOUBLE".equals(f.getNumericType())) {
+            return Double.doubleToRawLongBits(number.doubleValue());
         }
         else {
-            synchronized (writer) {
-                // Check if there is an index available.
-                if (!DirectoryReader.indexExists(FSDirectory.open(new File(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID())))) {
-                    return Searcher
-                            .newBuild()
-                            .setIsOpen(false)
-                            .setSearcher(null)
-                            .setShouldClose(false)
-                            .checkObject();
-                }
+            return number.longValue();
+        }
+    }
 
-                return Searcher
-                        .newBuild()
-                        .setIsOpen(true)
-                        .setSearcher(new IndexSearcher(DirectoryReader.open(writer, true)))
-                        .setShouldClose(true)
-                        .checkObject();
-            }
+    /**
+     * Updates the value of a field built with {@link #newField(IndexDefinitionField, String)}.
+     *
+     * @param field  The field.
+     * @param value  The new value.
+     * @param number The new value already parsed, or NULL if the field isn't
+     *               numeric.
+     */
+    static void setFieldValue(Field field, String value, Number number)
+    {
+        Number current = field.numericValue();
+        if (current instanceof Long) {
+            field.setLongValue(number.longValue());
+        }
+        else if (current instanceof Integer) {
+            field.setIntValue(number.intValue());
+        }
+        else if (current instanceof Float) {
+            field.setFloatValue(number.floatValue());
+        }
+        else if (current instanceof Double) {
+            field.setDoubleValue(number.doubleValue());
+        }
+        else if (field.binaryValue() != null) {
+            field.binaryValue().copyChars(value);
+        }
+        else {
+            field.setStringValue(value);
         }
     }
 
     /**
-     * This method opens all the readers and searchers to the IndexServer.
+     * Updates the value of a field built with {@link #newDocValuesField(IndexDefinitionField, String)}.
+     * The bytes of the value are copied in place.
      *
-     * @param reOpenSearchers If TRUE we must re-open all readers and
-     *                        searchers to the index, FALSE we leave them
-     *                        alone.
+     * @param f      The definition of the field.
+     * @param field  The field.
+     * @param value  The new value.
+     * @param number The new value already parsed, or NULL if the doc values
+     *               aren't numeric.
      */
-    static void openSearchers(boolean reOpenSearchers, String definitionID, Node node)
+    static void setDocValuesFieldValue(IndexDefinitionField f, Field field, String value, Number number)
     {
-        if (SEARCHERS.isEmpty() && !reOpenSearchers) {
-            try {
-                FSDirectory dir = FSDirectory.open(new File(Constants.INDEX_FILE.getStringConstant() + definitionID + "." + node.getNodeID()));
+        if (field instanceof NumericDocValuesField) {
+            field.setLongValue(toDocValue(f, number));
+        }
+        else {
+            field.binaryValue().copyChars(value);
+        }
+    }
 
-                // Only open the reader if there is an index.
-                if (DirectoryReader.indexExists(dir)) {
-                    int readersQt = CONF.getInt("node.readers", 10);
-                    int counter = 1;
-                    do {
-                        SEARCHERS.add(new IndexSearcher(DirectoryReader.open(dir)));
+    /**
+     * Parses a query string using the searchable fields, boosts and analyzers declared
+     * in the definition. Parsed queries are shared, so they must not be modified.
+     *
+     * @param def         The definition object to use.
+     * @param queryString The query string entered by the user.
+     *
+     * @return The Lucene query.
+     *
+     * @throws ParseException If the query string is malformed.
+     */
+    static Query parseQuery(IndexDefinition def, String queryString) throws ParseException
+    {
+        return AnalysisCache.getInstance().getQuery(def, queryString);
+    }
 
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Readers closed: New Reader_" + counter + " was opened.");
-                        }
+    /**
+     * Combines the text score of a query with the boost with gravity of each
+     * document, computed at query time from its "indextime" and "boost" doc values.
+     * So the ranking of a document decays as it ages, without rewriting it.
+     *
+     * @param query The query to wrap.
+     *
+     * @return The function score query, or the same query if gravity is disabled.
+     */
+    static Query applyGravity(Query query)
+    {
+        return applyGravity(query, getScoringTime());
+    }
 
-                        counter++;
-                    } while (counter <= readersQt);
-                }
-            }
-            catch (IOException e) {
-                LOG.fatal("Impossible to open main reader to the kernel. Error: " + e.toString(), e);
-            }
+    /**
+     * Combines the text score of a query with the boost with gravity of each
+     * document, computed against the given time.
+     *
+     * @param query       The query to wrap.
+     * @param scoringTime The time against which the age of documents is computed.
+     *
+     * @return The function score query, or the same query if gravity is disabled.
+     */
+    static Query applyGravity(Query query, long scoringTime)
+    {
+        if (!GRAVITY_ENABLED) {
+            return query;
         }
-        else if (!SEARCHERS.isEmpty() && reOpenSearchers) {
-            try {
-                // Iterate over all searchers and re-open.
-                synchronized (SEARCHERS) {
-                    ListIterator<IndexSearcher> i = SEARCHERS.listIterator();
-                    while (i.hasNext()) {
-                        IndexSearcher oldSearcher = i.next(); // Get the old searcher.
-                        IndexSearcher newSearcher;
-                        try (DirectoryReader oldReader = (DirectoryReader) oldSearcher.getIndexReader()) {
-                            newSearcher = new IndexSearcher(DirectoryReader.openIfChanged(oldReader));
-                        }
-
-                        // Replace the reader.
-                        i.set(newSearcher);
-
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Readers re-opened: Reader was re-opened.");
-                        }
+
+        return new CustomScoreQuery(query, new FunctionQuery(new GravityValueSource(scoringTime)));
+    }
+
+    /**
+     * Returns the time against which the age of the documents is computed. It's
+     * rounded to the gravity resolution, so scores, and the results cached with
+     * them, stay the same during that time.
+     *
+     * @return The scoring time in milliseconds, or 0 if gravity is disabled.
+     */
+    static long getScoringTime()
+    {
+        return GRAVITY_ENABLED ? (System.currentTimeMillis() / GRAVITY_RESOLUTION) * GRAVITY_RESOLUTION : 0L;
+    }
+
+    /**
+     * Creates the collector of the top hits of a search. If de-duplication is
+     * used, near-duplicate hits are collapsed by the collector. If the search
+     * continues from a cursor, only the hits after it are collected, so the cost
+     * of a page doesn't grow with its depth.
+     *
+     * @param params The search parameters.
+     *
+     * @return The collector.
+     */
+    static TopDocsCollector<ScoreDoc> newCollector(Parameters params)
+    {
+        ScoreDoc after = getLocalSearchAfter(params);
+        int numHits = Math.max(after != null ? params.getEndOffset() - params.getStartOffset() : params.getEndOffset(), 1);
+        if (params.getUseDeduplication()) {
+            return new DeduplicatingCollector(numHits, DEDUPLICATION_OVERFETCH, params.getMaxHammingDistance(), after);
+        }
+
+        return TopScoreDocCollector.create(numHits, after, true);
+    }
+
+    /**
+     * Returns the hits of the page requested in a search, from a collector made
+     * by {@link #newCollector(Parameters)}.
+     *
+     * @param collector The collector.
+     * @param params    The search parameters.
+     *
+     * @return The hits of the page.
+     */
+    static ScoreDoc[] getPage(TopDocsCollector<ScoreDoc> collector, Parameters params)
+    {
+        if (params.getSearchAfter() != null) {
+            return collector.topDocs().scoreDocs;
+        }
+
+        return collector.topDocs(params.getStartOffset(), params.getEndOffset() - params.getStartOffset()).scoreDocs;
+    }
+
+    /**
+     * Translates the cursor of a search to a hit of this shard. Hits with the same
+     * score are ordered by shard and then by document, so if the cursor is from
+     * another shard, all hits of this shard with its score come either before or
+     * after it.
+     *
+     * @param params The search parameters.
+     *
+     * @return The hit to search after, or NULL if the search uses offsets.
+     */
+    private static ScoreDoc getLocalSearchAfter(Parameters params)
+    {
+        ScoreDoc after = params.getSearchAfter();
+        if (after == null) {
+            return null;
+        }
+
+        int shard = params.getAfterShard().compareTo(params.getShardID());
+        if (shard < 0) {
+            return new ScoreDoc(-1, after.score);
+        }
+        else if (shard > 0) {
+            return new ScoreDoc(Integer.MAX_VALUE, after.score);
+        }
+        else {
+            return new ScoreDoc(after.doc, after.score);
+        }
+    }
+
+    /**
+     * Builds the Lucene filter for the filters sent alongside the search parameters.
+     *
+     * @param def     The definition object to use.
+     * @param filters The filters of the search.
+     *
+     * @return The filter to apply, or NULL if the search has no filters.
+     */
+    static Filter buildFilter(IndexDefinition def, QuaryFilters filters)
+    {
+        return buildFilter(def, filters, System.currentTimeMillis());
+    }
+
+    /**
+     * Builds the Lucene filter for the filters sent alongside the search parameters,
+     * with date ranges ending at the given time. Searches of a batch use the same
+     * time, so they share the same cached date range filters.
+     *
+     * @param def     The definition object to use.
+     * @param filters The filters of the search.
+     * @param now     The end of the date ranges, in milliseconds.
+     *
+     * @return The filter to apply, or NULL if the search has no filters.
+     */
+    static Filter buildFilter(IndexDefinition def, QuaryFilters filters, long now)
+    {
+        // Set up the query filters. All filters are cached per segment, so common ones cost nothing after warm-up.
+        List<Filter> fltr = new ArrayList<>(0);
+        for (QuaryFilter filter : filters.getFilters()) {
+            switch (filter.getType()) {
+                case QuaryFilters.DATE_RANGE_FILTER:
+                    Filter rangeFilter = FilterCache.getInstance().getDateRangeFilter(filter.getDateRange(), filter.getTimeFactor(), getPrecisionStep(def, "indextime"), now);
+                    if (rangeFilter != null) {
+                        fltr.add(rangeFilter);
                     }
-                }
+                    break;
+                case QuaryFilters.TERM_FILTER:
+                    fltr.add(FilterCache.getInstance().getTermFilter(filter.getField(), filter.getTerm()));
+                    break;
             }
-            catch (IOException e) {
-                LOG.fatal("Error trying to re-open reader. Error: " + e.toString(), e);
+        }
+
+        switch (fltr.size()) {
+            case 0:
+                return null;
+            case 1:
+                return fltr.get(0);
+            default:
+                return new ConjunctionFilter(fltr);
+        }
+    }
+
+    /**
+     * Returns the numeric precision step of a field.
+     *
+     * @param def       The definition object to use.
+     * @param fieldName The name of the field.
+     *
+     * @return The precision step declared in the definition, or Lucene's default
+     *         if the field isn't declared.
+     */
+    static int getPrecisionStep(IndexDefinition def, String fieldName)
+    {
+        for (IndexDefinitionField f : def.getFields()) {
+            if (f.getFieldName().equals(fieldName)) {
+                return f.getNumericPrecisionStep();
             }
         }
+
+        return NumericUtils.PRECISION_STEP_DEFAULT;
     }
 }
@@ -27,21 +27,20 @@ package net.apkc.quary.node;
 
 import net.apkc.quary.definitions.index.IndexDefinition;
 import net.apkc.quary.docs.QuaryDocument;
-import net.apkc.quary.reactor.Parameters;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.ipc.VersionedProtocol;
 
 /**
- * Interface for Quary nodes. All Quary nodes must implement this interface.
+ * Interface for Quary nodes. All Quary nodes must implement this interface. The
+ * search methods are inherited from {@link NodeSearchInterface}.
  *
  * @author Andreas P. Koenzen <akc at apkc.net>
  * @version 0.1
  */
-public interface NodeInterface extends VersionedProtocol
+public interface NodeInterface extends NodeSearchInterface
 {
 
-    public static long versionID = 1L;
+    public static long versionID = 5L;
 
     /**
      * Shutdown the node.
@@ -50,7 +49,9 @@ public interface NodeInterface extends VersionedProtocol
 
     /**
      * Close the indexer in the node. The node may still be up, but it'll be
-     * out of service.
+     * out of service. The readers are refreshed in the background, so the
+     * documents written become searchable shortly after. To refresh them before
+     * returning call areSearchersOpen() with reOpenReaders set to TRUE.
      *
      * @param definitionID The ID of the index.
      * @param node         The node to close.
@@ -66,13 +67,6 @@ public interface NodeInterface extends VersionedProtocol
      */
     public long version();
 
-    /**
-     * Utility method to check if a node is up and running.
-     *
-     * @return TRUE if the node is up, FALSE otherwise.
-     */
-    public boolean isUp();
-
     /**
      * This method initializes the kernel index writer.
      *
@@ -93,22 +87,19 @@ public interface NodeInterface extends VersionedProtocol
      * @param key         Key that identifies the document.
      * @param doc         The AIME's document to be processed and indexed.
      * @param def         The definition object to use.
+     * @param node        The node where the writer is at.
      * @param elapsedTime The elapsed time since the indexing process started.
      */
-    public void write(Text key, QuaryDocument doc, IndexDefinition def, long elapsedTime);
+    public void write(Text key, QuaryDocument doc, IndexDefinition def, Node node, long elapsedTime);
 
     /**
-     * Performs a search in a IndexServer instance.
-     *
-     * @param conf   Configuration file.
-     * @param def    The definition object to use.
-     * @param node   The node where the writer is at.
-     * @param params The object containing the search parameters.
+     * Returns the statistics of the node, like the hit/miss metrics of its
+     * caches.
      *
-     * @return The response in XML format, but encapsulated in an Hadoop Text
+     * @return The statistics in XML format, but encapsulated in an Hadoop Text
      *         object.
      */
-    public Text search(Configuration conf, IndexDefinition def, Node node, Parameters params);
+    public Text stats();
 
     /**
      * This method checks if the only reader to the kernel is open, and if it is
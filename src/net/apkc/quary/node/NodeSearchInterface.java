@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.ResultSet;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.VersionedProtocol;
+
+/**
+ * The methods of a node that are served by its search server. Only these
+ * methods can be called there, so the search port can't be used to change the
+ * indexes.
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public interface NodeSearchInterface extends VersionedProtocol
+{
+
+    public static long versionID = 3L;
+
+    /**
+     * Utility method to check if a node is up and running.
+     *
+     * @return TRUE if the node is up, FALSE otherwise.
+     */
+    public boolean isUp();
+
+    /**
+     * Performs a search in a IndexServer instance.
+     *
+     * @param conf   Configuration file.
+     * @param def    The definition object to use.
+     * @param node   The node where the writer is at.
+     * @param params The object containing the search parameters.
+     *
+     * @return The result set of the search, which is rendered into XML or JSON
+     *         by the caller.
+     */
+    public ResultSet search(Configuration conf, IndexDefinition def, Node node, Parameters params);
+
+    /**
+     * Performs several searches in one call. The searches are grouped by lease
+     * and the searcher is acquired only once per group, so the searches of a
+     * group see the same reader and scoring time. Each result set carries the
+     * lease of its own group, if any.
+     *
+     * @param conf  Configuration file.
+     * @param def   The definition object to use.
+     * @param node  The node where the writer is at.
+     * @param batch The parameters of each search.
+     *
+     * @return The result sets of the searches, in the same order as the
+     *         parameters.
+     */
+    public ResultSet[] searchBatch(Configuration conf, IndexDefinition def, Node node, Parameters[] batch);
+}
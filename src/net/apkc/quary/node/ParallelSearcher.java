@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.apkc.quary.reactor.Aggregations;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searches the segments of an index in parallel.
+ *
+ * <p>
+ * The segments of the reader are split into slices of about the same number
+ * of documents, and each slice is collected by its own collectors in the pool
+ * of threads of the index. Then the hits of the slices are merged by score and
+ * document, like a single collector would sort them, and their aggregations are
+ * added up.
+ * </p>
+ *
+ * <p>
+ * Parallel searches only pay off when the node has idle cores, so a search is
+ * only split while few searches are in flight on the node, and only on large
+ * indexes. Searches that collapse near-duplicates are never split, since the
+ * duplicates of one slice can be in another. The pools are bounded, and slices
+ * that don't fit in the queue are collected by the searching thread.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class ParallelSearcher
+{
+
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final ParallelSearcher INSTANCE = new ParallelSearcher();
+    private final boolean ENABLED = CONF.getBoolean("node.search.parallel.enabled", false);
+    private final int THREADS = Math.max(CONF.getInt("node.search.parallel.threads", 4), 1);
+    private final int QUEUE = Math.max(CONF.getInt("node.search.parallel.queue", 64), 1);
+    private final int SLICES = Math.max(CONF.getInt("node.search.parallel.slices", 4), 2);
+    private final int MAX_CONCURRENCY = Math.max(CONF.getInt("node.search.parallel.maxconcurrency", 2), 1);
+    private final int MIN_DOCS = Math.max(CONF.getInt("node.search.parallel.mindocs", 100000), 0);
+    /** The searches in flight on the node. */
+    private final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private final AtomicLong SPLIT = new AtomicLong();
+    private final AtomicLong SEQUENTIAL = new AtomicLong();
+
+    /**
+     * Private default constructor.
+     */
+    private ParallelSearcher()
+    {
+    }
+
+    static ParallelSearcher getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates the pool of threads of an index.
+     *
+     * @param name The name of the index.
+     *
+     * @return The pool.
+     */
+    ExecutorService newExecutor(String name)
+    {
+        return new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE),
+                new ThreadFactoryBuilder()
+                .setNameFormat("QUARY:SLICES:" + name + ":%d")
+                .setDaemon(true)
+                .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Marks the start of a search on the node.
+     */
+    void enter()
+    {
+        IN_FLIGHT.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a search on the node.
+     */
+    void exit()
+    {
+        IN_FLIGHT.decrementAndGet();
+    }
+
+    /**
+     * Returns TRUE if a search should be split into slices.
+     *
+     * @param searcher The searcher.
+     * @param params   The parameters of the search.
+     *
+     * @return TRUE if the search should be split.
+     */
+    boolean shouldSplit(IndexSearcher searcher, Parameters params)
+    {
+        boolean split = ENABLED
+                && !params.getUseDeduplication()
+                && IN_FLIGHT.get() <= MAX_CONCURRENCY
+                && searcher.getIndexReader().leaves().size() > 1
+                && searcher.getIndexReader().maxDoc() >= MIN_DOCS;
+        (split ? SPLIT : SEQUENTIAL).incrementAndGet();
+
+        return split;
+    }
+
+    /**
+     * Searches the slices of an index in parallel and merges their hits.
+     *
+     * @param executor The pool of threads of the index.
+     * @param searcher The searcher.
+     * @param query    The query.
+     * @param filter   The filter, or NULL.
+     * @param params   The parameters of the search.
+     * @param deadline The time when the collection of hits must stop, or 0 for
+     *                 no deadline.
+     *
+     * @return The merged hits of all the slices.
+     *
+     * @throws IOException If the index can't be searched.
+     */
+    Slice search(ExecutorService executor, IndexSearcher searcher, Query query, Filter filter, Parameters params, long deadline) throws IOException
+    {
+        Weight weight = searcher.createNormalizedWeight(filter != null ? new FilteredQuery(query, filter) : query);
+
+        List<Future<Slice>> pending = new ArrayList<>(SLICES);
+        for (List<AtomicReaderContext> leaves : slice(searcher.getIndexReader().leaves())) {
+            pending.add(executor.submit(() -> collect(weight, leaves, params, deadline)));
+        }
+
+        List<ScoreDoc> hits = new ArrayList<>();
+        Slice merged = new Slice();
+        try {
+            for (Future<Slice> f : pending) {
+                Slice slice = f.get();
+                hits.addAll(Arrays.asList(slice.hits));
+                merged.totalHits += slice.totalHits;
+                merged.aggregations = merged.aggregations == null ? slice.aggregations : merged.aggregations.merge(slice.aggregations);
+                merged.partial |= slice.partial;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching the slices.");
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        // Hits with the same score are ordered by document, like in a single collector.
+        hits.sort((a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        int from = params.getSearchAfter() != null ? 0 : Math.min(params.getStartOffset(), hits.size());
+        int to = Math.min(params.getEndOffset() - params.getStartOffset() + from, hits.size());
+        merged.hits = hits.subList(from, Math.max(from, to)).toArray(new ScoreDoc[0]);
+
+        return merged;
+    }
+
+    /**
+     * Splits the segments of a reader into slices of about the same number of
+     * documents.
+     *
+     * @param leaves The segments.
+     *
+     * @return The slices.
+     */
+    private List<List<AtomicReaderContext>> slice(List<AtomicReaderContext> leaves)
+    {
+        int maxDoc = 0;
+        for (AtomicReaderContext leaf : leaves) {
+            maxDoc += leaf.reader().maxDoc();
+        }
+
+        int target = Math.max(maxDoc / SLICES, 1);
+        List<List<AtomicReaderContext>> slices = new ArrayList<>(SLICES);
+        List<AtomicReaderContext> current = new ArrayList<>();
+        int docs = 0;
+        for (AtomicReaderContext leaf : leaves) {
+            current.add(leaf);
+            docs += leaf.reader().maxDoc();
+            if (docs >= target && slices.size() < SLICES - 1) {
+                slices.add(current);
+                current = new ArrayList<>();
+                docs = 0;
+            }
+        }
+        if (!current.isEmpty()) {
+            slices.add(current);
+        }
+
+        return slices;
+    }
+
+    /**
+     * Collects the hits of a slice, like IndexSearcher does for the whole
+     * reader.
+     *
+     * @param weight   The weight of the query.
+     * @param leaves   The segments of the slice.
+     * @param params   The parameters of the search.
+     * @param deadline The time when the collection of hits must stop, or 0 for
+     *                 no deadline.
+     *
+     * @return The hits of the slice.
+     *
+     * @throws IOException If the index can't be searched.
+     */
+    private static Slice collect(Weight weight, List<AtomicReaderContext> leaves, Parameters params, long deadline) throws IOException
+    {
+        TopDocsCollector<ScoreDoc> collector = NodeImplementation.newCollector(params);
+        AggregatingCollector aggregator = new AggregatingCollector(collector, params.getFacets(), params.getHistogramUnit());
+        Collector limited = deadline > 0
+                ? new TimeLimitingCollector(aggregator, TimeLimitingCollector.getGlobalCounter(), Math.max(deadline - System.currentTimeMillis(), 0L))
+                : aggregator;
+
+        Slice slice = new Slice();
+        try {
+            for (AtomicReaderContext leaf : leaves) {
+                try {
+                    limited.setNextReader(leaf);
+                }
+                catch (CollectionTerminatedException e) {
+                    continue; // The collector doesn't want hits of this segment.
+                }
+
+                Scorer scorer = weight.scorer(leaf, !limited.acceptsDocsOutOfOrder(), true, leaf.reader().getLiveDocs());
+                if (scorer != null) {
+                    try {
+                        scorer.score(limited);
+                    }
+                    catch (CollectionTerminatedException e) {
+                        // Go on with the next segment.
+                    }
+                }
+            }
+        }
+        catch (TimeLimitingCollector.TimeExceededException e) {
+            slice.partial = true;
+        }
+
+        slice.hits = collector.topDocs().scoreDocs;
+        slice.totalHits = collector.getTotalHits();
+        slice.aggregations = aggregator.getAggregations();
+
+        return slice;
+    }
+
+    /**
+     * Returns the metrics of the parallel searches in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<parallel>");
+        xml.append("<enabled>").append(ENABLED).append("</enabled>");
+        xml.append("<inflight>").append(IN_FLIGHT.get()).append("</inflight>");
+        xml.append("<split>").append(SPLIT.get()).append("</split>");
+        xml.append("<sequential>").append(SEQUENTIAL.get()).append("</sequential>");
+        xml.append("</parallel>");
+
+        return xml.toString();
+    }
+
+    /**
+     * The hits of a slice, or of all of them once merged.
+     */
+    static final class Slice
+    {
+
+        ScoreDoc[] hits = new ScoreDoc[0];
+        int totalHits = 0;
+        Aggregations aggregations = null;
+        boolean partial = false;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.apkc.quary.reactor.ResultSet;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches the next page of a search in the background.
+ *
+ * <p>
+ * Users very often ask for the next page of a search within seconds. When a
+ * search asks for it, the next page is searched at low priority after the
+ * current one is answered, and kept in a short lived cache. So the next page
+ * costs only a lookup. Pages are keyed like the result cache, which includes
+ * the version of the reader, so a page of an old reader is never served.
+ * </p>
+ *
+ * <p>
+ * The pool of fetchers and its queue are small and bounded. Prefetches that
+ * don't fit are dropped, since they are only a bet.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class Prefetcher
+{
+
+    private static final Logger LOG = Logger.getLogger(Prefetcher.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final Prefetcher INSTANCE = new Prefetcher();
+    private final boolean ENABLED = CONF.getBoolean("node.search.prefetch.enabled", true);
+    private final Cache<String, ResultSet> PAGES = CacheBuilder
+            .newBuilder()
+            .maximumSize(CONF.getInt("node.search.prefetch.size", 256))
+            .expireAfterWrite(CONF.getLong("node.search.prefetch.ttl", 30000L), TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+    /** Keys of the pages being fetched. */
+    private final Set<String> PENDING = ConcurrentHashMap.<String>newKeySet();
+    private final ThreadPoolExecutor FETCHERS;
+    private final AtomicLong DROPPED = new AtomicLong();
+
+    /**
+     * Private default constructor.
+     */
+    private Prefetcher()
+    {
+        int threads = Math.max(CONF.getInt("node.search.prefetch.threads", 2), 1);
+        FETCHERS = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(CONF.getInt("node.search.prefetch.queue", 64), 1)),
+                new ThreadFactoryBuilder()
+                .setNameFormat("QUARY:PREFETCH:%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+    }
+
+    static Prefetcher getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a prefetched page.
+     *
+     * @param key The key of the search.
+     *
+     * @return The result set, without lease and search time, or NULL if the page
+     *         wasn't prefetched.
+     */
+    ResultSet get(String key)
+    {
+        return ENABLED ? PAGES.getIfPresent(key) : null;
+    }
+
+    /**
+     * Fetches a page in the background, unless it's already fetched or being
+     * fetched.
+     *
+     * @param key     The key of the search of the page.
+     * @param search  The search of the page.
+     * @param release Called once the search is done or dropped, to give back
+     *                the searcher.
+     */
+    void prefetch(String key, SearchCoalescer.Search search, Runnable release)
+    {
+        if (!ENABLED || PAGES.asMap().containsKey(key) || !PENDING.add(key)) {
+            release.run();
+            return;
+        }
+
+        try {
+            FETCHERS.execute(() -> {
+                try {
+                    ResultSet results = search.run();
+                    if (results != null && !results.isPartial()) {
+                        PAGES.put(key, results);
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    LOG.warn("Error prefetching page. Error: " + e.toString(), e);
+                }
+                finally {
+                    PENDING.remove(key);
+                    release.run();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            DROPPED.incrementAndGet();
+            PENDING.remove(key);
+            release.run();
+        }
+    }
+
+    /**
+     * Returns the metrics of the prefetched pages in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        CacheStats stats = PAGES.stats();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<prefetch>");
+        xml.append("<enabled>").append(ENABLED).append("</enabled>");
+        xml.append("<size>").append(PAGES.size()).append("</size>");
+        xml.append("<pending>").append(PENDING.size()).append("</pending>");
+        xml.append("<hits>").append(stats.hitCount()).append("</hits>");
+        xml.append("<misses>").append(stats.missCount()).append("</misses>");
+        xml.append("<dropped>").append(DROPPED.get()).append("</dropped>");
+        xml.append("</prefetch>");
+
+        return xml.toString();
+    }
+}
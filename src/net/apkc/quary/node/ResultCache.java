@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.reactor.Aggregations;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.ResultSet;
+import net.apkc.quary.reactor.Searcher;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Cache of search results of a node.
+ *
+ * <p>
+ * Entries keep the top hits (doc IDs and scores) and the total hits of a search,
+ * and optionally the rendered response. They are keyed by the definition, the
+ * node, the version of the reader that produced them, the scoring time and the
+ * normalized search parameters, so when a searcher is refreshed all entries of the old reader stop
+ * matching and are evicted with time. The cache is bounded in size and evicts the
+ * least recently used entries first.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class ResultCache
+{
+
+    private static final Logger LOG = Logger.getLogger(ResultCache.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final ResultCache INSTANCE = new ResultCache();
+    private final boolean ENABLED = CONF.getBoolean("node.cache.results.enabled", true);
+    private final boolean RENDERED = CONF.getBoolean("node.cache.results.rendered", false);
+    private final Cache<String, Entry> RESULTS = CacheBuilder
+            .newBuilder()
+            .maximumSize(CONF.getInt("node.cache.results.size", 512))
+            .recordStats()
+            .build();
+
+    /**
+     * Private default constructor.
+     */
+    private ResultCache()
+    {
+    }
+
+    static ResultCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Builds the key of a search.
+     *
+     * @param def         The definition object.
+     * @param node        The node being searched.
+     * @param searcher    The searcher that will perform the search.
+     * @param scoringTime The time used for scoring with gravity.
+     * @param now         The time used for the date range filters.
+     * @param params      The search parameters.
+     *
+     * @return The key.
+     */
+    String key(IndexDefinition def, Node node, Searcher searcher, long scoringTime, long now, Parameters params)
+    {
+        IndexReader reader = searcher.getSearcher().getIndexReader();
+        long generation = (reader instanceof DirectoryReader) ? ((DirectoryReader) reader).getVersion() : System.identityHashCode(reader);
+
+        return def.getDefinitionID() + ":" + def.getVersion() + "." + node.getNodeID() + "@" + generation + "~" + scoringTime + "#" + params.getNormalizedKey(now);
+    }
+
+    /**
+     * Returns the cached result of a search.
+     *
+     * @param key The key of the search.
+     *
+     * @return The cached result, or NULL if it isn't cached.
+     */
+    Entry get(String key)
+    {
+        return ENABLED ? RESULTS.getIfPresent(key) : null;
+    }
+
+    /**
+     * Checks if the result of a search is cached, without counting it as a hit or
+     * a miss.
+     *
+     * @param key The key of the search.
+     *
+     * @return TRUE if it's cached, FALSE otherwise.
+     */
+    boolean contains(String key)
+    {
+        return ENABLED && RESULTS.asMap().containsKey(key);
+    }
+
+    /**
+     * Caches the result of a search.
+     *
+     * @param key       The key of the search.
+     * @param hits      The hits of the search.
+     * @param totalHits    The total number of hits.
+     * @param aggregations The aggregations over all the matching documents.
+     * @param results      The built result set, without lease and search time.
+     *                     Only kept if rendered entries are enabled.
+     */
+    void put(String key, ScoreDoc[] hits, int totalHits, Aggregations aggregations, ResultSet results)
+    {
+        if (ENABLED) {
+            RESULTS.put(key, new Entry(hits, totalHits, aggregations, RENDERED ? results : null));
+        }
+    }
+
+    /**
+     * Returns the hit/miss metrics of the cache in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        CacheStats stats = RESULTS.stats();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<resultcache>");
+        xml.append("<enabled>").append(ENABLED).append("</enabled>");
+        xml.append("<size>").append(RESULTS.size()).append("</size>");
+        xml.append("<hits>").append(stats.hitCount()).append("</hits>");
+        xml.append("<misses>").append(stats.missCount()).append("</misses>");
+        xml.append("<hitrate>").append(stats.hitRate()).append("</hitrate>");
+        xml.append("<evictions>").append(stats.evictionCount()).append("</evictions>");
+        xml.append("</resultcache>");
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Result cache: " + stats.toString());
+        }
+
+        return xml.toString();
+    }
+
+    /**
+     * A cached result. Must not be modified.
+     */
+    static final class Entry
+    {
+
+        final ScoreDoc[] hits;
+        final int totalHits;
+        final Aggregations aggregations;
+        /** The built result set without lease and search time, or NULL if not rendered. */
+        final ResultSet results;
+
+        private Entry(ScoreDoc[] hits, int totalHits, Aggregations aggregations, ResultSet results)
+        {
+            this.hits = hits;
+            this.totalHits = totalHits;
+            this.aggregations = aggregations;
+            this.results = results;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.apkc.quary.reactor.ResultSet;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Collapses concurrent identical searches of a node into one execution.
+ *
+ * <p>
+ * Searches are keyed like the result cache: by the definition, the node, the
+ * version of the reader, the scoring time and the normalized search parameters.
+ * The first search of a key is executed, and the identical searches that arrive
+ * while it's in flight wait for it and share its result. So a trending query
+ * that arrives hundreds of times at once is evaluated only once. Once finished
+ * its result is served by the result cache.
+ * </p>
+ *
+ * <p>
+ * The number of waiters per key is bounded. Searches above the bound are
+ * executed on their own, so one slow search can't hold an unbounded number of
+ * handlers.
+ * </p>
+ *
+ * <p>
+ * Waiters with a deadline don't wait past it. When it's reached they get an
+ * empty partial result set, like a search that ran out of time before finding
+ * any hit.
+ * </p>
+ *
+ * <p>
+ * The deadline isn't part of the key, so a search that ran out of time isn't
+ * shared. Its waiters may have more time left, and execute the search on their
+ * own instead.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class SearchCoalescer
+{
+
+    private static final Logger LOG = Logger.getLogger(SearchCoalescer.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final SearchCoalescer INSTANCE = new SearchCoalescer();
+    private final boolean ENABLED = CONF.getBoolean("node.search.coalescing.enabled", true);
+    private final int MAX_WAITERS = Math.max(CONF.getInt("node.search.coalescing.maxwaiters", 256), 0);
+    private final ConcurrentHashMap<String, Flight> FLIGHTS = new ConcurrentHashMap<>();
+    private final AtomicLong EXECUTIONS = new AtomicLong();
+    private final AtomicLong COALESCED = new AtomicLong();
+    private final AtomicLong OVERFLOWS = new AtomicLong();
+    private final AtomicLong TIMEOUTS = new AtomicLong();
+    private final AtomicLong PARTIALS = new AtomicLong();
+
+    /**
+     * Private default constructor.
+     */
+    private SearchCoalescer()
+    {
+    }
+
+    static SearchCoalescer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Executes a search, or waits for the identical one in flight.
+     *
+     * @param key      The key of the search.
+     * @param deadline The time when the wait must stop, or 0 for no deadline.
+     * @param search   The search to execute.
+     *
+     * @return The result set, without lease and search time, or NULL if the
+     *         search failed.
+     *
+     * @throws IOException If the search failed, or the wait was interrupted.
+     */
+    ResultSet execute(String key, long deadline, Search search) throws IOException
+    {
+        if (!ENABLED) {
+            return search.run();
+        }
+
+        Flight flight = new Flight();
+        Flight inFlight = FLIGHTS.putIfAbsent(key, flight);
+        if (inFlight == null) {
+            EXECUTIONS.incrementAndGet();
+            ResultSet results = null;
+            try {
+                results = search.run();
+                return results;
+            }
+            finally {
+                // Waiters of a failed search get no result.
+                FLIGHTS.remove(key, flight);
+                flight.complete(results);
+            }
+        }
+
+        if (inFlight.waiters.incrementAndGet() > MAX_WAITERS) {
+            inFlight.waiters.decrementAndGet();
+            OVERFLOWS.incrementAndGet();
+            return search.run();
+        }
+
+        COALESCED.incrementAndGet();
+        try {
+            if (deadline <= 0) {
+                inFlight.done.await();
+            }
+            else if (!inFlight.done.await(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS)) {
+                inFlight.waiters.decrementAndGet();
+                TIMEOUTS.incrementAndGet();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Search ran out of time waiting for an identical search ==> " + key);
+                }
+
+                return ResultSet.newBuild().setPartial(true);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical search.");
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Search coalesced ==> " + key);
+        }
+
+        // A partial result set depends on the deadline of the search that produced it.
+        ResultSet results = inFlight.results;
+        if (results != null && results.isPartial()) {
+            PARTIALS.incrementAndGet();
+            return search.run();
+        }
+
+        // Each waiter gets its own copy, since the lease and timing are set on it.
+        return results != null ? results.duplicate() : null;
+    }
+
+    /**
+     * Returns the metrics of the coalescing in XML format.
+     *
+     * @return The metrics.
+     */
+    String getStats()
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<coalescing>");
+        xml.append("<enabled>").append(ENABLED).append("</enabled>");
+        xml.append("<inflight>").append(FLIGHTS.size()).append("</inflight>");
+        xml.append("<executions>").append(EXECUTIONS.get()).append("</executions>");
+        xml.append("<coalesced>").append(COALESCED.get()).append("</coalesced>");
+        xml.append("<overflows>").append(OVERFLOWS.get()).append("</overflows>");
+        xml.append("<timeouts>").append(TIMEOUTS.get()).append("</timeouts>");
+        xml.append("<partials>").append(PARTIALS.get()).append("</partials>");
+        xml.append("</coalescing>");
+
+        return xml.toString();
+    }
+
+    /**
+     * A search that can be coalesced.
+     */
+    interface Search
+    {
+
+        ResultSet run() throws IOException;
+    }
+
+    /**
+     * A search in flight and its waiters.
+     */
+    private static final class Flight
+    {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger waiters = new AtomicInteger();
+        volatile ResultSet results = null;
+
+        void complete(ResultSet results)
+        {
+            this.results = results;
+            done.countDown();
+        }
+    }
+}
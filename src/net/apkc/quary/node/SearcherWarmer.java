@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionDB;
+import net.apkc.quary.exceptions.IncompleteSearchParametersException;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.Result;
+import net.apkc.quary.util.QuaryConfiguration;
+import net.apkc.quary.util.Timer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+
+/**
+ * The *Searcher Warmer* replays queries on new searchers before they are put into
+ * service.
+ *
+ * <p>
+ * After a re-open the first queries on new segments pay for loading norms, field
+ * caches and the OS page cache. To avoid this the warmer keeps a ring buffer with
+ * the most recent search parameters of each definition, and replays a sample of
+ * them, alongside the warm queries declared in the definition, on every new
+ * searcher.
+ * </p>
+ *
+ * <p>
+ * The definition is taken from the IndexDefinitionDB, so the warm queries are
+ * replayed even before the first search. If the DB doesn't have it, as on a node
+ * without a copy of the DB, the last definition seen in a search is used.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+final class SearcherWarmer
+{
+
+    private static final Logger LOG = Logger.getLogger(SearcherWarmer.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final SearcherWarmer INSTANCE = new SearcherWarmer();
+    private final boolean ENABLED = CONF.getBoolean("node.warming.enabled", true);
+    private final int RECENT_QUERIES = CONF.getInt("node.warming.recentqueries", 64);
+    private final int SAMPLE_SIZE = CONF.getInt("node.warming.sample", 16);
+    /** The last definition object seen for each definition ID, for definitions missing in the DB. */
+    private final Map<String, IndexDefinition> DEFINITIONS = new ConcurrentHashMap<>();
+    /** The recent queries for each definition ID. */
+    private final Map<String, QueryRing> RECENT = new ConcurrentHashMap<>();
+
+    /**
+     * Private default constructor.
+     */
+    private SearcherWarmer()
+    {
+    }
+
+    /**
+     * Returns the only instance of this class.
+     *
+     * @return The only instance of class.
+     */
+    static SearcherWarmer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a query performed by a user, so it can be replayed later on new searchers.
+     *
+     * @param def    The definition object used in the search.
+     * @param params The search parameters.
+     */
+    void record(IndexDefinition def, Parameters params)
+    {
+        if (!ENABLED) {
+            return;
+        }
+
+        DEFINITIONS.put(def.getDefinitionID(), def);
+        QueryRing ring = RECENT.get(def.getDefinitionID());
+        if (ring == null) {
+            RECENT.putIfAbsent(def.getDefinitionID(), new QueryRing(RECENT_QUERIES));
+            ring = RECENT.get(def.getDefinitionID());
+        }
+        ring.add(params);
+    }
+
+    /**
+     * Warms a searcher by replaying the definition's warm queries and a sample of the
+     * most recent queries. This method must be called before the searcher becomes
+     * visible to searches.
+     *
+     * @param definitionID The ID of the index.
+     * @param searcher     The new searcher.
+     */
+    void warm(String definitionID, IndexSearcher searcher)
+    {
+        if (!ENABLED) {
+            return;
+        }
+
+        IndexDefinition def = IndexDefinitionDB.getInstance().getDefinition(definitionID);
+        if (def == null) {
+            def = DEFINITIONS.get(definitionID);
+        }
+        if (def == null) {
+            return; // Without a definition there is no way to parse the queries.
+        }
+
+        Timer timer = new Timer();
+        timer.starTimer();
+
+        List<Parameters> queries = new ArrayList<>();
+        for (String q : def.getWarmQueries()) {
+            try {
+                queries.add(Parameters.newBuild().setQueryString(q));
+            }
+            catch (IncompleteSearchParametersException e) {
+                LOG.warn("Invalid warm query in definition " + definitionID + ".", e);
+            }
+        }
+        QueryRing ring = RECENT.get(definitionID);
+        if (ring != null) {
+            queries.addAll(ring.sample(SAMPLE_SIZE));
+        }
+
+        int warmed = 0;
+        for (Parameters params : queries) {
+            try {
+                Query query = NodeImplementation.applyGravity(NodeImplementation.parseQuery(def, params.getQueryString()));
+                Filter filter = NodeImplementation.buildFilter(def, params.getFilters());
+                // Collect the aggregations too, so their doc values are loaded.
+                TopDocsCollector<ScoreDoc> collector = NodeImplementation.newCollector(params);
+                searcher.search(query, filter, new AggregatingCollector(collector, params.getFacets(), params.getHistogramUnit()));
+                TopDocs docs = collector.topDocs();
+                // Load the stored fields of the hits too, as the response builder will.
+                Set<String> fieldsToLoad = Result.getFieldsToLoad(Result.getElements(params), def.getSummaryFields());
+                for (ScoreDoc hit : docs.scoreDocs) {
+                    searcher.doc(hit.doc, fieldsToLoad);
+                }
+                warmed++;
+            }
+            catch (IOException | ParseException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Error warming searcher with query \"" + params.getQueryString() + "\".", e);
+                }
+            }
+        }
+
+        timer.endTimer();
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Searcher warmed: " + warmed + " queries in " + timer.computeOperationTime(Timer.Time.MILLISECOND) + "ms.");
+        }
+    }
+
+    /**
+     * Fixed size ring buffer of search parameters. When the buffer is full the
+     * oldest parameters are overwritten.
+     */
+    static class QueryRing
+    {
+
+        final Parameters[] ring;
+        int next = 0;
+        int size = 0;
+
+        QueryRing(int capacity)
+        {
+            ring = new Parameters[Math.max(capacity, 1)];
+        }
+
+        synchronized void add(Parameters params)
+        {
+            ring[next] = params;
+            next = (next + 1) % ring.length;
+            size = Math.min(size + 1, ring.length);
+        }
+
+        /**
+         * Returns up to N distinct queries, starting with the most recent one.
+         *
+         * @param n The size of the sample.
+         *
+         * @return The sample of queries.
+         */
+        synchronized List<Parameters> sample(int n)
+        {
+            Map<String, Parameters> sample = new LinkedHashMap<>();
+            for (int k = 1; k <= size && sample.size() < n; k++) {
+                Parameters params = ring[(next - k + ring.length) % ring.length];
+                if (!sample.containsKey(params.getQueryString())) {
+                    sample.put(params.getQueryString(), params);
+                }
+            }
+
+            return new ArrayList<>(sample.values());
+        }
+    }
+}
@@ -53,6 +53,10 @@ public class Start
             final Integer NODE_HANDLERS = CONF.getInt("node.handlers", 10);
             final Integer NODE_QUEUE_SIZE_PER_HANDLER = CONF.getInt("node.queuesizeperhandler", 10);
             final Integer NODE_READERS = CONF.getInt("node.readers", 10);
+            final Integer NODE_SEARCH_PORT = args.length > 1 ? Integer.parseInt(args[1]) : NODE_PORT + 1;
+            final Integer NODE_SEARCH_HANDLERS = CONF.getInt("node.search.handlers", 10);
+            final Integer NODE_SEARCH_QUEUE_SIZE_PER_HANDLER = CONF.getInt("node.search.queuesizeperhandler", 100);
+            final Integer NODE_SEARCH_READERS = CONF.getInt("node.search.readers", 4);
 
             System.out.printf("Starting node...\n");
             System.out.printf("\tBind Address: %s\n", NODE_ADDRESS);
@@ -60,17 +64,38 @@ public class Start
             System.out.printf("\tHandlers: %d\n", NODE_HANDLERS);
             System.out.printf("\tQueue Size Per Handler: %d\n", NODE_QUEUE_SIZE_PER_HANDLER);
             System.out.printf("\tReaders: %d\n", NODE_READERS);
+            System.out.printf("\tSearch Port: %d\n", NODE_SEARCH_PORT);
+            System.out.printf("\tSearch Handlers: %d\n", NODE_SEARCH_HANDLERS);
+            System.out.printf("\tSearch Queue Size Per Handler: %d\n", NODE_SEARCH_QUEUE_SIZE_PER_HANDLER);
+            System.out.printf("\tSearch Readers: %d\n", NODE_SEARCH_READERS);
             System.out.printf("\tRegistering node with *Brain* at address *%s:%d*.\n", CONF.get("brain.host", "lucy.local"), CONF.getInt("brain.port", 14998));
             BrainConnection
                     .getConnection()
                     .registerNode(Node
                             .newBuild()
                             .setIpAddress(NODE_IP_ADDRESS)
-                            .setPort(String.valueOf(NODE_PORT)));
+                            .setPort(String.valueOf(NODE_PORT))
+                            .setSearchPort(String.valueOf(NODE_SEARCH_PORT)));
+
+            // Searches and writes are served by different servers, each one with its own handlers
+            // and call queue, so a burst of writes never leaves searches waiting for a handler.
+            // The search server only serves the search methods.
+            final NodeImplementation NODE = new NodeImplementation();
+            RPC.Server searchSrv = new RPC.Builder(CONF)
+                    .setProtocol(NodeSearchInterface.class)
+                    .setInstance(NODE)
+                    .setBindAddress(NODE_ADDRESS)
+                    .setPort(NODE_SEARCH_PORT)
+                    .setNumHandlers(NODE_SEARCH_HANDLERS)
+                    .setQueueSizePerHandler(NODE_SEARCH_QUEUE_SIZE_PER_HANDLER)
+                    .setnumReaders(NODE_SEARCH_READERS)
+                    .setVerbose(true)
+                    .build();
+            searchSrv.start();
 
             RPC.Server srv = new RPC.Builder(CONF)
                     .setProtocol(NodeInterface.class)
-                    .setInstance(new NodeImplementation())
+                    .setInstance(NODE)
                     .setBindAddress(NODE_ADDRESS)
                     .setPort(NODE_PORT)
                     .setNumHandlers(NODE_HANDLERS)
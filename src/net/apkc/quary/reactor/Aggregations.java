@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.reactor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * An instance of this class holds the aggregations computed over all the
+ * documents matching a search: term counts per field and a date histogram over
+ * the index time.
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public final class Aggregations implements Writable
+{
+
+    private final Map<String, Map<String, Integer>> terms = new TreeMap<>();
+    private final SortedMap<Long, Integer> histogram = new TreeMap<>();
+    private int histogramUnit = 0;
+
+    /**
+     * Always make the constructor private. To create a new instance of the
+     * class we must use the method newBuild().
+     */
+    private Aggregations()
+    {
+        // Always empty.
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(terms.size());
+        for (Map.Entry<String, Map<String, Integer>> field : terms.entrySet()) {
+            out.writeUTF(field.getKey());
+            out.writeInt(field.getValue().size());
+            for (Map.Entry<String, Integer> term : field.getValue().entrySet()) {
+                out.writeUTF(term.getKey());
+                out.writeInt(term.getValue());
+            }
+        }
+        out.writeInt(histogramUnit);
+        out.writeInt(histogram.size());
+        for (Map.Entry<Long, Integer> bucket : histogram.entrySet()) {
+            out.writeLong(bucket.getKey());
+            out.writeInt(bucket.getValue());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        terms.clear();
+        int fieldsLength = in.readInt();
+        for (int k = 0; k < fieldsLength; k++) {
+            String field = in.readUTF();
+            int termsLength = in.readInt();
+            for (int j = 0; j < termsLength; j++) {
+                addTermCount(field, in.readUTF(), in.readInt());
+            }
+        }
+        histogramUnit = in.readInt();
+        histogram.clear();
+        int bucketsLength = in.readInt();
+        for (int k = 0; k < bucketsLength; k++) {
+            addHistogramCount(in.readLong(), in.readInt());
+        }
+    }
+
+    public static Aggregations newBuild()
+    {
+        return new Aggregations();
+    }
+
+    /**
+     * Adds to the count of a term in a field.
+     *
+     * @param field The name of the field.
+     * @param term  The term.
+     * @param count The count to add.
+     *
+     * @return This object.
+     */
+    public Aggregations addTermCount(String field, String term, int count)
+    {
+        terms.computeIfAbsent(field, (f) -> new TreeMap<>()).merge(term, count, Integer::sum);
+        return this;
+    }
+
+    /**
+     * Adds to the count of a bucket of the date histogram.
+     *
+     * @param bucket The start of the bucket, in milliseconds.
+     * @param count  The count to add.
+     *
+     * @return This object.
+     */
+    public Aggregations addHistogramCount(long bucket, int count)
+    {
+        histogram.merge(bucket, count, Integer::sum);
+        return this;
+    }
+
+    /**
+     * The unit of the buckets of the date histogram. i.e.
+     * DateRangeFilter.DAY_RANGE
+     *
+     * @param histogramUnit The unit.
+     *
+     * @return This object.
+     */
+    public Aggregations setHistogramUnit(int histogramUnit)
+    {
+        this.histogramUnit = histogramUnit;
+        return this;
+    }
+
+    /**
+     * Adds the counts of other aggregations to these ones. Used to merge the
+     * aggregations of several shards.
+     *
+     * @param other The other aggregations.
+     *
+     * @return This object.
+     */
+    public Aggregations merge(Aggregations other)
+    {
+        for (Map.Entry<String, Map<String, Integer>> field : other.terms.entrySet()) {
+            for (Map.Entry<String, Integer> term : field.getValue().entrySet()) {
+                addTermCount(field.getKey(), term.getKey(), term.getValue());
+            }
+        }
+        for (Map.Entry<Long, Integer> bucket : other.histogram.entrySet()) {
+            addHistogramCount(bucket.getKey(), bucket.getValue());
+        }
+        if (other.histogramUnit > 0) {
+            histogramUnit = other.histogramUnit;
+        }
+
+        return this;
+    }
+
+    public Set<String> getFields()
+    {
+        return terms.keySet();
+    }
+
+    public Map<String, Integer> getTermCounts(String field)
+    {
+        return terms.containsKey(field) ? terms.get(field) : Collections.<String, Integer>emptyMap();
+    }
+
+    public SortedMap<Long, Integer> getHistogram()
+    {
+        return histogram;
+    }
+
+    public int getHistogramUnit()
+    {
+        return histogramUnit;
+    }
+}
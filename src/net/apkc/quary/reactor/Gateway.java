@@ -0,0 +1,972 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import net.apkc.emma.tasks.TasksHandler;
+import net.apkc.quary.brain.SearchBroker;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionDB;
+import net.apkc.quary.exceptions.IncompleteSearchParametersException;
+import net.apkc.quary.exceptions.ServerNotConfiguredException;
+import net.apkc.quary.util.QuaryConfiguration;
+import net.apkc.quary.util.TaskExecutor;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents the NIO HTTP/1.1 search gateway of the Brain, which is
+ * implemented using the Reactor Pattern.
+ *
+ * <p>
+ * One thread multiplexes all the connections, so front-end traffic doesn't need
+ * a thread per connection. Every complete request of a connection is dispatched
+ * at once to the tasks pool, or to a virtual thread if the brain is configured
+ * so, and pipelined requests are searched in parallel.
+ * The responses are queued per connection in the order of the requests, and
+ * they are written without blocking whenever the socket can take more data.
+ * Connections are kept alive unless the client asks otherwise.
+ * </p>
+ *
+ * <p>
+ * Result sets are rendered straight into chunks of the response, with HTTP/1.1
+ * chunked transfer encoding, or with the connection closed after the body for
+ * HTTP/1.0 clients. A response is only rendered once the responses before it
+ * have been written, so the result sets of the pipelined requests wait in
+ * memory, not threads. Only a few chunks of a response are queued at once. The
+ * task rendering it waits until they are written, so a slow client can't make
+ * the brain hold whole responses in memory, and holds at most one task per
+ * connection. Requests with a chunked body are rejected, their length must be
+ * known.
+ * </p>
+ *
+ * <p>
+ * Searches are made with GET (or POST) /search. The query parameters are mapped
+ * onto the Parameters builder, see {@link #makeParameters(Map)}, and the search
+ * is made on all the nodes by the SearchBroker. The result is rendered in XML,
+ * or in JSON with format=json. Several searches can be made at once with POST
+ * /msearch, one query string per line of the body, and the result sets are
+ * returned in one response.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Builder_pattern">Builder Pattern</a>
+ * @see <a href="http://en.wikipedia.org/wiki/Reactor_pattern">Reactor Pattern</a>
+ */
+public class Gateway
+{
+
+    private static final Logger LOG = Logger.getLogger(Gateway.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+    private final int MAX_REQUEST_SIZE = CONF.getInt("gateway.request.maxsize", 65536);
+    private final int MAX_PIPELINED = CONF.getInt("gateway.pipeline.max", 16);
+    private final long KEEPALIVE_TIMEOUT = CONF.getLong("gateway.keepalive.timeout", 30000L);
+    private final int CHUNK_SIZE = Math.max(CONF.getInt("gateway.response.chunksize", 16384), 1024);
+    private final int MAX_CHUNKS = Math.max(CONF.getInt("gateway.response.maxchunks", 4), 1);
+    private final TaskExecutor SEARCHERS = TaskExecutor.newBuild()
+            .setName("QUARY:GATEWAY")
+            .setMode(CONF.get("brain.executor.mode", TaskExecutor.POOL))
+            .start();
+    /** Connections with responses completed by the tasks, waiting to be written. */
+    private final Queue<Connection> COMPLETED = new ConcurrentLinkedQueue<>();
+    private Selector selector = null;
+    private ServerSocketChannel server = null;
+    private boolean isConfigured = false;
+    private long lastSweep = 0L;
+
+    private Gateway()
+    {
+    }
+
+    public static Gateway newBuild()
+    {
+        return new Gateway();
+    }
+
+    public Gateway configure(int port) throws IOException
+    {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(new InetSocketAddress("0.0.0.0", port));
+        isConfigured = true;
+
+        System.out.println("\tGateway configured...");
+
+        return this;
+    }
+
+    public void startGateway() throws IOException, ServerNotConfiguredException
+    {
+        if (!isConfigured) {
+            throw new ServerNotConfiguredException("The gateway wasn't configured!");
+        }
+
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            selector.select(1000);
+
+            // Write the responses completed since the last round.
+            Connection completed;
+            while ((completed = COMPLETED.poll()) != null) {
+                try {
+                    completed.write();
+                }
+                catch (IOException e) {
+                    completed.close();
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    SocketChannel socket = server.accept();
+                    if (socket != null) {
+                        socket.configureBlocking(false);
+                        Connection conn = new Connection(socket);
+                        conn.key = socket.register(selector, SelectionKey.OP_READ, conn);
+                    }
+                    continue;
+                }
+
+                Connection conn = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        conn.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.write();
+                    }
+                }
+                catch (IOException e) {
+                    // The client has gone away.
+                    conn.close();
+                }
+            }
+
+            closeIdleConnections();
+        }
+    }
+
+    /**
+     * Closes the kept alive connections which have been idle for too long.
+     */
+    private void closeIdleConnections()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < 1000L) {
+            return;
+        }
+        lastSweep = now;
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection conn = (Connection) key.attachment();
+                if (conn.responses.isEmpty() && now - conn.lastActive > KEEPALIVE_TIMEOUT) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the query parameters of a request onto the Parameters builder.
+     *
+     * <ul>
+     * <li>q: The query string. (Mandatory)</li>
+     * <li>start, end: The start and end offsets.</li>
+     * <li>formatdate: 1 to format the dates.</li>
+     * <li>timerange, dateunit, timefactor: The date range filter.</li>
+     * <li>filetype, lang: The filetype and language filters.</li>
+     * <li>dedup, hamming: The deduplication of near-duplicates.</li>
+     * <li>fields, facets, histogram: The elements and aggregations to return.</li>
+     * <li>after: The cursor of the previous page.</li>
+     * <li>lease, leaseid: Open a lease, or search with a lease.</li>
+     * <li>timeout: The time in milliseconds the search may take.</li>
+     * </ul>
+     *
+     * @param query The query parameters.
+     *
+     * @return The parameters of the search.
+     *
+     * @throws IncompleteSearchParametersException If there's no query string.
+     */
+    static Parameters makeParameters(Map<String, String> query) throws IncompleteSearchParametersException
+    {
+        Parameters params = Parameters.newBuild().setQueryString(query.get("q"));
+        for (Map.Entry<String, String> e : query.entrySet()) {
+            String value = e.getValue();
+            switch (e.getKey()) {
+                case "start":
+                    params.setStartOffset(value);
+                    break;
+                case "end":
+                    params.setEndOffset(value);
+                    break;
+                case "formatdate":
+                    params.setUseFormattedDate(value);
+                    break;
+                case "timerange":
+                    params.setUseTimeRange(value);
+                    break;
+                case "dateunit":
+                    params.setDateRangeUnit(value);
+                    break;
+                case "timefactor":
+                    params.setDateRangeTimeFactor(value);
+                    break;
+                case "filetype":
+                    params.setFileRangeUnit(value);
+                    break;
+                case "lang":
+                    params.setLanguageRangeUnit(value);
+                    break;
+                case "dedup":
+                    params.setUseDeduplication(value);
+                    break;
+                case "hamming":
+                    params.setMaxHammingDistance(value);
+                    break;
+                case "fields":
+                    params.setReturnFields(value);
+                    break;
+                case "facets":
+                    params.setFacets(value);
+                    break;
+                case "histogram":
+                    params.setHistogramUnit(value);
+                    break;
+                case "after":
+                    params.setSearchAfter(value);
+                    break;
+                case "lease":
+                    params.setOpenLease(value);
+                    break;
+                case "leaseid":
+                    params.setLeaseID(value);
+                    break;
+                case "timeout":
+                    params.setTimeout(value);
+                    break;
+            }
+        }
+
+        return params.setFilters();
+    }
+
+    /**
+     * Parses the query string of a request, or a form encoded body.
+     *
+     * @param query The query string.
+     * @param map   The map where to put the parameters.
+     *
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported.
+     */
+    private static void parseQuery(String query, Map<String, String> map) throws UnsupportedEncodingException
+    {
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                map.put(URLDecoder.decode(pair, "UTF-8"), "");
+            }
+            else {
+                map.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+    }
+
+    /**
+     * Makes the head of an HTTP response.
+     *
+     * @param status        The status line. i.e. "200 OK"
+     * @param contentType   The content type of the body.
+     * @param contentLength The length of the body, or -1 if it's streamed.
+     * @param chunked       If a streamed body is sent in chunks, instead of
+     *                      until the connection is closed.
+     * @param close         If the connection will be closed after the response.
+     *
+     * @return The head of the response.
+     */
+    private static ByteBuffer makeHead(String status, String contentType, int contentLength, boolean chunked, boolean close)
+    {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("; charset=UTF-8\r\n");
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        else if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("Connection: ").append(close ? "close" : "keep-alive").append("\r\n");
+        head.append("\r\n");
+
+        return ByteBuffer.wrap(head.toString().getBytes(ASCII));
+    }
+
+    /**
+     * Runs a task of the gateway in the tasks pool, or in a virtual thread if
+     * the brain is configured so.
+     *
+     * @param task The task.
+     */
+    private void execute(Runnable task)
+    {
+        if (SEARCHERS.isVirtual()) {
+            SEARCHERS.submit(task);
+        }
+        else {
+            TasksHandler.getInstance().submitFiniteTask(task);
+        }
+    }
+
+    private static ByteBuffer[] makeError(String status, boolean close)
+    {
+        byte[] body = (status + "\n").getBytes(UTF8);
+        return new ByteBuffer[]{makeHead(status, "text/plain", body.length, false, close), ByteBuffer.wrap(body)};
+    }
+
+    /**
+     * A response, in the order of the request. Its data is queued by the task
+     * that renders it, and taken by the gateway thread as it's written. The
+     * rendering starts when the response is the first of its connection, and
+     * waits while too many buffers are queued.
+     */
+    private final class Response
+    {
+
+        volatile boolean close;
+        private final Deque<ByteBuffer> data = new ArrayDeque<>();
+        private boolean finished = false;
+        private boolean aborted = false;
+        /** The rendering of the response, until it's started. */
+        private Runnable render = null;
+
+        Response(boolean close)
+        {
+            this.close = close;
+        }
+
+        /**
+         * Queues the whole response. Never waits, so it can be used from the
+         * gateway thread.
+         */
+        synchronized void complete(ByteBuffer[] response)
+        {
+            for (ByteBuffer b : response) {
+                data.add(b);
+            }
+            finished = true;
+        }
+
+        /**
+         * Sets the rendering of the response, to be started when the response
+         * is the first of its connection.
+         *
+         * @param render The task that renders the response.
+         */
+        synchronized void ready(Runnable render)
+        {
+            if (!aborted) {
+                this.render = render;
+            }
+        }
+
+        /**
+         * Returns the rendering of the response the first time it's called after
+         * ready(), NULL otherwise.
+         *
+         * @return The task that renders the response, or NULL.
+         */
+        synchronized Runnable takeRender()
+        {
+            Runnable r = render;
+            render = null;
+
+            return r;
+        }
+
+        /**
+         * Queues a part of the response, waiting while the queue is full.
+         *
+         * @param buffer The part.
+         * @param last   If it's the last part.
+         *
+         * @throws IOException If the connection was closed, or the wait was
+         *                     interrupted.
+         */
+        synchronized void offer(ByteBuffer buffer, boolean last) throws IOException
+        {
+            try {
+                while (data.size() >= MAX_CHUNKS && !aborted) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while streaming a response.");
+            }
+            if (aborted) {
+                throw new IOException("The connection was closed.");
+            }
+
+            data.add(buffer);
+            finished = last;
+        }
+
+        /**
+         * Ends a response that couldn't be completed. The connection is closed
+         * after the data already queued, since the client can't tell where the
+         * response ends.
+         */
+        synchronized void fail()
+        {
+            close = true;
+            finished = true;
+        }
+
+        synchronized ByteBuffer peek()
+        {
+            return data.peek();
+        }
+
+        /**
+         * Removes the buffer written, and lets the task queue another one.
+         */
+        synchronized void written()
+        {
+            data.poll();
+            notifyAll();
+        }
+
+        synchronized boolean hasData()
+        {
+            return !data.isEmpty();
+        }
+
+        synchronized boolean isWritten()
+        {
+            return finished && data.isEmpty();
+        }
+
+        /**
+         * Drops the response, because the connection was closed.
+         */
+        synchronized void abort()
+        {
+            aborted = true;
+            render = null;
+            data.clear();
+            notifyAll();
+        }
+
+        synchronized boolean isAborted()
+        {
+            return aborted;
+        }
+    }
+
+    /**
+     * Encodes the text appended to it into UTF-8, and queues it in chunks of at
+     * most CHUNK_SIZE characters in a response.
+     */
+    private final class ChunkedEncoder implements Appendable
+    {
+
+        final Connection connection;
+        final Response response;
+        final boolean chunked;
+        final CharsetEncoder encoder = UTF8.newEncoder();
+        final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        /** If any part of the response was queued. */
+        boolean started = false;
+
+        ChunkedEncoder(Connection connection, Response response, boolean chunked)
+        {
+            this.connection = connection;
+            this.response = response;
+            this.chunked = chunked;
+        }
+
+        void start(String contentType) throws IOException
+        {
+            connection.send(response, makeHead("200 OK", contentType, -1, chunked, response.close), false);
+            started = true;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException
+        {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException
+        {
+            while (start < end) {
+                if (!chars.hasRemaining()) {
+                    flush(false);
+                }
+                int length = Math.min(chars.remaining(), end - start);
+                chars.append(csq, start, start + length);
+                start += length;
+            }
+
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException
+        {
+            if (!chars.hasRemaining()) {
+                flush(false);
+            }
+            chars.put(c);
+
+            return this;
+        }
+
+        /**
+         * Queues the characters appended so far as one chunk.
+         *
+         * @param last If it's the end of the response.
+         */
+        void flush(boolean last) throws IOException
+        {
+            ByteBuffer body = ByteBuffer.allocate((int) (chars.position() * encoder.maxBytesPerChar()) + 8);
+            chars.flip();
+            encoder.encode(chars, body, last);
+            if (last) {
+                encoder.flush(body);
+            }
+            chars.compact(); // A high surrogate at the end waits for its pair.
+            body.flip();
+            if (!body.hasRemaining() && !last) {
+                return;
+            }
+
+            if (!chunked) {
+                connection.send(response, body, last);
+                return;
+            }
+
+            byte[] size = (Integer.toHexString(body.remaining()) + "\r\n").getBytes(ASCII);
+            ByteBuffer chunk = ByteBuffer.allocate(size.length + body.remaining() + (last ? 7 : 2));
+            if (body.hasRemaining()) {
+                chunk.put(size).put(body).put((byte) '\r').put((byte) '\n');
+            }
+            if (last) {
+                chunk.put("0\r\n\r\n".getBytes(ASCII));
+            }
+            chunk.flip();
+            connection.send(response, chunk, last);
+        }
+    }
+
+    /**
+     * The state of a client connection. Only used from the gateway thread, but
+     * for the completion of its responses.
+     */
+    private final class Connection
+    {
+
+        final SocketChannel channel;
+        final Deque<Response> responses = new ArrayDeque<>();
+        SelectionKey key = null;
+        ByteBuffer input = ByteBuffer.allocate(8192);
+        long lastActive = System.currentTimeMillis();
+        /** If no more requests will be read, because the connection will be closed. */
+        boolean closing = false;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void read() throws IOException
+        {
+            if (!input.hasRemaining()) {
+                if (input.capacity() >= MAX_REQUEST_SIZE) {
+                    reject("413 Request Entity Too Large");
+                    return;
+                }
+
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, MAX_REQUEST_SIZE));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+
+            if (channel.read(input) == -1) {
+                close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+            parse();
+        }
+
+        /**
+         * Dispatches all the complete requests in the input, up to the pipelining
+         * limit.
+         */
+        void parse() throws IOException
+        {
+            while (!closing && responses.size() < MAX_PIPELINED) {
+                // Find the end of the head of the request.
+                int end = -1;
+                for (int k = 3; k < input.position(); k++) {
+                    if (input.get(k - 3) == '\r' && input.get(k - 2) == '\n' && input.get(k - 1) == '\r' && input.get(k) == '\n') {
+                        end = k + 1;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    break;
+                }
+
+                String[] lines = new String(input.array(), 0, end - 4, ASCII).split("\r\n");
+                String[] requestLine = lines[0].split(" ");
+                if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                    reject("400 Bad Request");
+                    return;
+                }
+
+                Map<String, String> headers = new HashMap<>();
+                for (int k = 1; k < lines.length; k++) {
+                    int colon = lines[k].indexOf(':');
+                    if (colon > 0) {
+                        headers.put(lines[k].substring(0, colon).trim().toLowerCase(), lines[k].substring(colon + 1).trim());
+                    }
+                }
+
+                if (headers.containsKey("transfer-encoding")) {
+                    // Without a length the end of the body can't be found.
+                    reject("411 Length Required");
+                    return;
+                }
+
+                int contentLength = 0;
+                try {
+                    if (headers.containsKey("content-length")) {
+                        contentLength = Integer.parseInt(headers.get("content-length"));
+                    }
+                }
+                catch (NumberFormatException e) {
+                    reject("400 Bad Request");
+                    return;
+                }
+                if (contentLength < 0 || end + contentLength > MAX_REQUEST_SIZE) {
+                    reject("413 Request Entity Too Large");
+                    return;
+                }
+                if (input.position() < end + contentLength) {
+                    break; // Wait for the rest of the body.
+                }
+
+                String body = new String(input.array(), end, contentLength, UTF8);
+
+                // Consume the request.
+                input.flip();
+                input.position(end + contentLength);
+                input.compact();
+
+                // HTTP/1.0 clients can't read chunks, their responses end when the connection is closed.
+                boolean chunked = !requestLine[2].equals("HTTP/1.0");
+                boolean keepAlive = chunked && !"close".equalsIgnoreCase(headers.get("connection"));
+                dispatch(requestLine[0], requestLine[1], body, chunked, !keepAlive);
+            }
+
+            updateInterest();
+        }
+
+        /**
+         * Services a request in the tasks pool.
+         */
+        void dispatch(String method, String target, String body, boolean chunked, boolean close)
+        {
+            final Response response = new Response(close);
+            responses.add(response);
+            closing = close;
+
+            int q = target.indexOf('?');
+            String path = q < 0 ? target : target.substring(0, q);
+            if (!method.equals("GET") && !method.equals("POST")) {
+                response.complete(makeError("405 Method Not Allowed", close));
+                return;
+            }
+            if (!path.equals("/search") && !path.equals("/msearch")) {
+                response.complete(makeError("404 Not Found", close));
+                return;
+            }
+
+            final boolean isBatch = path.equals("/msearch");
+            final Map<String, String> query = new HashMap<>();
+            final List<Map<String, String>> searches = new ArrayList<>();
+            try {
+                parseQuery(q < 0 ? "" : target.substring(q + 1), query);
+                if (isBatch) {
+                    // One search per line of the body. Parameters of the URL apply to all of them.
+                    for (String line : body.split("\n")) {
+                        if (!line.trim().isEmpty()) {
+                            Map<String, String> search = new HashMap<>(query);
+                            parseQuery(line.trim(), search);
+                            searches.add(search);
+                        }
+                    }
+                }
+                else {
+                    if (method.equals("POST")) {
+                        parseQuery(body, query);
+                    }
+                    searches.add(query);
+                }
+            }
+            catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                response.complete(makeError("400 Bad Request", close));
+                return;
+            }
+
+            execute(() -> {
+                try {
+                    search(query, searches, isBatch, response, chunked);
+                }
+                catch (Exception e) {
+                    if (!response.isAborted()) {
+                        LOG.error("Error servicing search request.", e);
+                    }
+                    response.complete(makeError("500 Internal Server Error", close));
+                }
+
+                COMPLETED.add(this);
+                selector.wakeup();
+            });
+        }
+
+        /**
+         * Makes the searches, and leaves the rendering of the result sets ready
+         * to be started when the response is the first of the connection.
+         */
+        void search(Map<String, String> query, List<Map<String, String>> searches, boolean isBatch, Response response, boolean chunked)
+        {
+            IndexDefinition def = IndexDefinitionDB.getInstance().getDefinition(query.containsKey("def") ? query.get("def") : "000");
+            if (def == null) {
+                response.complete(makeError("404 Not Found", response.close));
+                return;
+            }
+
+            Parameters[] batch = new Parameters[searches.size()];
+            try {
+                for (int k = 0; k < batch.length; k++) {
+                    batch[k] = makeParameters(searches.get(k));
+                }
+            }
+            catch (IncompleteSearchParametersException e) {
+                response.complete(makeError("400 Bad Request", response.close));
+                return;
+            }
+
+            ResultSet[] results = SearchBroker.getInstance().searchBatch(def, batch);
+            boolean json = "json".equals(query.get("format"));
+            response.ready(() -> {
+                ChunkedEncoder out = new ChunkedEncoder(this, response, chunked);
+                try {
+                    render(results, isBatch, json, out);
+                }
+                catch (Exception e) {
+                    if (!response.isAborted()) {
+                        LOG.error("Error rendering search response.", e);
+                    }
+                    if (out.started) {
+                        response.fail();
+                    }
+                    else {
+                        response.complete(makeError("500 Internal Server Error", response.close));
+                    }
+                }
+
+                COMPLETED.add(this);
+                selector.wakeup();
+            });
+        }
+
+        /**
+         * Renders the result sets into the response.
+         */
+        void render(ResultSet[] results, boolean isBatch, boolean json, ChunkedEncoder out) throws IOException
+        {
+            out.start(json ? "application/json" : "application/xml");
+            if (isBatch) {
+                if (json) {
+                    ResultSet.writeJSON(results, out);
+                }
+                else {
+                    ResultSet.writeXML(results, out);
+                }
+            }
+            else {
+                if (json) {
+                    results[0].writeJSON(out);
+                }
+                else {
+                    results[0].writeXML(out);
+                }
+            }
+            out.flush(true);
+        }
+
+        /**
+         * Queues a part of a response, and has the gateway thread write it.
+         */
+        void send(Response response, ByteBuffer buffer, boolean last) throws IOException
+        {
+            response.offer(buffer, last);
+            COMPLETED.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Writes the finished responses in order, as long as the socket takes them.
+         */
+        void write() throws IOException
+        {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            Response head;
+            while ((head = responses.peek()) != null) {
+                // Only the first response is rendered, so only its task can wait for the client.
+                Runnable render = head.takeRender();
+                if (render != null) {
+                    execute(render);
+                }
+
+                ByteBuffer data;
+                while ((data = head.peek()) != null) {
+                    channel.write(data);
+                    if (data.hasRemaining()) {
+                        break; // The socket is full, wait until it's writable.
+                    }
+                    head.written();
+                }
+                if (!head.isWritten()) {
+                    break; // The socket is full, or the rest isn't rendered yet.
+                }
+
+                responses.poll();
+                if (head.close) {
+                    close();
+                    return;
+                }
+            }
+
+            lastActive = System.currentTimeMillis();
+            parse(); // There may be room for more pipelined requests.
+        }
+
+        /**
+         * Answers with an error and closes the connection after the pending
+         * responses.
+         */
+        void reject(String status) throws IOException
+        {
+            Response response = new Response(true);
+            response.complete(makeError(status, true));
+            responses.add(response);
+            closing = true;
+            input.clear();
+            updateInterest();
+        }
+
+        void updateInterest()
+        {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = 0;
+            if (!closing && responses.size() < MAX_PIPELINED) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!responses.isEmpty() && responses.peek().hasData()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close()
+        {
+            // Tasks streaming into the responses must stop waiting.
+            for (Response response : responses) {
+                response.abort();
+            }
+            responses.clear();
+            key.cancel();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+}
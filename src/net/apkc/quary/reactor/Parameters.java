@@ -28,12 +28,18 @@ package net.apkc.quary.reactor;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import net.apkc.quary.exceptions.IncompleteSearchParametersException;
 import net.apkc.quary.filters.DateRangeFilter;
 import net.apkc.quary.filters.FieldFilter;
 import net.apkc.quary.filters.QuaryFilter;
 import net.apkc.quary.filters.QuaryFilters;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.lucene.search.ScoreDoc;
 
 /**
  * An instance of this class represents the parameters sent by the user for
@@ -55,8 +61,20 @@ public final class Parameters implements Writable
     private String fileRangeUnit = ""; // Don't allow null, breaks serialization.
     private String languageRangeUnit = ""; // Don't allow null, breaks serialization.
     private boolean useDeduplication = false;
-    private int maxHammingDistance = 32;
+    private int maxHammingDistance = 3;
     private QuaryFilters filters = new QuaryFilters();
+    private List<String> returnFields = new ArrayList<>(0); // Empty means all fields.
+    private List<String> facets = new ArrayList<>(Collections.singletonList("filetype"));
+    private int histogramUnit = 0; // 0 means no histogram.
+    private String shardID = ""; // Don't allow null, breaks serialization.
+    private boolean useSearchAfter = false;
+    private float afterScore = 0.0f;
+    private int afterDoc = -1;
+    private String afterShard = ""; // Don't allow null, breaks serialization.
+    private boolean openLease = false;
+    private String leaseID = ""; // Don't allow null, breaks serialization.
+    private boolean prefetch = false;
+    private long timeout = 0L; // 0 means no deadline.
 
     /**
      * Always make the constructor private. To create a new instance of the
@@ -82,6 +100,24 @@ public final class Parameters implements Writable
         out.writeBoolean(this.useDeduplication);
         out.writeInt(this.maxHammingDistance);
         this.filters.write(out);
+        out.writeInt(this.returnFields.size());
+        for (String f : this.returnFields) {
+            out.writeUTF(f);
+        }
+        out.writeInt(this.facets.size());
+        for (String f : this.facets) {
+            out.writeUTF(f);
+        }
+        out.writeInt(this.histogramUnit);
+        out.writeUTF(this.shardID);
+        out.writeBoolean(this.useSearchAfter);
+        out.writeFloat(this.afterScore);
+        out.writeInt(this.afterDoc);
+        out.writeUTF(this.afterShard);
+        out.writeBoolean(this.openLease);
+        out.writeUTF(this.leaseID);
+        out.writeBoolean(this.prefetch);
+        out.writeLong(this.timeout);
     }
 
     @Override
@@ -99,6 +135,26 @@ public final class Parameters implements Writable
         this.useDeduplication = in.readBoolean();
         this.maxHammingDistance = in.readInt();
         this.filters = QuaryFilters.read(in);
+        int returnFieldsLength = in.readInt();
+        this.returnFields = new ArrayList<>(returnFieldsLength);
+        for (int k = 0; k < returnFieldsLength; k++) {
+            this.returnFields.add(in.readUTF());
+        }
+        int facetsLength = in.readInt();
+        this.facets = new ArrayList<>(facetsLength);
+        for (int k = 0; k < facetsLength; k++) {
+            this.facets.add(in.readUTF());
+        }
+        this.histogramUnit = in.readInt();
+        this.shardID = in.readUTF();
+        this.useSearchAfter = in.readBoolean();
+        this.afterScore = in.readFloat();
+        this.afterDoc = in.readInt();
+        this.afterShard = in.readUTF();
+        this.openLease = in.readBoolean();
+        this.leaseID = in.readUTF();
+        this.prefetch = in.readBoolean();
+        this.timeout = in.readLong();
     }
 
     public static Parameters newBuild()
@@ -106,6 +162,30 @@ public final class Parameters implements Writable
         return new Parameters();
     }
 
+    /**
+     * Returns a copy of these parameters, which can be changed without affecting
+     * this object. Used to send the search to each shard.
+     *
+     * @return The copy.
+     */
+    public Parameters duplicate()
+    {
+        try {
+            DataOutputBuffer out = new DataOutputBuffer();
+            write(out);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(out.getData(), out.getLength());
+            Parameters copy = new Parameters();
+            copy.readFields(in);
+
+            return copy;
+        }
+        catch (IOException e) {
+            // Can't happen with in-memory buffers.
+            throw new IllegalStateException(e);
+        }
+    }
+
     public String getQueryString()
     {
         return this.queryString;
@@ -141,6 +221,131 @@ public final class Parameters implements Writable
         return this.filters;
     }
 
+    public List<String> getReturnFields()
+    {
+        return this.returnFields;
+    }
+
+    public List<String> getFacets()
+    {
+        return this.facets;
+    }
+
+    public int getHistogramUnit()
+    {
+        return this.histogramUnit;
+    }
+
+    public String getShardID()
+    {
+        return this.shardID;
+    }
+
+    public boolean getOpenLease()
+    {
+        return this.openLease;
+    }
+
+    public String getLeaseID()
+    {
+        return this.leaseID;
+    }
+
+    public boolean getPrefetch()
+    {
+        return this.prefetch;
+    }
+
+    public long getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Returns the last hit of the previous page, if the search continues from a
+     * cursor.
+     *
+     * @return The last hit, or NULL if the search uses offsets.
+     */
+    public ScoreDoc getSearchAfter()
+    {
+        return this.useSearchAfter ? new ScoreDoc(this.afterDoc, this.afterScore) : null;
+    }
+
+    /**
+     * Returns the ID of the shard of the last hit of the previous page, if the
+     * search continues from a cursor.
+     *
+     * @return The ID of the shard, or an empty string if the search uses offsets.
+     */
+    public String getAfterShard()
+    {
+        return this.useSearchAfter ? this.afterShard : "";
+    }
+
+    /**
+     * Returns the cursor that continues a search after the given hit.
+     *
+     * @param hit   The last hit of the page.
+     * @param shard The ID of the shard of the hit.
+     *
+     * @return The cursor. i.e. 1.2345:87:5f2b8c0e9a1d4c7b3e6f0a12
+     */
+    public static String makeCursor(ScoreDoc hit, String shard)
+    {
+        return hit.score + ":" + hit.doc + ":" + shard;
+    }
+
+    /**
+     * Returns a normalized form of these parameters, which is the same for all
+     * searches that would produce the same response. White space in the query
+     * string is collapsed and filters are sorted. Date range filters are relative
+     * to the current time, so they are keyed by the rounded lower bound the node
+     * filters on, i.e. a range in months yields the same key during the whole
+     * calendar month.
+     *
+     * @param now The current time in milliseconds.
+     *
+     * @return The normalized key.
+     */
+    public String getNormalizedKey(long now)
+    {
+        List<String> f = new ArrayList<>(filters.getFilters().size());
+        for (QuaryFilter filter : filters.getFilters()) {
+            switch (filter.getType()) {
+                case QuaryFilters.DATE_RANGE_FILTER:
+                    f.add("d" + filter.getDateRange() + ":" + filter.getTimeFactor() + "@" + DateRangeFilter.getLowerTimestamp(filter.getDateRange(), filter.getTimeFactor(), now));
+                    break;
+                case QuaryFilters.TERM_FILTER:
+                    f.add("t" + filter.getField() + ":" + filter.getTerm());
+                    break;
+            }
+        }
+        Collections.sort(f);
+
+        StringBuilder key = new StringBuilder();
+        key.append(queryString.trim().replaceAll("\\s+", " "));
+        key.append('|').append(startOffset).append('|').append(endOffset);
+        key.append('|').append(useFormattedDate ? 1 : 0);
+        key.append('|').append(useDeduplication ? maxHammingDistance : -1);
+        f.stream().forEach((e) -> {
+            key.append('|').append(e);
+        });
+        returnFields.stream().sorted().forEach((e) -> {
+            key.append("|r").append(e);
+        });
+        facets.stream().sorted().forEach((e) -> {
+            key.append("|a").append(e);
+        });
+        key.append("|h").append(histogramUnit);
+        key.append("|s").append(shardID);
+        if (useSearchAfter) {
+            key.append("|c").append(afterScore).append(':').append(afterDoc).append(':').append(afterShard);
+        }
+
+        return key.toString();
+    }
+
     /**
      * The query string of the search. (Mandatory)
      *
@@ -325,8 +530,8 @@ public final class Parameters implements Writable
     }
 
     /**
-     * Max Hamming distance for the de-duplication. i.e. 32, 24, 16, 8.
-     * Representing the max. limit in bits.
+     * Max Hamming distance for the de-duplication, in bits between the 64-bit
+     * digests of two documents. i.e. 3, 6. Defaults to 3.
      *
      * @param maxHammingDistance The maximum hamming distance.
      *
@@ -335,7 +540,194 @@ public final class Parameters implements Writable
     public Parameters setMaxHammingDistance(String maxHammingDistance)
     {
         try {
-            this.maxHammingDistance = (maxHammingDistance != null && !maxHammingDistance.isEmpty()) ? Integer.parseInt(maxHammingDistance) : 32;
+            this.maxHammingDistance = (maxHammingDistance != null && !maxHammingDistance.isEmpty()) ? Integer.parseInt(maxHammingDistance) : 3;
+        }
+        catch (NumberFormatException e) {
+            // Do something
+        }
+        return this;
+    }
+
+    /**
+     * The fields to return for each result, separated by commas. i.e.
+     * title,url,summary. If not set, all fields are returned. (Optional)
+     *
+     * @param returnFields The list of fields.
+     *
+     * @return This object.
+     */
+    public Parameters setReturnFields(String returnFields)
+    {
+        this.returnFields = new ArrayList<>(0);
+        if (returnFields != null && !returnFields.isEmpty()) {
+            for (String f : returnFields.split(",")) {
+                if (!f.trim().isEmpty()) {
+                    this.returnFields.add(f.trim().toLowerCase());
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The fields whose terms should be counted over all the matching documents,
+     * separated by commas. i.e. filetype,lang. The fields must have SORTED doc
+     * values. Defaults to filetype. (Optional)
+     *
+     * @param facets The list of fields.
+     *
+     * @return This object.
+     */
+    public Parameters setFacets(String facets)
+    {
+        this.facets = new ArrayList<>(0);
+        if (facets != null && !facets.isEmpty()) {
+            for (String f : facets.split(",")) {
+                if (!f.trim().isEmpty() && !this.facets.contains(f.trim().toLowerCase())) {
+                    this.facets.add(f.trim().toLowerCase());
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The unit of the buckets of the date histogram over the index time of all
+     * the matching documents: 1(seconds), 2(minutes), 3(hours), 4(days),
+     * 5(months), 6(years). 0 for no histogram. (Optional)
+     *
+     * @param histogramUnit The unit of the buckets.
+     *
+     * @return This object.
+     */
+    public Parameters setHistogramUnit(String histogramUnit)
+    {
+        try {
+            int unit = (histogramUnit != null && !histogramUnit.isEmpty()) ? Integer.parseInt(histogramUnit) : 0;
+            this.histogramUnit = (unit >= DateRangeFilter.SECOND_RANGE && unit <= DateRangeFilter.YEAR_RANGE) ? unit : 0;
+        }
+        catch (NumberFormatException e) {
+            // Do something
+        }
+        return this;
+    }
+
+    /**
+     * The ID of the shard that serves this search, when the search is sent to
+     * several nodes. It's the ID of the node, so it doesn't change when nodes
+     * join or leave the hive. Used to break ties between hits with the same
+     * score. Defaults to an empty string. (Optional)
+     *
+     * @param shardID The ID of the shard.
+     *
+     * @return This object.
+     */
+    public Parameters setShardID(String shardID)
+    {
+        this.shardID = (shardID != null) ? shardID : "";
+        return this;
+    }
+
+    /**
+     * Continue the search after the last hit of the previous page, instead of
+     * using the start offset. The cursor is returned with every page, in the
+     * form score:doc:shard. The page size is (endOffset - startOffset).
+     * (Optional)
+     *
+     * @param cursor The cursor of the previous page.
+     *
+     * @return This object.
+     */
+    public Parameters setSearchAfter(String cursor)
+    {
+        try {
+            if (cursor != null && !cursor.isEmpty()) {
+                String[] parts = cursor.split(":", -1);
+                if (parts.length == 3) {
+                    this.afterScore = Float.parseFloat(parts[0]);
+                    this.afterDoc = Integer.parseInt(parts[1]);
+                    this.afterShard = parts[2];
+                    this.useSearchAfter = true;
+                }
+            }
+            else {
+                this.useSearchAfter = false;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Do something
+        }
+        return this;
+    }
+
+    /**
+     * Open a point-in-time lease with this search. The reader and the scoring time
+     * of the search are pinned, and the ID of the lease is returned with the
+     * result, so the next pages can be searched with the same ones. (Optional)
+     *
+     * @param openLease 1 if a lease should be opened, 0 otherwise.
+     *
+     * @return This object.
+     */
+    public Parameters setOpenLease(String openLease)
+    {
+        try {
+            this.openLease = (openLease != null && !openLease.isEmpty()) ? ((Integer.parseInt(openLease) != 0)) : false;
+        }
+        catch (NumberFormatException e) {
+            // Do something
+        }
+        return this;
+    }
+
+    /**
+     * The ID of the point-in-time lease to search with, returned by a previous
+     * search. If the lease has expired, a new one is opened and returned.
+     * (Optional)
+     *
+     * @param leaseID The ID of the lease.
+     *
+     * @return This object.
+     */
+    public Parameters setLeaseID(String leaseID)
+    {
+        this.leaseID = (leaseID != null) ? leaseID.trim() : "";
+        return this;
+    }
+
+    /**
+     * Fetch the next page of the search in the background after answering this
+     * one, so it's ready if it's asked for within a few seconds. (Optional)
+     *
+     * @param prefetch 1 if the next page should be prefetched, 0 otherwise.
+     *
+     * @return This object.
+     */
+    public Parameters setPrefetch(String prefetch)
+    {
+        try {
+            this.prefetch = (prefetch != null && !prefetch.isEmpty()) ? ((Integer.parseInt(prefetch) != 0)) : false;
+        }
+        catch (NumberFormatException e) {
+            // Do something
+        }
+        return this;
+    }
+
+    /**
+     * The time the search may take, from the moment it's received. When it runs
+     * out, the collection of hits stops and the best hits found until then are
+     * returned, marked as partial. The brain sends the time left to the nodes.
+     * (Optional)
+     *
+     * @param timeout The time in milliseconds, or 0 for no deadline.
+     *
+     * @return This object.
+     */
+    public Parameters setTimeout(String timeout)
+    {
+        try {
+            this.timeout = (timeout != null && !timeout.isEmpty()) ? Math.max(Long.parseLong(timeout), 0L) : 0L;
         }
         catch (NumberFormatException e) {
             // Do something
@@ -25,6 +25,7 @@
  */
 package net.apkc.quary.reactor;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -35,8 +36,14 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import net.apkc.emma.tasks.TasksHandler;
 import net.apkc.quary.config.XMLBuilder;
 import net.apkc.quary.definitions.index.IndexDefinitionDB;
@@ -48,6 +55,7 @@ import net.apkc.quary.node.NodeHandler;
 import net.apkc.quary.node.NodeConnection;
 import net.apkc.quary.node.NodeInterface;
 import net.apkc.quary.util.QuaryConfiguration;
+import net.apkc.quary.util.TaskExecutor;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.log4j.Logger;
@@ -71,6 +79,27 @@ public class Reactor
 {
 
     private static final Logger LOG = Logger.getLogger(Reactor.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final TaskExecutor PROCESSORS = TaskExecutor.newBuild()
+            .setName("QUARY:REACTOR")
+            .setMode(CONF.get("brain.executor.mode", TaskExecutor.POOL))
+            .setPermits(CONF.getInt("brain.executor.permitspernode", 64))
+            .start();
+    private static final Semaphore IN_FLIGHT = new Semaphore(CONF.getInt("reactor.maxinflight", 1024));
+    private static final long WRITER_IDLE_TIME = Math.max(CONF.getLong("reactor.writer.idletime", 1000L), 1L);
+    private static final int WRITER_MAX_DOCUMENTS = Math.max(CONF.getInt("node.write.commit.interval", 1000), 1);
+    /** The writers kept open on the nodes, by node and definition. */
+    private static final Map<String, OpenWriter> WRITERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("QUARY:WRITERS:%d")
+            .setDaemon(true)
+            .build());
+
+    static {
+        long period = Math.max(WRITER_IDLE_TIME / 2, 100L);
+        CLOSER.scheduleWithFixedDelay(Reactor::closeIdleWriters, period, period, TimeUnit.MILLISECONDS);
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private final int BUFFER_SIZE = 1024 * 1024 * 10;
     private Selector selector = null;
     private ServerSocketChannel server = null;
@@ -120,38 +149,21 @@ public class Reactor
                     ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
                     socket = (SocketChannel) ssc.accept();
                     socket.configureBlocking(false);
-                    socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Here we enable "Reading" and "Writing" in the selector.
+                    socket.register(selector, SelectionKey.OP_READ); // Nothing is written back, and a writable socket would wake the selector all the time.
                 }
 
                 if (key.isReadable()) {
                     try {
                         socket = (SocketChannel) key.channel();
                         int read;
-                        while ((read = socket.read(buffer)) != -1) {
+                        while ((read = socket.read(buffer)) > 0) {
                             buffer.flip();
-                            String data = Charset.forName("UTF-8").decode(buffer).toString();
-                            String[] strArr = data.split("\\\t");
-
-                            if (LOG.isTraceEnabled()) {
-                                LOG.trace("Documents Received ==> " + strArr.length);
-                            }
-
-                            for (int k = 0; k < strArr.length; k++) {
-                                if (k + 1 == strArr.length) {
-                                    buffer.clear();
-                                    buffer.put(Charset.forName("UTF-8").encode(strArr[k]));
-
-                                    if (data.length() < BUFFER_SIZE) {
-                                        process(new Process(strArr[k]));
-                                        buffer.clear();
-                                    }
-                                }
-                                else {
-                                    if (strArr[k].length() > 0) {
-                                        process(new Process(strArr[k]));
-                                    }
-                                }
-                            }
+                            key.attach(split(buffer, (ByteBuffer) key.attachment()));
+                            buffer.clear();
+                        }
+                        if (read == -1) {
+                            key.cancel();
+                            socket.close();
                         }
                     }
                     catch (IOException | InterruptedException | ExecutionException ex) {
@@ -161,31 +173,221 @@ public class Reactor
                     }
                 }
 
-                if (key.isWritable()) {
+                if (key.isValid() && key.isWritable()) {
                     // Do nothing for the moment.
                 }
             }
         }
     }
 
+    /**
+     * Processes the documents read from a connection. Each document ends with a
+     * tab, and the bytes of a document that hasn't ended yet are kept for the
+     * next read of the connection.
+     *
+     * @param read    The bytes read.
+     * @param pending The bytes kept from the last read of the connection, or
+     *                NULL.
+     *
+     * @return The bytes to keep for the next read, or NULL.
+     */
+    private ByteBuffer split(ByteBuffer read, ByteBuffer pending) throws InterruptedException, ExecutionException
+    {
+        while (read.hasRemaining()) {
+            int tab = -1;
+            for (int k = read.position(); k < read.limit(); k++) {
+                if (read.get(k) == '\t') { // A tab is never part of a multibyte character in UTF-8.
+                    tab = k;
+                    break;
+                }
+            }
+
+            int end = tab == -1 ? read.limit() : tab;
+            int length = end - read.position();
+            if (pending == null || pending.remaining() < length) {
+                int size = (pending == null ? 0 : pending.position()) + length;
+                if (size > BUFFER_SIZE) {
+                    LOG.error("A document is larger than " + BUFFER_SIZE + " bytes. It won't be indexed.");
+                    pending = null;
+                    read.position(end);
+                    if (tab != -1) {
+                        read.get(); // Skip the tab.
+                    }
+                    continue;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(size, 4096) * 2, BUFFER_SIZE));
+                if (pending != null) {
+                    pending.flip();
+                    grown.put(pending);
+                }
+                pending = grown;
+            }
+
+            ByteBuffer chunk = read.duplicate();
+            chunk.limit(end);
+            pending.put(chunk);
+            read.position(end);
+            if (tab == -1) {
+                break;
+            }
+
+            read.get(); // Skip the tab.
+            pending.flip();
+            String document = UTF8.decode(pending).toString();
+            pending.clear();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Document Received ==> " + document.length() + " characters");
+            }
+            process(new Process(document));
+        }
+
+        return pending;
+    }
+
     /**
      * Process a request.
      *
+     * <p>
+     * With virtual threads the documents are processed concurrently, and the
+     * Reactor only waits while too many of them are in flight. Otherwise each
+     * document is processed in the pool of tasks before reading the next.
+     * </p>
+     *
      * @param p The request to process.
      */
     private void process(Process p) throws InterruptedException, ExecutionException
     {
-        TasksHandler.getInstance().submitFiniteTask(p).get(); // Start processing the request.
+        if (PROCESSORS.isVirtual()) {
+            IN_FLIGHT.acquire();
+            PROCESSORS.submit(() -> {
+                try {
+                    p.run();
+                }
+                finally {
+                    IN_FLIGHT.release();
+                }
+            });
+        }
+        else {
+            TasksHandler.getInstance().submitFiniteTask(p).get(); // Start processing the request.
+        }
+    }
+
+    /**
+     * Returns the writer of a definition on a node, and opens it on the node if
+     * it isn't open. It must be given back with releaseWriter().
+     *
+     * @param conn         The connection to the node.
+     * @param node         The node.
+     * @param definitionID The ID of the definition.
+     *
+     * @return The writer.
+     *
+     * @throws IOException If the writer couldn't be opened.
+     */
+    static OpenWriter acquireWriter(NodeInterface conn, Node node, String definitionID) throws IOException
+    {
+        OpenWriter w = WRITERS.computeIfAbsent(node.getNodeID() + "|" + definitionID, (String k) -> new OpenWriter(node, definitionID));
+        synchronized (w) {
+            if (!w.open) {
+                if (conn.openWriter(CONF, definitionID, node) != 0) {
+                    throw new IOException("The writer of index " + definitionID + "." + node.getNodeID() + " couldn't be opened.");
+                }
+                w.open = true;
+                w.written = 0;
+            }
+            w.users++;
+
+            return w;
+        }
+    }
+
+    /**
+     * Gives back a writer obtained with acquireWriter(). The writer is closed
+     * after (node.write.commit.interval) documents, so a node that restarted
+     * gets its writer opened again.
+     *
+     * @param conn The connection to the node.
+     * @param w    The writer.
+     */
+    static void releaseWriter(NodeInterface conn, OpenWriter w)
+    {
+        synchronized (w) {
+            w.users--;
+            w.written++;
+            w.lastUsed = System.currentTimeMillis();
+            if (w.users == 0 && w.written >= WRITER_MAX_DOCUMENTS) {
+                closeWriter(conn, w);
+            }
+        }
+    }
+
+    /**
+     * Closes the writers that haven't been used for (reactor.writer.idletime)
+     * milliseconds, which commits their documents.
+     */
+    static void closeIdleWriters()
+    {
+        long now = System.currentTimeMillis();
+        for (OpenWriter w : WRITERS.values()) {
+            synchronized (w) {
+                if (w.open && w.users == 0 && now - w.lastUsed >= WRITER_IDLE_TIME) {
+                    try {
+                        closeWriter(NodeConnection.getConnection(w.node), w);
+                    }
+                    catch (IOException | ZeroNodesException e) {
+                        LOG.error("Error communicating with node.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a writer on its node. Must be called holding the lock of the writer.
+     */
+    private static void closeWriter(NodeInterface conn, OpenWriter w)
+    {
+        // Even if the close fails, the next document opens the writer again.
+        w.open = false;
+        if (conn.close(w.definitionID, w.node) != 0) {
+            LOG.error("Error closing the writer of index " + w.definitionID + "." + w.node.getNodeID() + ".");
+        }
+    }
+
+    /**
+     * A writer kept open on a node, across the documents of its definition.
+     */
+    static final class OpenWriter
+    {
+
+        final Node node;
+        final String definitionID;
+        boolean open = false;
+        int users = 0;
+        int written = 0;
+        long lastUsed = 0L;
+
+        OpenWriter(Node node, String definitionID)
+        {
+            this.node = node;
+            this.definitionID = definitionID;
+        }
     }
 
     /**
      * This class will process an XML document and will derive it
      * to a Quary node for indexing.
+     *
+     * <p>
+     * The writer of the definition is kept open on the node across documents,
+     * and closed when it's idle or after (node.write.commit.interval) documents,
+     * so the node doesn't commit and refresh its readers for every document.
+     * </p>
      */
     class Process implements Runnable
     {
 
-        final Configuration CONF = new QuaryConfiguration().create();
         String document;
 
         Process(String document)
@@ -210,9 +412,19 @@ public class Reactor
                 try {
                     Node node = NodeHandler.getInstance().getNode();
                     NodeInterface conn = NodeConnection.getConnection(node);
-                    conn.openWriter(CONF, doc.getDefinitionID(), node);
-                    conn.write(new Text(doc.getSignature()), doc, IndexDefinitionDB.getInstance().getDefinition(doc.getDefinitionID()), 0L);
-                    conn.close(doc.getDefinitionID(), node);
+                    PROCESSORS.acquire(node.toString());
+                    try {
+                        OpenWriter w = acquireWriter(conn, node, doc.getDefinitionID());
+                        try {
+                            conn.write(new Text(doc.getSignature()), doc, IndexDefinitionDB.getInstance().getDefinition(doc.getDefinitionID()), node, 0L);
+                        }
+                        finally {
+                            releaseWriter(conn, w);
+                        }
+                    }
+                    finally {
+                        PROCESSORS.release(node.toString());
+                    }
                 }
                 catch (IOException | ZeroNodesException e) {
                     LOG.error("Error communicating with node.", e);
@@ -28,22 +28,24 @@ package net.apkc.quary.reactor;
 import io.aime.aimemisc.datamining.Block;
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import net.apkc.quary.definitions.index.IndexDefinition;
 import net.apkc.quary.util.GeneralUtilities;
-import net.apkc.quary.util.Timer;
+import net.apkc.quary.util.QuaryConfiguration;
+import net.apkc.quary.util.Rank;
 import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.ocpsoft.pretty.time.PrettyTime;
 
 /**
@@ -56,197 +58,223 @@ public class Result
 {
 
     private static final Logger LOG = Logger.getLogger(Result.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    /** Explaining a hit scores it again, so it's only done when asked for, even at debug level. */
+    private static final boolean EXPLAIN = CONF.getBoolean("node.search.explain", false);
     private static PrettyTime pTime = new PrettyTime(new Locale("en"));
+    /** The stored fields each element of a result entry is built from. */
+    private static final Map<String, String[]> ELEMENT_FIELDS = new LinkedHashMap<>();
+    private static final Set<String> ALL_ELEMENTS = Collections.unmodifiableSet(ELEMENT_FIELDS.keySet());
+
+    static {
+        ELEMENT_FIELDS.put("boost", new String[]{"boost"});
+        ELEMENT_FIELDS.put("boostwithgravity", new String[]{"boost", "boostwithgravity", "indextime"});
+        ELEMENT_FIELDS.put("contentblocks", new String[0]); // Plus the summary fields.
+        ELEMENT_FIELDS.put("contentlength", new String[]{"contentlength"});
+        ELEMENT_FIELDS.put("digest", new String[]{"digest"});
+        ELEMENT_FIELDS.put("extension", new String[]{"filetype"});
+        ELEMENT_FIELDS.put("fetchtime", new String[]{"fetchtime"});
+        ELEMENT_FIELDS.put("filetype", new String[]{"filetype"});
+        ELEMENT_FIELDS.put("gravity", new String[]{"boost", "gravity", "indextime"});
+        ELEMENT_FIELDS.put("indextime", new String[]{"indextime"});
+        ELEMENT_FIELDS.put("language", new String[]{"lang"});
+        ELEMENT_FIELDS.put("lastmodified", new String[]{"lastmodified"});
+        ELEMENT_FIELDS.put("segment", new String[]{"segment"});
+        ELEMENT_FIELDS.put("summary", new String[0]); // Plus the summary fields.
+        ELEMENT_FIELDS.put("title", new String[]{"title"});
+        ELEMENT_FIELDS.put("url", new String[]{"url"});
+    }
 
     /**
-     * Builds an entire XML response to a search. It also has support for document de-duplication.
+     * Builds the result set of a search.
      *
-     * @param hits      The hits founded
-     * @param params    The search parameters
-     * @param searcher  The searcher object used to make the search
-     * @param query     The query object entered by the user
-     * @param collector The collector of results
-     * @param timer     The search timer
+     * @param def          The definition of the index
+     * @param hits         The hits founded
+     * @param params       The search parameters
+     * @param searcher     The searcher object used to make the search
+     * @param query        The query object entered by the user
+     * @param totalHits    The total number of hits of the search
+     * @param aggregations The aggregations over all the matching documents
      *
-     * @return A XML formatted string with the response
+     * @return The result set, without lease and search time
      *
      * @throws IOException
      */
-    public static String makeXMLResponse(ScoreDoc[] hits, Parameters params, Searcher searcher, Query query, TopScoreDocCollector collector, Timer timer) throws IOException
+    public static ResultSet makeResultSet(IndexDefinition def, ScoreDoc[] hits, Parameters params, Searcher searcher, Query query, int totalHits, Aggregations aggregations) throws IOException
     {
-        StringBuilder res = new StringBuilder();
-        Set<Long> digestDB = new HashSet<>(); // Contains all documents digest signature for this search.
-
-        res.append("<?xml version=\"1.0\"?>");
-        res.append("<results>");
+        Set<String> elements = getElements(params);
+        ResultSet results = ResultSet
+                .newBuild()
+                .setTotalHits(totalHits)
+                .setShardID(params.getShardID())
+                .setAggregations(aggregations);
 
-        if (params.getUseDeduplication()) {
-            for (ScoreDoc hit : hits) {
-                String digest = searcher.getSearcher().doc(hit.doc).get("digest");
-                digestDB.add(Long.parseLong(digest));
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Load " + digest + " into DigestDB.");
-                }
-            }
+        // Load the stored fields of each hit only once, and only the fields the response needs.
+        String[] summaryFields = def.getSummaryFields();
+        Set<String> fieldsToLoad = getFieldsToLoad(elements, summaryFields);
+        Document[] docs = new Document[hits.length];
+        for (int k = 0; k < hits.length; k++) {
+            docs[k] = searcher.getSearcher().doc(hits[k].doc, fieldsToLoad);
         }
 
-        outerLoop:
-        for (ScoreDoc hit : hits) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Explanation:");
-                LOG.debug(searcher.getSearcher().explain(query, hit.doc).toString());
-            }
-            // Real-time digest de-duplication:
-            if (params.getUseDeduplication()) {
-                long documentDigest = Long.parseLong(searcher.getSearcher().doc(hit.doc).get("digest"));
-                long maxHammingDistance = (long) Math.pow(2.0d, (double) params.getMaxHammingDistance());
-                for (long dgs : digestDB) {
-                    if (dgs == documentDigest) {
-                        break;
-                    }
-
-                    if (Math.abs(dgs - documentDigest) < maxHammingDistance) {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Duplicate detected between " + dgs + " AND " + documentDigest + ".");
-                        }
+        // The passages of the summaries are taken from the term vectors of the summary fields.
+        boolean usePassages = elements.contains("summary") || elements.contains("contentblocks");
+        Set<String> queryTerms = usePassages ? Summarizer.getInstance().getQueryTerms(searcher.getSearcher(), query) : null;
 
-                        continue outerLoop;
-                    }
-                }
-            }
-            res.append(addXMLEntry(searcher.getSearcher().doc(hit.doc), params.getQueryString(), params.getUseFormattedDate()));
-        }
-
-        // Count the distincts filetypes.
-        // i.e. application/pdf => 201
-        //      text/html => 406
-        res.append("<filetypes>");
-        Map<String, Integer> filetypes = new HashMap<>();
-        for (ScoreDoc hit : hits) {
-            Document doc = searcher.getSearcher().doc(hit.doc);
-            String t = doc.get("filetype");
-            if (!filetypes.containsKey(t)) {
-                filetypes.put(t, 1);
-            }
-            else {
-                filetypes.put(t, filetypes.get(t) + 1);
+        // Near-duplicates are collapsed by the collector, when de-duplication is used.
+        for (int k = 0; k < hits.length; k++) {
+            if (EXPLAIN && LOG.isDebugEnabled()) {
+                LOG.debug("Explanation:");
+                LOG.debug(searcher.getSearcher().explain(query, hits[k].doc).toString());
             }
+            String[] passages = usePassages
+                    ? Summarizer.getInstance().getPassages(searcher.getSearcher(), hits[k].doc, docs[k], summaryFields, queryTerms)
+                    : new String[0];
+            results.addHit(makeHit(hits[k], params.getShardID(), docs[k], params.getUseFormattedDate(), elements, passages));
         }
 
-        Iterator<Map.Entry<String, Integer>> i = filetypes.entrySet().iterator();
-        while (i.hasNext()) {
-            Map.Entry<String, Integer> e = i.next();
-            String ext = e.getKey().replaceAll("\\/", "-");
-            res.append("<").append(ext).append(">").append(e.getValue()).append("</").append(ext).append(">");
-        }
-        res.append("</filetypes>");
-        res.append("<totalhits>").append(collector.getTotalHits()).append("</totalhits>");
-        // Mark end of processing.
-        timer.endTimer();
-        res.append("  <searchtime>").append(timer.computeOperationTime(Timer.Time.SECOND)).append("</searchtime>");
-        res.append("</results>");
-
-        return res.toString();
+        return results;
     }
 
     /**
-     * This method construct a new entry in the XML response. An XML entry
-     * corresponds to an individual result.
+     * This method construct a new hit of the result set, with only the given
+     * elements. A hit corresponds to an individual result.
      *
-     * @param doc         The Lucene document from which to construct the XML entry.
-     * @param queryPhrase The query phrase.
-     * @param formatDate  TRUE if the dates should be formatted using the
-     *                    PrettyTime library, FALSE we should return the raw
-     *                    timestamp in milliseconds.
+     * @param hit        The hit, with its score.
+     * @param shardID    The ID of the shard of the hit.
+     * @param doc        The Lucene document from which to construct the hit.
+     * @param formatDate TRUE if the dates should be formatted using the
+     *                   PrettyTime library, FALSE we should return the raw
+     *                   timestamp in milliseconds.
+     * @param elements   The elements of the hit. i.e. title, url
+     * @param passages   The best passages of the document for the query, from
+     *                   which the summary and the content blocks are made.
      *
-     * @return A String containing the XML entry.
+     * @return The hit.
      */
-    public static String addXMLEntry(Document doc, String queryPhrase, boolean formatDate)
+    public static ResultSet.Hit makeHit(ScoreDoc hit, String shardID, Document doc, boolean formatDate, Set<String> elements, String[] passages)
     {
-        // Make the entry
-        ResultEntry entry = ResultEntry
-                .newBuild()
-                .setType(ResultEntry.XML)
-                .setBoost(doc.get("boost"))
-                .setBoostGravity(doc.get("boostwithgravity"))
-                .setContentBlocks(getContentBlocks(doc.get("segment"), doc.get("url")))
-                .setContentLength(doc.get("contentlength"))
-                .setDigest(doc.get("digest"))
-                .setExtension(doc.get("filetype"))
-                .setFetchTime(processDate(formatDate, doc.get("fetchtime")))
-                .setFileType(doc.get("filetype"))
-                .setGravity(doc.get("gravity"))
-                .setIndexTime(processDate(formatDate, doc.get("indextime")))
-                .setLanguage(doc.get("lang"))
-                .setLastModified(doc.get("lastmodified"))
-                .setSegment(doc.get("segment"))
-                .setSummary(getSummary(doc.get("segment"), doc.get("url"), new Text(queryPhrase), new Text(doc.get("lang"))))
-                .setTitle(doc.get("title"))
-                .setURL(doc.get("url"));
+        // Gravity is computed at query time, so it's always current. Documents without the fields
+        // needed for it keep the values computed when they were indexed.
+        String boostGravity = doc.get("boostwithgravity");
+        String gravity = doc.get("gravity");
+        if ((elements.contains("boostwithgravity") || elements.contains("gravity")) && doc.get("indextime") != null && doc.get("boost") != null) {
+            try {
+                long now = System.currentTimeMillis();
+                long indexTime = Long.parseLong(doc.get("indextime"));
+                boostGravity = String.valueOf(Rank.calculateBoostWithGravity(Float.parseFloat(doc.get("boost")), now - indexTime));
+                // Same format as the SocialCoefficient. [12 seconds ago] - 0.9999919691519064
+                gravity = "[" + GeneralUtilities.computeOperationTime(indexTime, now, "s", true) + " seconds ago]"
+                        + "-"
+                        + String.valueOf(Rank.calculateGravityLowGranularity(now - indexTime));
+            }
+            catch (NumberFormatException e) {
+                LOG.error("Impossible to compute the gravity of a document. Stored values will be used. Error: " + e.toString(), e);
+            }
+        }
 
-        // Prepare XML
-        StringBuilder xmlEntry = new StringBuilder();
-        xmlEntry.append("<result>");
-        xmlEntry.append(entry.getBoost());
-        xmlEntry.append(entry.getBoostGravity());
-        xmlEntry.append(entry.getContentBlocks());
-        xmlEntry.append(entry.getContentLength());
-        xmlEntry.append(entry.getDigest());
-        xmlEntry.append(entry.getExtension());
-        xmlEntry.append(entry.getFetchTime());
-        xmlEntry.append(entry.getFileType());
-        xmlEntry.append(entry.getGravity());
-        xmlEntry.append(entry.getIndexTime());
-        xmlEntry.append(entry.getLanguage());
-        xmlEntry.append(entry.getLastModified());
-        xmlEntry.append(entry.getSegment());
-        xmlEntry.append(entry.getSummary());
-        xmlEntry.append(entry.getTitle());
-        xmlEntry.append(entry.getURL());
-        xmlEntry.append("</result>");
+        // Make the hit. Elements not set are left out of the response.
+        ResultSet.Hit h = new ResultSet.Hit(hit.doc, hit.score, shardID);
+        for (String e : elements) {
+            switch (e) {
+                case "boost":
+                    h.setElement(e, doc.get("boost"));
+                    break;
+                case "boostwithgravity":
+                    h.setElement(e, boostGravity);
+                    break;
+                case "contentblocks":
+                    h.setPassages(passages);
+                    break;
+                case "contentlength":
+                    h.setElement(e, doc.get("contentlength"));
+                    break;
+                case "digest":
+                    h.setElement(e, doc.get("digest"));
+                    break;
+                case "extension":
+                    h.setElement(e, doc.get("filetype"));
+                    break;
+                case "fetchtime":
+                    h.setElement(e, processDate(formatDate, doc.get("fetchtime")));
+                    break;
+                case "filetype":
+                    h.setElement(e, doc.get("filetype"));
+                    break;
+                case "gravity":
+                    h.setElement(e, gravity);
+                    break;
+                case "indextime":
+                    h.setElement(e, processDate(formatDate, doc.get("indextime")));
+                    break;
+                case "language":
+                    h.setElement(e, doc.get("lang"));
+                    break;
+                case "lastmodified":
+                    h.setElement(e, doc.get("lastmodified"));
+                    break;
+                case "segment":
+                    h.setElement(e, doc.get("segment"));
+                    break;
+                case "summary":
+                    h.setElement(e, getSummary(passages));
+                    break;
+                case "title":
+                    h.setElement(e, doc.get("title"));
+                    break;
+                case "url":
+                    h.setElement(e, doc.get("url"));
+                    break;
+            }
+        }
 
-        return xmlEntry.toString();
+        return h;
     }
 
     /**
-     * Returns an empty/dummy result, which can be used in the calling class to
-     * not throw a NullPointerException.
+     * Returns the elements of each result entry requested in the search. If no
+     * fields were requested, all elements are returned.
      *
-     * @param time The computation time.
+     * @param params The search parameters.
      *
-     * @return A string containing the XML result.
+     * @return The set of elements.
      */
-    public static String dummyResult(double time)
+    public static Set<String> getElements(Parameters params)
     {
-        StringBuilder res = new StringBuilder();
-        res.append("<?xml version=\"1.0\"?>\n");
-        res.append("<results>\n");
-        res.append("  <totalhits>0</totalhits>\n");
-        res.append("  <searchtime>").append(time).append("</searchtime>\n");
-        res.append("</results>");
+        if (params.getReturnFields().isEmpty()) {
+            return ALL_ELEMENTS;
+        }
+
+        Set<String> elements = new HashSet<>();
+        for (String f : params.getReturnFields()) {
+            if (ELEMENT_FIELDS.containsKey(f)) {
+                elements.add(f);
+            }
+        }
 
-        return res.toString();
+        return elements;
     }
 
     /**
-     * Returns an empty/dummy result, which can be used in the calling class to
-     * not throw a NullPointerException.
+     * Returns the stored fields that must be loaded to build a response with the
+     * given elements.
      *
-     * @param message The error message.
+     * @param elements      The elements of each result entry.
+     * @param summaryFields The fields the summaries are made from.
      *
-     * @return A string containing the XML result.
+     * @return The set of stored fields.
      */
-    public static String errorResult(String message)
+    public static Set<String> getFieldsToLoad(Set<String> elements, String[] summaryFields)
     {
-        StringBuilder res = new StringBuilder();
-        res.append("<?xml version=\"1.0\"?>\n");
-        res.append("<results>\n");
-        res.append("  <totalhits>0</totalhits>\n");
-        res.append("  <searchtime>0.00</searchtime>\n");
-        res.append("  <errormessage>").append(message).append("</errormessage>\n");
-        res.append("</results>");
+        Set<String> fields = new HashSet<>();
+        for (String e : elements) {
+            fields.addAll(Arrays.asList(ELEMENT_FIELDS.get(e)));
+        }
+        if (elements.contains("summary") || elements.contains("contentblocks")) {
+            fields.addAll(Arrays.asList(summaryFields));
+        }
 
-        return res.toString();
+        return fields;
     }
 
     /**
@@ -263,51 +291,75 @@ public class Result
     }
 
     /**
-     * This method contacts a SegmentServer instance and returns the summary
-     * for a specific document.
+     * This method prepares a given text/string for putting into a JSON string.
      *
-     * @param segment     The name of the segment containing the entry (URL).
-     * @param url         The URL of the document (entry).
-     * @param queryPhrase The query entered by the user.
-     * @param language    The language of the document.
+     * @param text The text to prepare.
      *
-     * @return The summary of the document.
+     * @return The prepared text.
      */
-    public static String getSummary(String segment, String url, Text queryPhrase, Text language)
+    public static String forJSON(String text)
     {
-        Timer t = new Timer();
-        t.starTimer();
-        // TODO: Connect to Redis.
-        t.endTimer();
-
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("IndexServer getParseText() retrieve time: " + url + " [" + t.computeOperationTime(Timer.Time.MILLISECOND) + "ms]");
+        StringBuilder s = new StringBuilder(text.length() + 16);
+        for (int k = 0; k < text.length(); k++) {
+            char c = text.charAt(k);
+            switch (c) {
+                case '"':
+                    s.append("\\\"");
+                    break;
+                case '\\':
+                    s.append("\\\\");
+                    break;
+                case '\n':
+                    s.append("\\n");
+                    break;
+                case '\r':
+                    s.append("\\r");
+                    break;
+                case '\t':
+                    s.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        s.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        s.append(c);
+                    }
+            }
         }
 
-        return "Dummy summary! Do more work and finish this function!";
+        return s.toString();
     }
 
     /**
-     * This method contacts a SegmentServer instance and returns the content blocks
-     * for a specific document.
+     * Returns the summary of a document, made from its best passages for the
+     * query.
      *
-     * @param segment The name of the segment containing the entry (URL).
-     * @param url     The URL of the document (entry).
+     * @param passages The passages of the document.
      *
-     * @return An array of content blocks.
+     * @return The summary of the document.
      */
-    public static Block[] getContentBlocks(String segment, String url)
+    public static String getSummary(String[] passages)
     {
-        Timer t = new Timer();
-        t.starTimer();
-        // TODO: Connect to Redis.
-        t.endTimer();
+        return String.join(" ... ", passages);
+    }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("IndexServer getParseText() retrieve time: " + url + " [" + t.computeOperationTime(Timer.Time.MILLISECOND) + "ms]");
+    /**
+     * Returns the content blocks of a document, one for each of its best passages
+     * for the query.
+     *
+     * @param passages The passages of the document.
+     *
+     * @return An array of content blocks.
+     */
+    public static Block[] getContentBlocks(String[] passages)
+    {
+        Block[] blocks = new Block[passages.length];
+        for (int k = 0; k < passages.length; k++) {
+            blocks[k] = Block.newBuild().setBlockTagName("passage").setBlockContent(passages[k]);
         }
 
-        return new Block[0];
+        return blocks;
     }
 
     /**
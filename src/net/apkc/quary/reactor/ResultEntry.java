@@ -29,7 +29,7 @@ import io.aime.aimemisc.datamining.Block;
 
 /**
  * A result entry corresponds to an individual result/document matched inside
- * the overall XML result provided to the user.
+ * the overall XML or JSON result provided to the user.
  *
  * @author Andreas P. Koenzen <akc at apkc.net>
  * @version 0.1
@@ -39,6 +39,7 @@ class ResultEntry
 {
 
     static final byte XML = 1;
+    static final byte JSON = 2;
     // Config
     private byte type = XML;
     // Document
@@ -153,6 +154,38 @@ class ResultEntry
         return url;
     }
 
+    /**
+     * Builds the entry with all the elements that were set, in a fixed order.
+     *
+     * @return The entry.
+     */
+    String build()
+    {
+        String[] elements = {boost, boostGravity, contentBlocks, contentLength, digest, extension, fetchTime, fileType,
+            gravity, indexTime, language, lastModified, segment, summary, title, url};
+        StringBuilder entry = new StringBuilder();
+        switch (type) {
+            case XML:
+                entry.append("<result>");
+                for (String e : elements) {
+                    entry.append(e);
+                }
+                entry.append("</result>");
+                break;
+            case JSON:
+                entry.append("{");
+                for (String e : elements) {
+                    if (!e.isEmpty()) {
+                        entry.append(entry.length() > 1 ? "," : "").append(e);
+                    }
+                }
+                entry.append("}");
+                break;
+        }
+
+        return entry.toString();
+    }
+
     ResultEntry setType(byte type)
     {
         this.type = type;
@@ -166,6 +199,9 @@ class ResultEntry
             case XML:
                 s.append("<boost>").append((boost != null && !boost.isEmpty()) ? boost : "0.00").append("</boost>");
                 break;
+            case JSON:
+                s.append("\"boost\":\"").append(Result.forJSON((boost != null && !boost.isEmpty()) ? boost : "0.00")).append("\"");
+                break;
         }
         this.boost = s.toString();
         return this;
@@ -178,6 +214,9 @@ class ResultEntry
             case XML:
                 s.append("<boostwithgravity>").append((boostGravity != null && !boostGravity.isEmpty()) ? boostGravity : "0.00").append("</boostwithgravity>");
                 break;
+            case JSON:
+                s.append("\"boostwithgravity\":\"").append(Result.forJSON((boostGravity != null && !boostGravity.isEmpty()) ? boostGravity : "0.00")).append("\"");
+                break;
         }
         this.boostGravity = s.toString();
         return this;
@@ -194,6 +233,13 @@ class ResultEntry
                 }
                 s.append("</contentblocks>");
                 break;
+            case JSON:
+                s.append("\"contentblocks\":[");
+                for (int k = 0; k < contentBlocks.length; k++) {
+                    s.append(k > 0 ? "," : "").append("\"").append(Result.forJSON(contentBlocks[k].getBlockContent())).append("\"");
+                }
+                s.append("]");
+                break;
         }
         this.contentBlocks = s.toString();
         return this;
@@ -206,6 +252,9 @@ class ResultEntry
             case XML:
                 s.append("<contentlength>").append((contentLength != null && !contentLength.isEmpty()) ? contentLength : "0.00").append("</contentlength>");
                 break;
+            case JSON:
+                s.append("\"contentlength\":\"").append(Result.forJSON((contentLength != null && !contentLength.isEmpty()) ? contentLength : "0.00")).append("\"");
+                break;
         }
         this.contentLength = s.toString();
         return this;
@@ -218,6 +267,9 @@ class ResultEntry
             case XML:
                 s.append("<digest>").append((digest != null && !digest.isEmpty()) ? digest : "").append("</digest>");
                 break;
+            case JSON:
+                s.append("\"digest\":\"").append(Result.forJSON((digest != null && !digest.isEmpty()) ? digest : "")).append("\"");
+                break;
         }
         this.digest = s.toString();
         return this;
@@ -230,6 +282,9 @@ class ResultEntry
             case XML:
                 s.append("<extension>").append((extension != null && !extension.isEmpty()) ? extension : "").append("</extension>");
                 break;
+            case JSON:
+                s.append("\"extension\":\"").append(Result.forJSON((extension != null && !extension.isEmpty()) ? extension : "")).append("\"");
+                break;
         }
         this.extension = s.toString();
         return this;
@@ -242,6 +297,9 @@ class ResultEntry
             case XML:
                 s.append("<fetchtime>").append((fetchTime != null && !fetchTime.isEmpty()) ? fetchTime : "0").append("</fetchtime>");
                 break;
+            case JSON:
+                s.append("\"fetchtime\":\"").append(Result.forJSON((fetchTime != null && !fetchTime.isEmpty()) ? fetchTime : "0")).append("\"");
+                break;
         }
         this.fetchTime = s.toString();
         return this;
@@ -254,6 +312,9 @@ class ResultEntry
             case XML:
                 s.append("<filetype>").append((fileType != null && !fileType.isEmpty()) ? fileType : "").append("</filetype>");
                 break;
+            case JSON:
+                s.append("\"filetype\":\"").append(Result.forJSON((fileType != null && !fileType.isEmpty()) ? fileType : "")).append("\"");
+                break;
         }
         this.fileType = s.toString();
         return this;
@@ -266,6 +327,9 @@ class ResultEntry
             case XML:
                 s.append("<gravity>").append((gravity != null && !gravity.isEmpty()) ? gravity : "").append("</gravity>");
                 break;
+            case JSON:
+                s.append("\"gravity\":\"").append(Result.forJSON((gravity != null && !gravity.isEmpty()) ? gravity : "")).append("\"");
+                break;
         }
         this.gravity = s.toString();
         return this;
@@ -278,6 +342,9 @@ class ResultEntry
             case XML:
                 s.append("<indextime>").append((indexTime != null && !indexTime.isEmpty()) ? indexTime : "0").append("</indextime>");
                 break;
+            case JSON:
+                s.append("\"indextime\":\"").append(Result.forJSON((indexTime != null && !indexTime.isEmpty()) ? indexTime : "0")).append("\"");
+                break;
         }
         this.indexTime = s.toString();
         return this;
@@ -290,6 +357,9 @@ class ResultEntry
             case XML:
                 s.append("<language>").append((language != null && !language.isEmpty()) ? language : "").append("</language>");
                 break;
+            case JSON:
+                s.append("\"language\":\"").append(Result.forJSON((language != null && !language.isEmpty()) ? language : "")).append("\"");
+                break;
         }
         this.language = s.toString();
         return this;
@@ -302,6 +372,9 @@ class ResultEntry
             case XML:
                 s.append("<lastmodified>").append((lastModified != null && !lastModified.isEmpty()) ? lastModified : "0").append("</lastmodified>");
                 break;
+            case JSON:
+                s.append("\"lastmodified\":\"").append(Result.forJSON((lastModified != null && !lastModified.isEmpty()) ? lastModified : "0")).append("\"");
+                break;
         }
         this.lastModified = s.toString();
         return this;
@@ -314,6 +387,9 @@ class ResultEntry
             case XML:
                 s.append("<segment>").append((segment != null && !segment.isEmpty()) ? segment : "").append("</segment>");
                 break;
+            case JSON:
+                s.append("\"segment\":\"").append(Result.forJSON((segment != null && !segment.isEmpty()) ? segment : "")).append("\"");
+                break;
         }
         this.segment = s.toString();
         return this;
@@ -326,6 +402,9 @@ class ResultEntry
             case XML:
                 s.append("<summary>").append((summary != null && !summary.isEmpty()) ? Result.forXML(summary) : "").append("</summary>");
                 break;
+            case JSON:
+                s.append("\"summary\":\"").append(Result.forJSON((summary != null && !summary.isEmpty()) ? summary : "")).append("\"");
+                break;
         }
         this.summary = s.toString();
         return this;
@@ -338,6 +417,9 @@ class ResultEntry
             case XML:
                 s.append("<title>").append((title != null && !title.isEmpty()) ? Result.forXML(title) : "").append("</title>");
                 break;
+            case JSON:
+                s.append("\"title\":\"").append(Result.forJSON((title != null && !title.isEmpty()) ? title : "")).append("\"");
+                break;
         }
         this.title = s.toString();
         return this;
@@ -350,6 +432,9 @@ class ResultEntry
             case XML:
                 s.append("<url>").append((url != null && !url.isEmpty()) ? Result.forXML(url) : "").append("</url>");
                 break;
+            case JSON:
+                s.append("\"url\":\"").append(Result.forJSON((url != null && !url.isEmpty()) ? url : "")).append("\"");
+                break;
         }
         this.url = s.toString();
         return this;
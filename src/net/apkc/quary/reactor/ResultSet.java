@@ -0,0 +1,687 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.reactor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.io.Writable;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * The result of a search in a compact binary form, which is what nodes return.
+ *
+ * <p>
+ * It holds the hits with their scores and projected elements, the aggregations
+ * and the timing of the search. It's rendered into XML or JSON only at the edge,
+ * by writing it entry by entry into the output, so the whole response is never
+ * held in memory as text. Shards can be merged without parsing any text.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Builder_pattern">Builder Pattern</a>
+ */
+public final class ResultSet implements Writable
+{
+
+    private int totalHits = 0;
+    private String shardID = ""; // Don't allow null, breaks serialization.
+    private List<Hit> hits = new ArrayList<>(0);
+    private Aggregations aggregations = null;
+    private String leaseID = ""; // Don't allow null, breaks serialization.
+    private double searchTime = 0.0d;
+    private String errorMessage = ""; // Don't allow null, breaks serialization.
+    private boolean partial = false;
+
+    /**
+     * Always make the constructor private. To create a new instance of the
+     * class we must use the method newBuild().
+     */
+    private ResultSet()
+    {
+        // Always empty.
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(totalHits);
+        out.writeUTF(shardID);
+        out.writeInt(hits.size());
+        for (Hit hit : hits) {
+            hit.write(out);
+        }
+        out.writeBoolean(aggregations != null);
+        if (aggregations != null) {
+            aggregations.write(out);
+        }
+        out.writeUTF(leaseID);
+        out.writeDouble(searchTime);
+        out.writeUTF(errorMessage);
+        out.writeBoolean(partial);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        totalHits = in.readInt();
+        shardID = in.readUTF();
+        int hitsLength = in.readInt();
+        hits = new ArrayList<>(hitsLength);
+        for (int k = 0; k < hitsLength; k++) {
+            Hit hit = new Hit();
+            hit.readFields(in);
+            hits.add(hit);
+        }
+        aggregations = null;
+        if (in.readBoolean()) {
+            aggregations = Aggregations.newBuild();
+            aggregations.readFields(in);
+        }
+        leaseID = in.readUTF();
+        searchTime = in.readDouble();
+        errorMessage = in.readUTF();
+        partial = in.readBoolean();
+    }
+
+    public static ResultSet newBuild()
+    {
+        return new ResultSet();
+    }
+
+    /**
+     * Returns a copy of this result set, which shares the hits and aggregations
+     * but not the lease and timing. Used to serve cached results.
+     *
+     * @return The copy.
+     */
+    public ResultSet duplicate()
+    {
+        ResultSet copy = new ResultSet();
+        copy.totalHits = totalHits;
+        copy.shardID = shardID;
+        copy.hits = hits;
+        copy.aggregations = aggregations;
+        copy.errorMessage = errorMessage;
+        copy.partial = partial;
+
+        return copy;
+    }
+
+    /**
+     * Merges the result sets of several shards into one. The hits are ordered by
+     * score, then shard and then document, the same order used by the cursors.
+     *
+     * @param shards The result sets of the shards. NULL entries are missing
+     *               shards, which make the merged result set partial.
+     * @param offset How many of the merged hits to skip.
+     * @param count  How many of the merged hits to keep.
+     *
+     * @return The merged result set, without lease and search time.
+     */
+    public static ResultSet merge(List<ResultSet> shards, int offset, int count)
+    {
+        ResultSet merged = new ResultSet();
+        List<Hit> all = new ArrayList<>();
+        StringBuilder errors = new StringBuilder();
+        for (ResultSet shard : shards) {
+            if (shard == null) {
+                merged.partial = true;
+                continue;
+            }
+
+            merged.totalHits += shard.totalHits;
+            all.addAll(shard.hits);
+            if (shard.aggregations != null) {
+                if (merged.aggregations == null) {
+                    merged.aggregations = Aggregations.newBuild();
+                }
+                merged.aggregations.merge(shard.aggregations);
+            }
+            merged.partial |= shard.partial;
+            if (!shard.errorMessage.isEmpty()) {
+                errors.append(errors.length() > 0 ? " " : "").append(shard.errorMessage);
+            }
+        }
+
+        Collections.sort(all, (Hit a, Hit b) -> {
+            if (a.score != b.score) {
+                return Float.compare(b.score, a.score);
+            }
+            if (!a.shardID.equals(b.shardID)) {
+                return a.shardID.compareTo(b.shardID);
+            }
+            return Integer.compare(a.doc, b.doc);
+        });
+        int from = Math.min(Math.max(offset, 0), all.size());
+        int to = Math.min(from + Math.max(count, 0), all.size());
+        merged.hits = new ArrayList<>(all.subList(from, to));
+        merged.errorMessage = errors.toString();
+
+        return merged;
+    }
+
+    public ResultSet setTotalHits(int totalHits)
+    {
+        this.totalHits = totalHits;
+        return this;
+    }
+
+    public ResultSet setShardID(String shardID)
+    {
+        this.shardID = (shardID != null) ? shardID : "";
+        return this;
+    }
+
+    public ResultSet addHit(Hit hit)
+    {
+        this.hits.add(hit);
+        return this;
+    }
+
+    public ResultSet setAggregations(Aggregations aggregations)
+    {
+        this.aggregations = aggregations;
+        return this;
+    }
+
+    public ResultSet setLeaseID(String leaseID)
+    {
+        this.leaseID = (leaseID != null) ? leaseID : "";
+        return this;
+    }
+
+    /**
+     * The time it took to make the search.
+     *
+     * @param searchTime The time in seconds.
+     *
+     * @return This object.
+     */
+    public ResultSet setSearchTime(double searchTime)
+    {
+        this.searchTime = searchTime;
+        return this;
+    }
+
+    public ResultSet setErrorMessage(String errorMessage)
+    {
+        this.errorMessage = (errorMessage != null) ? errorMessage : "";
+        return this;
+    }
+
+    /**
+     * Marks this result set as partial, because the search ran out of time or
+     * some shards didn't answer. The hits are the best ones found until then.
+     *
+     * @param partial TRUE if the result set is partial.
+     *
+     * @return This object.
+     */
+    public ResultSet setPartial(boolean partial)
+    {
+        this.partial = partial;
+        return this;
+    }
+
+    public int getTotalHits()
+    {
+        return totalHits;
+    }
+
+    public String getShardID()
+    {
+        return shardID;
+    }
+
+    public List<Hit> getHits()
+    {
+        return Collections.unmodifiableList(hits);
+    }
+
+    public Aggregations getAggregations()
+    {
+        return aggregations;
+    }
+
+    public String getLeaseID()
+    {
+        return leaseID;
+    }
+
+    public double getSearchTime()
+    {
+        return searchTime;
+    }
+
+    public String getErrorMessage()
+    {
+        return errorMessage;
+    }
+
+    public boolean isPartial()
+    {
+        return partial;
+    }
+
+    /**
+     * Returns the cursor to continue with the next page of this result set.
+     *
+     * @return The cursor, or NULL if there are no hits.
+     */
+    public String getCursor()
+    {
+        if (hits.isEmpty()) {
+            return null;
+        }
+
+        Hit last = hits.get(hits.size() - 1);
+        return Parameters.makeCursor(new ScoreDoc(last.doc, last.score), last.shardID);
+    }
+
+    /**
+     * Renders this result set in XML format into the given output.
+     *
+     * @param out The output.
+     *
+     * @throws IOException If the output can't be written.
+     */
+    public void writeXML(Appendable out) throws IOException
+    {
+        out.append("<?xml version=\"1.0\"?>");
+        appendXML(out);
+    }
+
+    /**
+     * Renders several result sets in XML format into the given output, each one
+     * as a results element inside a batch element.
+     *
+     * @param results The result sets.
+     * @param out     The output.
+     *
+     * @throws IOException If the output can't be written.
+     */
+    public static void writeXML(ResultSet[] results, Appendable out) throws IOException
+    {
+        out.append("<?xml version=\"1.0\"?>");
+        out.append("<batch>");
+        for (ResultSet r : results) {
+            r.appendXML(out);
+        }
+        out.append("</batch>");
+    }
+
+    private void appendXML(Appendable out) throws IOException
+    {
+        out.append("<results>");
+        for (Hit hit : hits) {
+            out.append(hit.toEntry(ResultEntry.XML).build());
+        }
+
+        if (aggregations != null) {
+            // Count the distincts filetypes, over all the matching documents.
+            // i.e. application/pdf => 201
+            //      text/html => 406
+            out.append("<filetypes>");
+            for (Map.Entry<String, Integer> e : aggregations.getTermCounts("filetype").entrySet()) {
+                String ext = e.getKey().replaceAll("\\/", "-");
+                out.append("<").append(ext).append(">").append(String.valueOf(e.getValue())).append("</").append(ext).append(">");
+            }
+            out.append("</filetypes>");
+
+            out.append("<aggregations>");
+            for (String field : aggregations.getFields()) {
+                out.append("<terms field=\"").append(Result.forXML(field)).append("\">");
+                for (Map.Entry<String, Integer> e : aggregations.getTermCounts(field).entrySet()) {
+                    out.append("<term value=\"").append(Result.forXML(e.getKey())).append("\">").append(String.valueOf(e.getValue())).append("</term>");
+                }
+                out.append("</terms>");
+            }
+            if (aggregations.getHistogramUnit() > 0) {
+                out.append("<histogram unit=\"").append(String.valueOf(aggregations.getHistogramUnit())).append("\">");
+                for (Map.Entry<Long, Integer> e : aggregations.getHistogram().entrySet()) {
+                    out.append("<bucket time=\"").append(String.valueOf(e.getKey())).append("\">").append(String.valueOf(e.getValue())).append("</bucket>");
+                }
+                out.append("</histogram>");
+            }
+            out.append("</aggregations>");
+        }
+
+        out.append("<totalhits>").append(String.valueOf(totalHits)).append("</totalhits>");
+        if (getCursor() != null) {
+            out.append("<cursor>").append(getCursor()).append("</cursor>");
+        }
+        if (!leaseID.isEmpty()) {
+            out.append("<lease>").append(leaseID).append("</lease>");
+        }
+        if (partial) {
+            out.append("<partial>true</partial>");
+        }
+        if (!errorMessage.isEmpty()) {
+            out.append("<errormessage>").append(Result.forXML(errorMessage)).append("</errormessage>");
+        }
+        out.append("  <searchtime>").append(String.valueOf(searchTime)).append("</searchtime>");
+        out.append("</results>");
+    }
+
+    /**
+     * Renders this result set in JSON format into the given output.
+     *
+     * @param out The output.
+     *
+     * @throws IOException If the output can't be written.
+     */
+    public void writeJSON(Appendable out) throws IOException
+    {
+        out.append("{\"results\":[");
+        for (int k = 0; k < hits.size(); k++) {
+            out.append(k > 0 ? "," : "").append(hits.get(k).toEntry(ResultEntry.JSON).build());
+        }
+        out.append("]");
+
+        if (aggregations != null) {
+            out.append(",\"filetypes\":");
+            writeJSONCounts(out, aggregations.getTermCounts("filetype"));
+
+            out.append(",\"aggregations\":{\"terms\":{");
+            boolean first = true;
+            for (String field : aggregations.getFields()) {
+                out.append(first ? "" : ",").append("\"").append(Result.forJSON(field)).append("\":");
+                writeJSONCounts(out, aggregations.getTermCounts(field));
+                first = false;
+            }
+            out.append("}");
+            if (aggregations.getHistogramUnit() > 0) {
+                out.append(",\"histogram\":{\"unit\":").append(String.valueOf(aggregations.getHistogramUnit())).append(",\"buckets\":{");
+                first = true;
+                for (Map.Entry<Long, Integer> e : aggregations.getHistogram().entrySet()) {
+                    out.append(first ? "" : ",").append("\"").append(String.valueOf(e.getKey())).append("\":").append(String.valueOf(e.getValue()));
+                    first = false;
+                }
+                out.append("}}");
+            }
+            out.append("}");
+        }
+
+        out.append(",\"totalhits\":").append(String.valueOf(totalHits));
+        if (getCursor() != null) {
+            out.append(",\"cursor\":\"").append(getCursor()).append("\"");
+        }
+        if (!leaseID.isEmpty()) {
+            out.append(",\"lease\":\"").append(Result.forJSON(leaseID)).append("\"");
+        }
+        if (partial) {
+            out.append(",\"partial\":true");
+        }
+        if (!errorMessage.isEmpty()) {
+            out.append(",\"errormessage\":\"").append(Result.forJSON(errorMessage)).append("\"");
+        }
+        out.append(",\"searchtime\":").append(String.valueOf(searchTime));
+        out.append("}");
+    }
+
+    /**
+     * Renders several result sets in JSON format into the given output, as an
+     * array.
+     *
+     * @param results The result sets.
+     * @param out     The output.
+     *
+     * @throws IOException If the output can't be written.
+     */
+    public static void writeJSON(ResultSet[] results, Appendable out) throws IOException
+    {
+        out.append("[");
+        for (int k = 0; k < results.length; k++) {
+            out.append(k > 0 ? "," : "");
+            results[k].writeJSON(out);
+        }
+        out.append("]");
+    }
+
+    private static void writeJSONCounts(Appendable out, Map<String, Integer> counts) throws IOException
+    {
+        out.append("{");
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            out.append(first ? "" : ",").append("\"").append(Result.forJSON(e.getKey())).append("\":").append(String.valueOf(e.getValue()));
+            first = false;
+        }
+        out.append("}");
+    }
+
+    /**
+     * A hit of the result set, with the elements projected for the response.
+     */
+    public static final class Hit implements Writable
+    {
+
+        private int doc;
+        private float score;
+        private String shardID = ""; // Don't allow null, breaks serialization.
+        /** The values of the elements, by name. i.e. title => "Quary" */
+        private Map<String, String> elements = new LinkedHashMap<>();
+        /** The passages of the content blocks, or NULL if they weren't requested. */
+        private String[] passages = null;
+
+        private Hit()
+        {
+        }
+
+        public Hit(int doc, float score, String shardID)
+        {
+            this.doc = doc;
+            this.score = score;
+            this.shardID = (shardID != null) ? shardID : "";
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException
+        {
+            out.writeInt(doc);
+            out.writeFloat(score);
+            out.writeUTF(shardID);
+            out.writeInt(elements.size());
+            for (Map.Entry<String, String> e : elements.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeString(out, e.getValue());
+            }
+            out.writeInt(passages != null ? passages.length : -1);
+            if (passages != null) {
+                for (String p : passages) {
+                    writeString(out, p);
+                }
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException
+        {
+            doc = in.readInt();
+            score = in.readFloat();
+            shardID = in.readUTF();
+            int elementsLength = in.readInt();
+            elements = new LinkedHashMap<>();
+            for (int k = 0; k < elementsLength; k++) {
+                elements.put(in.readUTF(), readString(in));
+            }
+            int passagesLength = in.readInt();
+            passages = passagesLength >= 0 ? new String[passagesLength] : null;
+            for (int k = 0; k < passagesLength; k++) {
+                passages[k] = readString(in);
+            }
+        }
+
+        /**
+         * Writes a string as its length in bytes followed by its UTF-8 bytes.
+         * Values of the elements, like the content, can be longer than the 64KB
+         * that writeUTF() allows.
+         *
+         * @param out   The output.
+         * @param value The string.
+         *
+         * @throws IOException If the string can't be written.
+         */
+        private static void writeString(DataOutput out, String value) throws IOException
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Reads a string written with writeString().
+         *
+         * @param in The input.
+         *
+         * @return The string.
+         *
+         * @throws IOException If the string can't be read.
+         */
+        private static String readString(DataInput in) throws IOException
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Sets the value of an element.
+         *
+         * @param element The name of the element. i.e. title
+         * @param value   The value. NULL is stored as an empty value.
+         *
+         * @return This object.
+         */
+        public Hit setElement(String element, String value)
+        {
+            elements.put(element, (value != null) ? value : "");
+            return this;
+        }
+
+        public Hit setPassages(String[] passages)
+        {
+            this.passages = passages;
+            return this;
+        }
+
+        public int getDoc()
+        {
+            return doc;
+        }
+
+        public float getScore()
+        {
+            return score;
+        }
+
+        public String getShardID()
+        {
+            return shardID;
+        }
+
+        public String getElement(String element)
+        {
+            return elements.get(element);
+        }
+
+        /**
+         * Builds the entry of this hit in the response.
+         *
+         * @param type The format of the entry. i.e. ResultEntry.XML
+         *
+         * @return The entry.
+         */
+        ResultEntry toEntry(byte type)
+        {
+            ResultEntry entry = ResultEntry
+                    .newBuild()
+                    .setType(type);
+            for (Map.Entry<String, String> e : elements.entrySet()) {
+                switch (e.getKey()) {
+                    case "boost":
+                        entry.setBoost(e.getValue());
+                        break;
+                    case "boostwithgravity":
+                        entry.setBoostGravity(e.getValue());
+                        break;
+                    case "contentlength":
+                        entry.setContentLength(e.getValue());
+                        break;
+                    case "digest":
+                        entry.setDigest(e.getValue());
+                        break;
+                    case "extension":
+                        entry.setExtension(e.getValue());
+                        break;
+                    case "fetchtime":
+                        entry.setFetchTime(e.getValue());
+                        break;
+                    case "filetype":
+                        entry.setFileType(e.getValue());
+                        break;
+                    case "gravity":
+                        entry.setGravity(e.getValue());
+                        break;
+                    case "indextime":
+                        entry.setIndexTime(e.getValue());
+                        break;
+                    case "language":
+                        entry.setLanguage(e.getValue());
+                        break;
+                    case "lastmodified":
+                        entry.setLastModified(e.getValue());
+                        break;
+                    case "segment":
+                        entry.setSegment(e.getValue());
+                        break;
+                    case "summary":
+                        entry.setSummary(e.getValue());
+                        break;
+                    case "title":
+                        entry.setTitle(e.getValue());
+                        break;
+                    case "url":
+                        entry.setURL(e.getValue());
+                        break;
+                }
+            }
+            if (passages != null) {
+                entry.setContentBlocks(Result.getContentBlocks(passages));
+            }
+
+            return entry;
+        }
+    }
+}
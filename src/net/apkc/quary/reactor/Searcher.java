@@ -25,15 +25,14 @@
  */
 package net.apkc.quary.reactor;
 
-import java.lang.annotation.Annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import net.apkc.quary.exceptions.ObjectConfigurationException;
-import net.apkc.quary.util.QuaryConfiguration;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Logger;
 import org.apache.lucene.search.IndexSearcher;
 
@@ -54,9 +53,12 @@ public class Searcher
     private static final String IS_OPEN = "setIsOpen";
     private static final String SHOULD_CLOSE = "setShouldClose";
     private static final String SEARCHER = "setSearcher";
+    /** The setters which must be called, found once from their annotations. */
+    private static final List<String> REQUIRED = new ArrayList<>();
+    private static final Mark SET = new Mark(Boolean.TRUE);
+    private static final Mark NOT_SET = new Mark(Boolean.FALSE);
     /** Array to mark if the variables had been initialized. */
-    private Map<String, Mark> marks = new HashMap<>();
-    private Configuration config = new QuaryConfiguration().create();
+    private Map<String, Mark> marks = new HashMap<>(4);
     /**
      * Mark if this searcher is open. If is open used, never use a close searcher, will result in a
      * NullPointerException.
@@ -67,11 +69,21 @@ public class Searcher
     /** The Lucene search object. */
     private IndexSearcher searcher;
 
+    static {
+        // Check annotations for this class.
+        for (Method m : Searcher.class.getMethods()) {
+            Use u = m.getAnnotation(Use.class);
+            if (u != null && !u.isOptional()) {
+                REQUIRED.add(m.getName());
+            }
+        }
+    }
+
     private Searcher()
     {
-        marks.put(IS_OPEN, new Mark(Boolean.FALSE));
-        marks.put(SHOULD_CLOSE, new Mark(Boolean.FALSE));
-        marks.put(SEARCHER, new Mark(Boolean.FALSE));
+        marks.put(IS_OPEN, NOT_SET);
+        marks.put(SHOULD_CLOSE, NOT_SET);
+        marks.put(SEARCHER, NOT_SET);
     }
 
     /**
@@ -95,7 +107,7 @@ public class Searcher
     public Searcher setIsOpen(boolean isOpen)
     {
         this.isOpen = isOpen;
-        marks.put(IS_OPEN, new Mark(Boolean.TRUE));
+        marks.put(IS_OPEN, SET);
         return this;
     }
 
@@ -110,7 +122,7 @@ public class Searcher
     public Searcher setSearcher(IndexSearcher searcher)
     {
         this.searcher = searcher;
-        marks.put(SEARCHER, new Mark(Boolean.TRUE));
+        marks.put(SEARCHER, SET);
         return this;
     }
 
@@ -125,7 +137,7 @@ public class Searcher
     public Searcher setShouldClose(boolean shouldClose)
     {
         this.shouldClose = shouldClose;
-        marks.put(SHOULD_CLOSE, new Mark(Boolean.TRUE));
+        marks.put(SHOULD_CLOSE, SET);
         return this;
     }
 
@@ -136,25 +148,13 @@ public class Searcher
      */
     public Searcher checkObject()
     {
-        // Check annotations for this object.
-        Method[] methods = Searcher.class.getMethods();
-        for (Method m : methods) {
-            String methodName = m.getName();
-            Annotation[] annotations = m.getAnnotations();
-            for (Annotation a : annotations) {
-                if (a instanceof Use) {
-                    Use u = (Use) a;
-                    // Check if is optional.
-                    if (marks.containsKey(methodName)) {
-                        if ((!u.isOptional() && !marks.get(methodName).isOptional)) {
-                            try {
-                                throw new ObjectConfigurationException("This object hasn't been properly configured!");
-                            }
-                            catch (ObjectConfigurationException e) {
-                                LOG.error("Object's configuration error. Error: " + e.toString(), e);
-                            }
-                        }
-                    }
+        for (String methodName : REQUIRED) {
+            if (marks.containsKey(methodName) && !marks.get(methodName).isOptional) {
+                try {
+                    throw new ObjectConfigurationException("This object hasn't been properly configured!");
+                }
+                catch (ObjectConfigurationException e) {
+                    LOG.error("Object's configuration error. Error: " + e.toString(), e);
                 }
             }
         }
@@ -200,7 +200,7 @@ public class Searcher
      * to see if they are equal to each other. If they are not then an exception must
      * be thrown.</p>
      */
-    class Mark
+    static final class Mark
     {
 
         boolean isOptional;
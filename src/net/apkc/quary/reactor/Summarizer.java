@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.reactor;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds query-biased summaries of documents.
+ *
+ * <p>
+ * The positions of the query terms in a document are read from the offsets of
+ * its term vectors, so the text is never analyzed again. Only fields which are
+ * stored and have term vector offsets (STORE_TERM_VECTOR_OFFSETS) can be
+ * summarized. The best passages are the windows of text with the most distinct
+ * query terms, and then the most occurrences. The work per document is bounded,
+ * since only the first characters of the text are considered.
+ * </p>
+ *
+ * <p>
+ * Passages are cached per segment, document and query terms. Segments don't
+ * change once written, so entries are never stale.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Singleton_pattern">Singleton Pattern</a>
+ */
+public final class Summarizer
+{
+
+    private static final Logger LOG = Logger.getLogger(Summarizer.class.getName());
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final Summarizer INSTANCE = new Summarizer();
+    private static final int PASSAGES = Math.max(CONF.getInt("node.summaries.passages", 3), 1);
+    private static final int PASSAGE_SIZE = Math.max(CONF.getInt("node.summaries.passage.size", 160), 16);
+    private static final int MAX_CHARS = Math.max(CONF.getInt("node.summaries.maxchars", 20000), PASSAGE_SIZE);
+    private static final int MAX_OCCURRENCES = 256;
+    private final Cache<String, Entry> PASSAGES_CACHE = CacheBuilder
+            .newBuilder()
+            .maximumSize(CONF.getInt("node.cache.summaries.size", 4096))
+            .recordStats()
+            .build();
+
+    /**
+     * Private default constructor.
+     */
+    private Summarizer()
+    {
+    }
+
+    public static Summarizer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the terms of a query, which are the terms to look for in the
+     * documents. The query is rewritten first, so multi-term queries are
+     * expanded.
+     *
+     * @param searcher The searcher used to make the search.
+     * @param query    The query.
+     *
+     * @return The sorted set of terms, without fields.
+     */
+    public Set<String> getQueryTerms(IndexSearcher searcher, Query query)
+    {
+        Set<Term> terms = new HashSet<>();
+        try {
+            searcher.rewrite(query).extractTerms(terms);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Impossible to extract the terms of query \"" + query + "\".", e);
+            }
+        }
+
+        Set<String> texts = new TreeSet<>();
+        terms.stream().forEach((t) -> {
+            texts.add(t.text());
+        });
+
+        return texts;
+    }
+
+    /**
+     * Returns the best passages of a document for the given terms, in the order
+     * they appear in the text. Query terms are marked with &lt;b&gt; tags. If no
+     * term is found, the beginning of the text is returned.
+     *
+     * @param searcher The searcher used to make the search.
+     * @param docID    The ID of the document.
+     * @param doc      The stored fields of the document. Must include the fields.
+     * @param fields   The fields to summarize. The first with text is used.
+     * @param terms    The terms of the query.
+     *
+     * @return The passages, which may be empty.
+     */
+    public String[] getPassages(IndexSearcher searcher, int docID, Document doc, String[] fields, Set<String> terms)
+    {
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+        Object core = leaf.reader().getCoreCacheKey();
+        String key = System.identityHashCode(core) + ":" + (docID - leaf.docBase) + ":" + String.join(" ", fields) + ":" + String.join(" ", terms);
+
+        Entry cached = PASSAGES_CACHE.getIfPresent(key);
+        if (cached != null && cached.core.get() == core) {
+            return cached.passages;
+        }
+
+        String[] passages = new String[0];
+        for (String field : fields) {
+            String text = doc.get(field);
+            if (text != null && !text.isEmpty()) {
+                try {
+                    passages = makePassages(text, getOccurrences(leaf.reader().getTermVector(docID - leaf.docBase, field), terms));
+                }
+                catch (IOException e) {
+                    LOG.error("Impossible to read the term vector of field " + field + ". Error: " + e.toString(), e);
+                }
+                break;
+            }
+        }
+        PASSAGES_CACHE.put(key, new Entry(core, passages));
+
+        return passages;
+    }
+
+    /**
+     * Returns the hit/miss metrics of the cache in XML format.
+     *
+     * @return The metrics.
+     */
+    public String getStats()
+    {
+        CacheStats stats = PASSAGES_CACHE.stats();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<summarycache>");
+        xml.append("<size>").append(PASSAGES_CACHE.size()).append("</size>");
+        xml.append("<hits>").append(stats.hitCount()).append("</hits>");
+        xml.append("<misses>").append(stats.missCount()).append("</misses>");
+        xml.append("<hitrate>").append(stats.hitRate()).append("</hitrate>");
+        xml.append("<evictions>").append(stats.evictionCount()).append("</evictions>");
+        xml.append("</summarycache>");
+
+        return xml.toString();
+    }
+
+    /**
+     * Returns the offsets of the occurrences of the terms, sorted by start offset.
+     * Only occurrences within the first MAX_CHARS characters are returned.
+     *
+     * @param vector The term vector of the field.
+     * @param terms  The terms.
+     *
+     * @return The occurrences, as {start, end, term} triplets.
+     *
+     * @throws IOException
+     */
+    private List<int[]> getOccurrences(Terms vector, Set<String> terms) throws IOException
+    {
+        List<int[]> occurrences = new ArrayList<>();
+        if (vector == null || !vector.hasOffsets()) {
+            return occurrences;
+        }
+
+        TermsEnum e = vector.iterator(null);
+        int termIndex = 0;
+        for (String term : terms) {
+            if (e.seekExact(new BytesRef(term))) {
+                DocsAndPositionsEnum positions = e.docsAndPositions(null, null, DocsAndPositionsEnum.FLAG_OFFSETS);
+                if (positions != null && positions.nextDoc() != DocsAndPositionsEnum.NO_MORE_DOCS) {
+                    for (int k = 0; k < positions.freq() && occurrences.size() < MAX_OCCURRENCES; k++) {
+                        positions.nextPosition();
+                        if (positions.startOffset() >= 0 && positions.endOffset() <= MAX_CHARS) {
+                            occurrences.add(new int[]{positions.startOffset(), positions.endOffset(), termIndex});
+                        }
+                    }
+                }
+            }
+            termIndex++;
+        }
+        Collections.sort(occurrences, (a, b) -> Integer.compare(a[0], b[0]));
+
+        return occurrences;
+    }
+
+    /**
+     * Picks the best passages of a text.
+     *
+     * @param text        The text.
+     * @param occurrences The occurrences of the terms, sorted by start offset.
+     *
+     * @return The passages, in the order they appear in the text.
+     */
+    private String[] makePassages(String text, List<int[]> occurrences)
+    {
+        int length = Math.min(text.length(), MAX_CHARS);
+        if (occurrences.isEmpty()) {
+            return new String[]{cut(text, 0, Math.min(length, PASSAGE_SIZE), occurrences)};
+        }
+
+        // Score a window starting at each occurrence: distinct terms first, then occurrences.
+        List<int[]> candidates = new ArrayList<>(occurrences.size());
+        for (int k = 0; k < occurrences.size(); k++) {
+            int start = occurrences.get(k)[0];
+            Set<Integer> distinct = new TreeSet<>();
+            int count = 0;
+            for (int j = k; j < occurrences.size() && occurrences.get(j)[1] <= start + PASSAGE_SIZE; j++) {
+                distinct.add(occurrences.get(j)[2]);
+                count++;
+            }
+            candidates.add(new int[]{start, distinct.size() * MAX_OCCURRENCES + count});
+        }
+        Collections.sort(candidates, (a, b) -> a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[0], b[0]));
+
+        // Take the best windows that don't overlap.
+        List<int[]> windows = new ArrayList<>(PASSAGES);
+        for (int[] c : candidates) {
+            // Start a bit before the first occurrence, for context.
+            int start = Math.max(0, c[0] - PASSAGE_SIZE / 4);
+            int end = Math.min(length, start + PASSAGE_SIZE);
+            boolean overlaps = false;
+            for (int[] w : windows) {
+                if (start < w[1] && end > w[0]) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) {
+                windows.add(new int[]{start, end});
+                if (windows.size() == PASSAGES) {
+                    break;
+                }
+            }
+        }
+        Collections.sort(windows, (a, b) -> Integer.compare(a[0], b[0]));
+
+        String[] passages = new String[windows.size()];
+        for (int k = 0; k < windows.size(); k++) {
+            passages[k] = cut(text, windows.get(k)[0], windows.get(k)[1], occurrences);
+        }
+
+        return passages;
+    }
+
+    /**
+     * Cuts a passage of text at word boundaries, and marks the occurrences inside
+     * it.
+     *
+     * @param text        The text.
+     * @param start       The start offset of the passage.
+     * @param end         The end offset of the passage.
+     * @param occurrences The occurrences of the terms, sorted by start offset.
+     *
+     * @return The passage.
+     */
+    private String cut(String text, int start, int end, List<int[]> occurrences)
+    {
+        // Don't cut words in half.
+        if (start > 0) {
+            int space = text.indexOf(' ', start);
+            if (space >= 0 && space < end) {
+                start = space + 1;
+            }
+        }
+        if (end < text.length()) {
+            int space = text.lastIndexOf(' ', end);
+            if (space > start) {
+                end = space;
+            }
+        }
+
+        StringBuilder passage = new StringBuilder(end - start + 16);
+        int last = start;
+        for (int[] o : occurrences) {
+            if (o[0] >= last && o[1] <= end) {
+                passage.append(text, last, o[0]).append("<b>").append(text, o[0], o[1]).append("</b>");
+                last = o[1];
+            }
+        }
+        passage.append(text, last, end);
+
+        return passage.toString().trim();
+    }
+
+    /**
+     * The cached passages of a document.
+     */
+    private static final class Entry
+    {
+
+        /** The segment of the document. Weak, so the cache doesn't keep closed segments. */
+        final WeakReference<Object> core;
+        final String[] passages;
+
+        Entry(Object core, String[] passages)
+        {
+            this.core = new WeakReference<>(core);
+            this.passages = passages;
+        }
+    }
+}
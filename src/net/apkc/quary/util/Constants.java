@@ -37,12 +37,12 @@ public enum Constants
     // Resources
     TEST_DEFINITION("/resources/definitions/TestDefinition.xml"),
     XSD_SCHEMA_FILE("/resources/definitions/Schema.xsd"),
-    // Paths
-    DEFINITION_DB_FILE("/Quary/data/definitions.dat"),
-    NODES_DB_FILE("/Quary/data/nodes.dat"),
-    INDEX_FILE("/Quary/data/index/index."),
-    LOGS_PATH("/Quary/logs"),
-    TMP_PATH("/Quary/tmp"),
+    // Paths. Relative to /Quary, or to the directory given by the system property quary.home.
+    DEFINITION_DB_FILE(getHome() + "/data/definitions.dat"),
+    NODES_DB_FILE(getHome() + "/data/nodes.dat"),
+    INDEX_FILE(getHome() + "/data/index/index."),
+    LOGS_PATH(getHome() + "/logs"),
+    TMP_PATH(getHome() + "/tmp"),
     // Encryption
     ENCRYPTION_KEY("tictactoe1234567"),
     // Character Encoding
@@ -65,6 +65,11 @@ public enum Constants
         }
     }
 
+    private static String getHome()
+    {
+        return System.getProperty("quary.home", "/Quary");
+    }
+
     public String getStringConstant()
     {
         return c1;
@@ -73,6 +73,27 @@ public class Rank
         return (1 / (Math.exp(-C * Normalizer.normalize(tau) + C)));
     }
 
+    /**
+     * This method calculates the boost of a document with gravity applied. New
+     * documents get values close to 10, which decay towards 0 as the document
+     * ages. The higher the boost of the document the slower the decay.
+     *
+     * <p>
+     * It's evaluated at query time for every hit, so it uses
+     * calculateGravityLowGranularity(), which gives the same value as
+     * calculateGravity() but takes the age as a long instead of parsing a
+     * string per document.</p>
+     *
+     * @param boost The boost of the document.
+     * @param age   The age of the document in milliseconds.
+     *
+     * @return The boost with gravity, between 0 and 10.
+     */
+    public static double calculateBoostWithGravity(float boost, long age)
+    {
+        return Normalizer.normalize(boost / calculateGravityLowGranularity(age)) * 10;
+    }
+
     /**
      * This method calculates the fetch interval with gravity for a given score.
      * This new system gives re-fetching preferences to more newer pages,
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs tasks which spend most of their time blocked waiting for RPC calls.
+ *
+ * <p>
+ * There are two modes. In <i>pool</i> mode tasks run in a fixed pool of
+ * threads, so no more tasks than threads can be waiting at once. In
+ * <i>virtual</i> mode every task runs in its own virtual thread, so thousands
+ * of calls can be waiting without holding a platform thread each. Virtual
+ * threads are only available from Java 21 on, so they are looked up by
+ * reflection, and in older JVMs the executor falls back to the fixed pool. A
+ * task waiting for a permit parks its thread, which is cheap for a virtual
+ * thread, but would make an unbounded pool of platform threads grow with the
+ * load.
+ * </p>
+ *
+ * <p>
+ * Since the threads no longer limit how much work goes to each node, tasks
+ * take a permit of the node they talk to, and wait while all of them are
+ * taken.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ * @see <a href="http://en.wikipedia.org/wiki/Builder_pattern">Builder Pattern</a>
+ */
+public final class TaskExecutor
+{
+
+    private static final Logger LOG = Logger.getLogger(TaskExecutor.class.getName());
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+    private final ConcurrentHashMap<String, Semaphore> PERMITS = new ConcurrentHashMap<>();
+    private String name = "QUARY:TASKS";
+    private String mode = POOL;
+    private int threads = 16;
+    private int permits = Integer.MAX_VALUE;
+    private ExecutorService executor = null;
+    private boolean isVirtual = false;
+
+    /**
+     * Always make the constructor private. To create a new instance of the
+     * class we must use the method newBuild().
+     */
+    private TaskExecutor()
+    {
+        // Always empty.
+    }
+
+    public static TaskExecutor newBuild()
+    {
+        return new TaskExecutor();
+    }
+
+    /**
+     * Sets the prefix of the names of the threads.
+     *
+     * @param name The name.
+     *
+     * @return This instance.
+     */
+    public TaskExecutor setName(String name)
+    {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * Sets the mode of the executor, either "pool" or "virtual".
+     *
+     * @param mode The mode.
+     *
+     * @return This instance.
+     */
+    public TaskExecutor setMode(String mode)
+    {
+        this.mode = mode.trim().toLowerCase();
+        return this;
+    }
+
+    /**
+     * Sets the size of the pool, used in pool mode, and in virtual mode when the
+     * JVM doesn't have virtual threads.
+     *
+     * @param threads The number of threads.
+     *
+     * @return This instance.
+     */
+    public TaskExecutor setThreads(int threads)
+    {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * Sets how many tasks can talk to the same node at once.
+     *
+     * @param permits The number of permits per node. Zero or less means no
+     *                limit.
+     *
+     * @return This instance.
+     */
+    public TaskExecutor setPermits(int permits)
+    {
+        this.permits = permits > 0 ? permits : Integer.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Creates the threads of the executor.
+     *
+     * @return This instance.
+     */
+    public TaskExecutor start()
+    {
+        if (mode.equals(VIRTUAL)) {
+            executor = newVirtualExecutor();
+            isVirtual = executor != null;
+        }
+        if (executor == null) {
+            ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat(name + ":%d").setDaemon(true).build();
+            executor = Executors.newFixedThreadPool(threads, factory);
+        }
+
+        return this;
+    }
+
+    /**
+     * Creates an executor which starts a virtual thread per task.
+     *
+     * @return The executor, or null if this JVM doesn't have virtual threads.
+     */
+    private ExecutorService newVirtualExecutor()
+    {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, name + ":", 0L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            LOG.warn("Virtual threads aren't available in this JVM. " + name + " will use a pool of " + threads + " threads.");
+            return null;
+        }
+    }
+
+    /**
+     * Returns TRUE if the tasks run in virtual threads.
+     *
+     * @return TRUE if the tasks run in virtual threads.
+     */
+    public boolean isVirtual()
+    {
+        return isVirtual;
+    }
+
+    /**
+     * Runs a task.
+     *
+     * @param <T>  The type of the result.
+     * @param task The task.
+     *
+     * @return The future result of the task.
+     */
+    public <T> Future<T> submit(Callable<T> task)
+    {
+        return executor.submit(task);
+    }
+
+    /**
+     * Runs a task.
+     *
+     * @param task The task.
+     *
+     * @return The future of the task.
+     */
+    public Future<?> submit(Runnable task)
+    {
+        return executor.submit(task);
+    }
+
+    /**
+     * Runs a task which talks to a node, once a permit of the node is free.
+     *
+     * @param <T>    The type of the result.
+     * @param node   The name of the node.
+     * @param task   The task.
+     *
+     * @return The future result of the task.
+     */
+    public <T> Future<T> submit(String node, Callable<T> task)
+    {
+        return executor.submit(() -> {
+            acquire(node);
+            try {
+                return task.call();
+            }
+            finally {
+                release(node);
+            }
+        });
+    }
+
+    /**
+     * Takes a permit of a node, waiting while all of them are taken.
+     *
+     * @param node The name of the node.
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public void acquire(String node) throws InterruptedException
+    {
+        if (permits != Integer.MAX_VALUE) {
+            PERMITS.computeIfAbsent(node, (k) -> new Semaphore(permits)).acquire();
+        }
+    }
+
+    /**
+     * Returns a permit of a node.
+     *
+     * @param node The name of the node.
+     */
+    public void release(String node)
+    {
+        if (permits != Integer.MAX_VALUE) {
+            PERMITS.get(node).release();
+        }
+    }
+}
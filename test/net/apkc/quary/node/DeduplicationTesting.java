@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import net.apkc.quary.reactor.Parameters;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.valuesource.FloatFieldSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Class for testing the collapsing of near-duplicates by the Hamming distance
+ * between the SimHash digests of the documents.
+ *
+ * <p>
+ * Builds small in-memory indexes, where the score of a document is its rank,
+ * and checks which hits the DeduplicatingCollector keeps: digests up to the
+ * default distance of 3 bits apart collapse and digests 4 or more bits apart
+ * don't, the best near-duplicate is kept even if it comes later, ties keep the
+ * lowest document, and random clusters of digests give the same hits no matter
+ * how the index is split in segments. It exits with an error when a check
+ * fails, so it can be used as a regression test.
+ * Usage: DeduplicationTesting [random documents]
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class DeduplicationTesting
+{
+
+    private static final long DIGEST = 0x5DEECE66DL * 0x9E3779B97F4A7C15L;
+    private static int failures = 0;
+
+    /**
+     * Returns the digest with a run of bits flipped.
+     *
+     * @param digest The digest.
+     * @param from   The first bit to flip.
+     * @param bits   How many bits to flip.
+     *
+     * @return The new digest.
+     */
+    static long flip(long digest, int from, int bits)
+    {
+        for (int k = from; k < from + bits; k++) {
+            digest ^= 1L << k;
+        }
+
+        return digest;
+    }
+
+    /**
+     * Indexes the documents and collects them with the DeduplicatingCollector.
+     *
+     * @param digests     The digest of every document.
+     * @param ranks       The score of every document.
+     * @param segmentSize How many documents go in every segment.
+     * @param numHits     The number of hits to return.
+     * @param distance    The maximum Hamming distance.
+     *
+     * @return The documents kept, best first.
+     */
+    static int[] collect(long[] digests, float[] ranks, int segmentSize, int numHits, int distance) throws IOException
+    {
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_46, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int k = 0; k < digests.length; k++) {
+                Document doc = new Document();
+                doc.add(new NumericDocValuesField("digest", digests[k]));
+                doc.add(new FloatField("rank", ranks[k], Field.Store.NO));
+                writer.addDocument(doc);
+                if ((k + 1) % segmentSize == 0) {
+                    writer.commit();
+                }
+            }
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            DeduplicatingCollector collector = new DeduplicatingCollector(numHits, 1000, distance, null);
+            new IndexSearcher(reader).search(new FunctionQuery(new FloatFieldSource("rank")), collector);
+            ScoreDoc[] hits = collector.topDocs().scoreDocs;
+            int[] docs = new int[hits.length];
+            for (int k = 0; k < hits.length; k++) {
+                docs[k] = hits[k].doc;
+            }
+
+            return docs;
+        }
+    }
+
+    static void check(String name, int[] expected, int[] actual)
+    {
+        if (Arrays.equals(expected, actual)) {
+            System.out.println("OK: " + name);
+        }
+        else {
+            System.out.println("FAILED: " + name + ". Expected " + Arrays.toString(expected) + ", got " + Arrays.toString(actual) + ".");
+            failures++;
+        }
+    }
+
+    static void check(String name, boolean passed)
+    {
+        System.out.println((passed ? "OK: " : "FAILED: ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int distance = Parameters.newBuild().getMaxHammingDistance();
+        check("Default maximum distance is 3 bits", distance == 3);
+
+        // 1, 2 and 3 bits away from the first digest collapse into it. 4 and 5 bits away, in
+        // separate blocks so they aren't near each other, and the complement are kept.
+        check("Threshold", new int[]{0, 4, 5, 6}, collect(
+                new long[]{DIGEST, flip(DIGEST, 8, 1), flip(DIGEST, 16, 2), flip(DIGEST, 24, 3), flip(DIGEST, 32, 4), flip(DIGEST, 40, 5), ~DIGEST},
+                new float[]{10, 9, 8, 7, 6, 5, 4}, 100, 10, distance));
+
+        // Bits flipped across the block boundaries, instead of inside one block.
+        check("Threshold across blocks", new int[]{0, 2}, collect(
+                new long[]{DIGEST, DIGEST ^ (1L | 1L << 17 | 1L << 63), DIGEST ^ (1L | 1L << 17 | 1L << 33 | 1L << 63)},
+                new float[]{3, 2, 1}, 100, 10, distance));
+
+        // A distance of 0 only collapses identical digests.
+        check("Distance 0", new int[]{0, 1}, collect(
+                new long[]{DIGEST, flip(DIGEST, 0, 1), DIGEST},
+                new float[]{3, 2, 1}, 100, 10, 0));
+
+        // A better near-duplicate found later replaces the kept one, also from another segment.
+        check("Better near-duplicate later", new int[]{2, 1}, collect(
+                new long[]{DIGEST, ~DIGEST, flip(DIGEST, 60, 3)},
+                new float[]{1, 2, 5}, 1, 10, distance));
+
+        // Equal scores keep the lowest document, in one and in several segments.
+        check("Ties in one segment", new int[]{0}, collect(
+                new long[]{DIGEST, flip(DIGEST, 0, 1), flip(DIGEST, 1, 1)},
+                new float[]{1, 1, 1}, 100, 10, distance));
+        check("Ties across segments", new int[]{0}, collect(
+                new long[]{DIGEST, flip(DIGEST, 0, 1), flip(DIGEST, 1, 1)},
+                new float[]{1, 1, 1}, 1, 10, distance));
+
+        // Clusters of near-duplicates around random digests, with some ties.
+        Random random = new Random(42);
+        long[] centers = new long[documents / 20];
+        for (int k = 0; k < centers.length; k++) {
+            centers[k] = random.nextLong();
+        }
+        long[] digests = new long[documents];
+        float[] ranks = new float[documents];
+        for (int k = 0; k < documents; k++) {
+            long digest = centers[random.nextInt(centers.length)];
+            for (int b = random.nextInt(6); b > 0; b--) {
+                digest ^= 1L << random.nextInt(64);
+            }
+            digests[k] = digest;
+            ranks[k] = random.nextInt(documents / 2);
+        }
+
+        int[] single = collect(digests, ranks, documents, documents, distance);
+        check("Same hits with 1 or many segments", single, collect(digests, ranks, 7, documents, distance));
+
+        boolean apart = true;
+        boolean ordered = true;
+        for (int k = 0; k < single.length; k++) {
+            for (int j = k + 1; j < single.length; j++) {
+                apart &= Long.bitCount(digests[single[k]] ^ digests[single[j]]) > distance;
+            }
+            if (k > 0) {
+                int a = single[k - 1];
+                int b = single[k];
+                ordered &= ranks[a] > ranks[b] || (ranks[a] == ranks[b] && a < b);
+            }
+        }
+        check("Kept hits are more than " + distance + " bits apart (" + single.length + " of " + documents + ")", apart);
+        check("Kept hits are best first, then lowest document", ordered);
+
+        List<Integer> top = new ArrayList<>();
+        for (int k = 0; k < documents; k++) {
+            top.add(k);
+        }
+        top.sort((a, b) -> ranks[a] != ranks[b] ? Float.compare(ranks[b], ranks[a]) : Integer.compare(a, b));
+        check("Best document is kept first", single.length > 0 && single[0] == top.get(0));
+
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.apkc.quary.config.XMLBuilder;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionDB;
+import net.apkc.quary.docs.QuaryDocument;
+import net.apkc.quary.reactor.Gateway;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.ipc.RPC;
+
+/**
+ * Class for testing the HTTP gateway against real nodes.
+ *
+ * <p>
+ * Starts two nodes with a few documents each and the gateway in this process,
+ * and sends it HTTP requests over a socket: single and batched searches, in
+ * JSON and XML, pipelined on one connection, paged with cursors and with
+ * leases, from HTTP/1.0 and HTTP/1.1 clients, plus the requests it must
+ * reject. It also checks that a client that doesn't read its pipelined
+ * responses holds at most one thread. The responses are read and decoded by
+ * hand, so the framing of the
+ * chunked responses is checked too. It exits with an error when a check
+ * fails, so it can be used as a regression test.
+ * Usage: GatewayTesting [base port]
+ * </p>
+ *
+ * <p>
+ * The indexes and databases are written under a temporary directory, set as
+ * quary.home, so the data of an installed node is never touched.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class GatewayTesting
+{
+
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final int DOCUMENTS = 20;
+    private static int failures = 0;
+    private static int port;
+
+    /**
+     * A response read from the gateway.
+     */
+    static final class Response
+    {
+
+        String status;
+        Map<String, String> headers = new HashMap<>();
+        String body;
+        int chunks = 0;
+    }
+
+    static void index(NodeImplementation impl, IndexDefinition def, Node node, int shard)
+    {
+        impl.openWriter(CONF, def.getDefinitionID(), node);
+        for (int k = 0; k < DOCUMENTS; k++) {
+            String now = String.valueOf(System.currentTimeMillis() - k * 3600000L);
+            QuaryDocument doc = QuaryDocument.newBuild()
+                    .add("anchor", "Test " + k)
+                    .add("boost", String.valueOf(1.0 + k))
+                    .add("content", "apple banana shard" + shard + " number " + k)
+                    .add("contentraw", "raw " + k)
+                    .add("contentfilter", "filter " + k)
+                    .add("contentlength", "592")
+                    .add("digest", String.valueOf(1000L * shard + k))
+                    .add("domain", "apkc.net")
+                    .add("fetchtime", now)
+                    .add("filetype", k % 2 == 0 ? "text/plain" : "text/html")
+                    .add("host", "www.apkc.net")
+                    .add("indextime", now)
+                    .add("lang", "en")
+                    .add("lastmodified", now)
+                    .add("segment", "123456")
+                    .add("site", "www.apkc.net")
+                    .add("title", "Test Document " + shard + "/" + k)
+                    .add("url", "www.apkc.net/" + shard + "/" + k);
+            doc.setSignature("gateway-" + shard + "-" + k).setDefintionID(def.getDefinitionID());
+            impl.write(new Text(doc.getSignature()), doc, def, node, 0L);
+        }
+        impl.close(def.getDefinitionID(), node);
+        impl.areSearchersOpen(true, def.getDefinitionID(), node);
+    }
+
+    static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+
+        return line.toString("UTF-8");
+    }
+
+    static byte[] readBytes(InputStream in, int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length;) {
+            int r = in.read(bytes, read, length - read);
+            if (r == -1) {
+                throw new IOException("Response ended after " + read + " of " + length + " bytes.");
+            }
+            read += r;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Reads one response, decoding the chunks if it's chunked.
+     */
+    static Response read(InputStream in) throws IOException
+    {
+        Response response = new Response();
+        response.status = readLine(in);
+        if (response.status == null) {
+            return null;
+        }
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(response.headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                body.write(readBytes(in, size));
+                readLine(in);
+                response.chunks++;
+            }
+            readLine(in);
+        }
+        else if (response.headers.containsKey("content-length")) {
+            body.write(readBytes(in, Integer.parseInt(response.headers.get("content-length"))));
+        }
+        else {
+            byte[] buffer = new byte[8192];
+            int r;
+            while ((r = in.read(buffer)) != -1) {
+                body.write(buffer, 0, r);
+            }
+        }
+        response.body = body.toString("UTF-8");
+
+        return response;
+    }
+
+    /**
+     * Sends the requests on one connection and reads all the responses.
+     */
+    static List<Response> send(String... requests) throws IOException
+    {
+        List<Response> responses = new ArrayList<>();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            StringBuilder pipeline = new StringBuilder();
+            for (String request : requests) {
+                pipeline.append(request);
+            }
+            out.write(pipeline.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            for (int k = 0; k < requests.length; k++) {
+                Response response = read(in);
+                if (response == null) {
+                    break;
+                }
+                responses.add(response);
+            }
+        }
+
+        return responses;
+    }
+
+    static String get(String target, boolean close)
+    {
+        return "GET " + target + " HTTP/1.1\r\nHost: localhost\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n";
+    }
+
+    static String post(String target, String body)
+    {
+        return "POST " + target + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    static String value(String body, String name)
+    {
+        Matcher m = Pattern.compile("\"" + name + "\":\"?([^\",}]*)").matcher(body);
+        return m.find() ? m.group(1) : null;
+    }
+
+    static List<String> urls(String body)
+    {
+        List<String> urls = new ArrayList<>();
+        Matcher m = Pattern.compile("www\\.apkc\\.net/\\d+/\\d+").matcher(body);
+        while (m.find()) {
+            urls.add(m.group());
+        }
+
+        return urls;
+    }
+
+    static int count(String body, String s)
+    {
+        int count = 0;
+        for (int k = body.indexOf(s); k >= 0; k = body.indexOf(s, k + 1)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    static void check(String name, boolean passed)
+    {
+        System.out.println((passed ? "OK: " : "FAILED: ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    static <T> void check(String name, T expected, T actual)
+    {
+        if (expected == null ? actual == null : expected.equals(actual)) {
+            System.out.println("OK: " + name);
+        }
+        else {
+            System.out.println("FAILED: " + name + ". Expected " + expected + ", got " + actual + ".");
+            failures++;
+        }
+    }
+
+    static void testSearches() throws IOException
+    {
+        List<Response> responses = send(
+                get("/search?q=apple&end=5&format=json&fields=url", false),
+                get("/search?q=apple&end=5&fields=url", false),
+                post("/msearch?format=json&fields=url", "q=apple&end=3\nq=banana&end=4&filetype=text/html\n"),
+                get("/search?q=shard1&end=50&format=json&fields=url", true));
+        check("Pipelined requests get all their responses", 4, responses.size());
+        if (responses.size() < 4) {
+            return;
+        }
+
+        Response json = responses.get(0);
+        check("JSON status", "HTTP/1.1 200 OK", json.status);
+        check("JSON content type", true, json.headers.get("content-type").startsWith("application/json"));
+        check("JSON response is chunked", "chunked", json.headers.get("transfer-encoding"));
+        check("JSON total hits of both shards", String.valueOf(DOCUMENTS * 2), value(json.body, "totalhits"));
+        check("JSON page size", 5, urls(json.body).size());
+
+        Response xml = responses.get(1);
+        check("XML content type", true, xml.headers.get("content-type").startsWith("application/xml"));
+        check("XML total hits", true, xml.body.contains("<totalhits>" + DOCUMENTS * 2 + "</totalhits>"));
+        check("XML and JSON have the same hits", urls(json.body), urls(xml.body));
+
+        Response batch = responses.get(2);
+        check("Batch has one result set per line", 2, count(batch.body, "\"totalhits\""));
+        check("Batch applies each line", 3 + 4, urls(batch.body).size());
+        check("Batch applies the filters of its line", true, batch.body.contains("\"totalhits\":" + DOCUMENTS));
+
+        Response last = responses.get(3);
+        check("Responses come back in order", DOCUMENTS, urls(last.body).size());
+        check("Connection close is honoured", "close", last.headers.get("connection"));
+    }
+
+    static void testPaging() throws IOException
+    {
+        Response first = send(get("/search?q=apple&end=5&format=json&fields=url&lease=1", true)).get(0);
+        String cursor = value(first.body, "cursor");
+        String lease = value(first.body, "lease");
+        check("Cursor is returned", cursor != null);
+        check("Lease is returned", lease != null && !lease.isEmpty());
+
+        Response offsets = send(get("/search?q=apple&start=5&end=10&format=json&fields=url", true)).get(0);
+        Response after = send(get("/search?q=apple&end=5&format=json&fields=url&after=" + cursor + "&leaseid=" + lease, true)).get(0);
+        check("Cursor page is the offset page", urls(offsets.body), urls(after.body));
+        check("Lease is kept", lease, value(after.body, "lease"));
+
+        // Walk all the hits with cursors.
+        List<String> seen = new ArrayList<>();
+        cursor = null;
+        for (int k = 0; k < DOCUMENTS * 2 && (k == 0 || cursor != null); k++) {
+            Response page = send(get("/search?q=apple&end=7&format=json&fields=url" + (cursor != null ? "&after=" + cursor : ""), true)).get(0);
+            for (String url : urls(page.body)) {
+                if (seen.contains(url)) {
+                    check("Hit seen only once: " + url, false);
+                }
+                seen.add(url);
+            }
+            cursor = value(page.body, "cursor");
+        }
+        check("Cursors walk the hits of both shards", DOCUMENTS * 2, seen.size());
+    }
+
+    /**
+     * Returns how many threads are waiting for a client to read a response.
+     */
+    static int blockedRenders()
+    {
+        int blocked = 0;
+        for (StackTraceElement[] stack : Thread.getAllStackTraces().values()) {
+            for (StackTraceElement frame : stack) {
+                if (frame.getClassName().endsWith("Gateway$Response") && frame.getMethodName().equals("offer")) {
+                    blocked++;
+                    break;
+                }
+            }
+        }
+
+        return blocked;
+    }
+
+    static void testSlowClient() throws Exception
+    {
+        // Large pipelined responses to a client that doesn't read them yet.
+        StringBuilder lines = new StringBuilder();
+        for (int k = 0; k < 20; k++) {
+            lines.append("q=apple&end=50\n");
+        }
+        String[] requests = new String[8];
+        for (int k = 0; k < requests.length; k++) {
+            requests[k] = post("/msearch?format=json", lines.toString());
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            for (String request : requests) {
+                out.write(request.getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            Thread.sleep(1000);
+            int blocked = blockedRenders();
+            check("At most one render waits for a slow client (" + blocked + ")", blocked <= 1);
+
+            InputStream in = socket.getInputStream();
+            int complete = 0;
+            for (String request : requests) {
+                Response response = read(in);
+                if (response != null && count(response.body, "\"totalhits\"") == 20) {
+                    complete++;
+                }
+            }
+            check("Slow client gets all its responses", requests.length, complete);
+        }
+    }
+
+    static void testProtocol() throws IOException
+    {
+        Response old = send("GET /search?q=apple&end=50&format=json HTTP/1.0\r\n\r\n").get(0);
+        check("HTTP/1.0 status", "HTTP/1.1 200 OK", old.status);
+        check("HTTP/1.0 response isn't chunked", null, old.headers.get("transfer-encoding"));
+        check("HTTP/1.0 response is read until the connection closes", String.valueOf(DOCUMENTS * 2), value(old.body, "totalhits"));
+
+        Response large = send(get("/search?q=apple&end=50&format=json", true)).get(0);
+        check("Large response is complete", DOCUMENTS * 2, count(large.body, "\"url\""));
+        check("Large response is split in chunks (" + large.body.length() + " bytes, " + large.chunks + " chunks)", large.chunks >= 2);
+
+        List<Response> errors = send(
+                get("/nothing?q=apple", false),
+                get("/search", false),
+                "DELETE /search?q=apple HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                get("/search?q=apple&def=999", false),
+                "POST /search HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nq=app\r\n0\r\n\r\n");
+        String[] expected = {"404", "400", "405", "404", "411"};
+        for (int k = 0; k < expected.length; k++) {
+            check("Error " + expected[k], true, k < errors.size() && errors.get(k).status.contains(" " + expected[k] + " "));
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        // Before any path is read.
+        File home = Files.createTempDirectory("quary").toFile();
+        new File(home, "data/index").mkdirs();
+        System.setProperty("quary.home", home.getAbsolutePath());
+
+        int base = args.length > 0 ? Integer.parseInt(args[0]) : 15100;
+        port = base + 50;
+        IndexDefinition def = XMLBuilder.parseDefinitionFile(GatewayTesting.class.getResourceAsStream("/resources/definitions/TestDefinition.xml"));
+        IndexDefinitionDB.getInstance().addDefinition(def.getDefinitionID(), def);
+
+        NodeImplementation impl = new NodeImplementation();
+        for (int s = 0; s < 2; s++) {
+            NodeHandler.getInstance().addNode(Node.newBuild().setIpAddress("127.0.0.1").setPort(String.valueOf(base + s)).setSearchPort(String.valueOf(base + 10 + s)));
+        }
+        Node[] nodes = NodeHandler.getInstance().getNodes();
+        for (int s = 0; s < nodes.length; s++) {
+            index(impl, def, nodes[s], s);
+            new RPC.Builder(CONF)
+                    .setProtocol(NodeSearchInterface.class)
+                    .setInstance(impl)
+                    .setBindAddress("127.0.0.1")
+                    .setPort(nodes[s].getSearchPort())
+                    .setNumHandlers(4)
+                    .build()
+                    .start();
+        }
+
+        Thread gateway = new Thread(() -> {
+            try {
+                Gateway.newBuild().configure(port).startGateway();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        gateway.setDaemon(true);
+        gateway.start();
+        Thread.sleep(500);
+
+        testSearches();
+        testPaging();
+        testProtocol();
+        testSlowClient();
+
+        for (Node node : nodes) {
+            impl.cleanIndex(def.getDefinitionID(), node);
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.util.HashMap;
+import net.apkc.quary.util.Rank;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Class for testing the boost with gravity of an index with documents written
+ * before and after "indextime" and "boost" had doc values.
+ *
+ * <p>
+ * Each legacy document has a new twin with the same index time and boost. Both
+ * must get the value of Rank.calculateBoostWithGravity(), in their own segments
+ * and once they are merged into one.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class GravityTesting
+{
+
+    private static final long NOW = System.currentTimeMillis();
+    private static final long[] AGES = {0L, 3600000L, 86400000L, 30L * 86400000L, 365L * 86400000L};
+    private static final float[] BOOSTS = {4.0f, 2.5f, 1.0f, 1.0f, 0.5f};
+    private static int failures = 0;
+
+    static void check(String name, boolean expected, boolean actual)
+    {
+        if (expected != actual) {
+            failures++;
+            System.out.println("FAILED: " + name);
+        }
+    }
+
+    /**
+     * A document as it was written before the doc values, with the index time
+     * and the boost only stored as strings.
+     */
+    static Document legacyDocument(int k)
+    {
+        Document doc = new Document();
+        doc.add(new StringField("id", "legacy" + k, Field.Store.YES));
+        doc.add(new TextField("content", "apple document", Field.Store.NO));
+        doc.add(new StoredField("indextime", String.valueOf(NOW - AGES[k])));
+        doc.add(new StoredField("boost", String.valueOf(BOOSTS[k])));
+
+        return doc;
+    }
+
+    /**
+     * A document as it's written now, with numeric doc values.
+     */
+    static Document newDocument(int k)
+    {
+        Document doc = new Document();
+        doc.add(new StringField("id", "new" + k, Field.Store.YES));
+        doc.add(new TextField("content", "apple document", Field.Store.NO));
+        doc.add(new StoredField("indextime", NOW - AGES[k]));
+        doc.add(new NumericDocValuesField("indextime", NOW - AGES[k]));
+        doc.add(new StoredField("boost", BOOSTS[k]));
+        doc.add(new NumericDocValuesField("boost", Float.floatToRawIntBits(BOOSTS[k])));
+
+        return doc;
+    }
+
+    /**
+     * Checks the value of every document against the one computed by Rank.
+     */
+    static void checkValues(String name, DirectoryReader reader) throws Exception
+    {
+        GravityValueSource source = new GravityValueSource(NOW);
+        int checked = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            FunctionValues values = source.getValues(new HashMap<>(), context);
+            for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                String id = context.reader().document(doc).get("id");
+                int k = Integer.parseInt(id.replaceAll("[a-z]", ""));
+                float expected = (float) Rank.calculateBoostWithGravity(BOOSTS[k], AGES[k]);
+                check(name + ": " + id + " = " + expected + " (was " + values.floatVal(doc) + ")", true, Math.abs(values.floatVal(doc) - expected) < 1e-5f);
+                checked++;
+            }
+        }
+        check(name + ": every document checked", true, checked == 2 * AGES.length);
+    }
+
+    /**
+     * Checks that a fresh legacy document outranks an old new one.
+     */
+    static void checkRanking(String name, DirectoryReader reader) throws Exception
+    {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopDocs top = searcher.search(new CustomScoreQuery(new TermQuery(new Term("content", "apple")), new FunctionQuery(new GravityValueSource(NOW))), 2 * AGES.length);
+        String first = searcher.doc(top.scoreDocs[0].doc).get("id");
+        String last = searcher.doc(top.scoreDocs[top.scoreDocs.length - 1].doc).get("id");
+        check(name + ": the freshest documents first (was " + first + ")", true, first.endsWith("0"));
+        check(name + ": the oldest documents last (was " + last + ")", true, last.endsWith(String.valueOf(AGES.length - 1)));
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_46, new StandardAnalyzer(Version.LUCENE_46));
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            // One segment written before the doc values, and one after.
+            for (int k = 0; k < AGES.length; k++) {
+                writer.addDocument(legacyDocument(k));
+            }
+            writer.commit();
+            for (int k = 0; k < AGES.length; k++) {
+                writer.addDocument(newDocument(k));
+            }
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                check("Two segments", true, reader.leaves().size() == 2);
+                checkValues("Separate segments", reader);
+                checkRanking("Separate segments", reader);
+            }
+
+            // Merged, the legacy documents are in a segment with doc values for the fields.
+            writer.forceMerge(1);
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                check("One segment", true, reader.leaves().size() == 1);
+                checkValues("Merged segment", reader);
+                checkRanking("Merged segment", reader);
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+import net.apkc.quary.config.XMLBuilder;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.definitions.index.IndexDefinitionDB;
+import net.apkc.quary.docs.QuaryDocument;
+import net.apkc.quary.reactor.Reactor;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.ipc.RPC;
+
+/**
+ * Class for measuring the bytes allocated by the ingest path.
+ *
+ * <p>
+ * The documents go through the same path they take in production. They are
+ * sent to a Reactor over a socket, and the Reactor writes them to a node served
+ * over RPC, both in this JVM. It prints the bytes allocated per document by all
+ * the threads, and the time the node spends opening, writing and closing its
+ * writer. It exits with an error when a document allocates more than the
+ * budget, or when the writer is opened for every document, so it can be used
+ * as a regression test. The default budget is the allocation recorded for the
+ * current ingest path plus a margin, a budget of 0 turns the check off.
+ * Usage: IngestAllocationTesting [documents] [budget in bytes] [base port]
+ * </p>
+ *
+ * <p>
+ * The definitions DB and the indexes are written under a temporary directory,
+ * set as quary.home, so the data of an installed node is never touched.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class IngestAllocationTesting
+{
+
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    /**
+     * Bytes allocated by all the threads to ingest one document, recorded with
+     * 1000 documents: 243524. Plus 25%.
+     */
+    private static final long DEFAULT_BUDGET = 305000L;
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static int failures = 0;
+
+    /**
+     * A node that counts what its writer does.
+     */
+    static class MeasuredNode extends NodeImplementation
+    {
+
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong opened = new AtomicLong();
+        final AtomicLong closed = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public int openWriter(Configuration conf, String definitionID, Node node)
+        {
+            long start = allocatedBytes(), time = System.nanoTime();
+            int result = super.openWriter(conf, definitionID, node);
+            measure(start, time);
+            opened.incrementAndGet();
+
+            return result;
+        }
+
+        @Override
+        public void write(Text key, QuaryDocument doc, IndexDefinition def, Node node, long elapsedTime)
+        {
+            long start = allocatedBytes(), time = System.nanoTime();
+            super.write(key, doc, def, node, elapsedTime);
+            measure(start, time);
+            written.incrementAndGet();
+        }
+
+        @Override
+        public int close(String definitionID, Node node)
+        {
+            long start = allocatedBytes(), time = System.nanoTime();
+            int result = super.close(definitionID, node);
+            measure(start, time);
+            closed.incrementAndGet();
+
+            return result;
+        }
+
+        void measure(long start, long time)
+        {
+            nanos.addAndGet(System.nanoTime() - time);
+            bytes.addAndGet(allocatedBytes() - start);
+        }
+    }
+
+    static void check(String name, boolean expected, boolean actual)
+    {
+        if (expected != actual) {
+            failures++;
+            System.out.println("FAILED: " + name);
+        }
+    }
+
+    static long allocatedBytes()
+    {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the bytes allocated by all the live threads.
+     */
+    static long allThreadsAllocatedBytes()
+    {
+        long total = 0L;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(bytes, 0L);
+        }
+
+        return total;
+    }
+
+    static String makeXML(int k)
+    {
+        long now = System.currentTimeMillis() - k * 60000L;
+        StringBuilder buffer = new StringBuilder();
+        buffer
+                .append("<root definitionID=\"000\" id=\"").append(k + 1).append("\">")
+                .append("<anchor>Test ").append(k).append("</anchor>")
+                .append("<boost>1.0</boost>")
+                .append("<content>apple banana cherry document number ").append(k).append("</content>")
+                .append("<contentraw>raw ").append(k).append("</contentraw>")
+                .append("<contentfilter>filter ").append(k).append("</contentfilter>")
+                .append("<contentlength>592</contentlength>")
+                .append("<digest>").append(k).append("</digest>")
+                .append("<domain>apkc.net</domain>")
+                .append("<fetchtime>").append(now).append("</fetchtime>")
+                .append("<filetype>text/plain</filetype>")
+                .append("<host>www.apkc.net</host>")
+                .append("<indextime>").append(now).append("</indextime>")
+                .append("<lang>en</lang>")
+                .append("<lastmodified>").append(now).append("</lastmodified>")
+                .append("<segment>123456</segment>")
+                .append("<site>www.apkc.net</site>")
+                .append("<title>Test Document ").append(k).append("</title>")
+                .append("<url>www.apkc.net/").append(k).append("</url>")
+                .append("</root>");
+
+        return buffer.toString();
+    }
+
+    /**
+     * Sends the documents to the Reactor, and waits until the node has written
+     * all of them and closed its writer.
+     *
+     * @return The bytes allocated per document by all the threads.
+     */
+    static long send(MeasuredNode impl, int reactorPort, String[] xml) throws Exception
+    {
+        long written = impl.written.get() + xml.length;
+        long closed = impl.closed.get();
+        long start = allThreadsAllocatedBytes();
+        try (Socket client = new Socket()) {
+            client.connect(new InetSocketAddress("127.0.0.1", reactorPort));
+            OutputStream out = client.getOutputStream();
+            for (String doc : xml) {
+                out.write((doc + "\t").getBytes("UTF-8"));
+            }
+            out.flush();
+        }
+
+        long deadline = System.currentTimeMillis() + 120000L;
+        while ((impl.written.get() < written || impl.closed.get() == closed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        check("All documents written", true, impl.written.get() == written);
+        check("Writer closed when idle", true, impl.closed.get() > closed);
+
+        return (allThreadsAllocatedBytes() - start) / xml.length;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        // Before any path is read.
+        File home = Files.createTempDirectory("quary").toFile();
+        new File(home, "data/index").mkdirs();
+        System.setProperty("quary.home", home.getAbsolutePath());
+
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long budget = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_BUDGET;
+        int base = args.length > 2 ? Integer.parseInt(args[2]) : 15200;
+        IndexDefinition def = XMLBuilder.parseDefinitionFile(IngestAllocationTesting.class.getResourceAsStream("/resources/definitions/TestDefinition.xml"));
+        IndexDefinitionDB.getInstance().addDefinition(def.getDefinitionID(), def);
+
+        MeasuredNode impl = new MeasuredNode();
+        NodeHandler.getInstance().addNode(Node.newBuild().setIpAddress("127.0.0.1").setPort(String.valueOf(base)).setSearchPort(String.valueOf(base + 1)));
+        Node node = NodeHandler.getInstance().getNode();
+        new RPC.Builder(CONF)
+                .setProtocol(NodeInterface.class)
+                .setInstance(impl)
+                .setBindAddress("127.0.0.1")
+                .setPort(node.getPort())
+                .setNumHandlers(4)
+                .build()
+                .start();
+
+        Thread reactor = new Thread(() -> {
+            try {
+                Reactor.newBuild().configure(base + 2).startReactor();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        reactor.setDaemon(true);
+        reactor.start();
+        Thread.sleep(500);
+
+        String[] xml = new String[documents];
+        for (int k = 0; k < documents; k++) {
+            xml[k] = makeXML(k);
+        }
+
+        // Parsing alone. The first round warms up the JIT.
+        for (int k = 0; k < documents; k++) {
+            XMLBuilder.parseExternalDocumentToQuaryDocument(xml[k]);
+        }
+        long start = allocatedBytes();
+        for (int k = 0; k < documents; k++) {
+            XMLBuilder.parseExternalDocumentToQuaryDocument(xml[k]);
+        }
+        System.out.println("Bytes per parsed document: " + (allocatedBytes() - start) / documents);
+
+        // The whole path. The first round warms up the JIT, the second replaces the same documents.
+        send(impl, base + 2, xml);
+        long opened = impl.opened.get();
+        long bytes = impl.bytes.get();
+        long nanos = impl.nanos.get();
+        long perDocument = send(impl, base + 2, xml);
+        opened = impl.opened.get() - opened;
+        System.out.println("Bytes per ingested document: " + perDocument + (budget > 0 ? " (budget " + budget + ")" : ""));
+        System.out.println("Bytes per document in the node: " + (impl.bytes.get() - bytes) / documents);
+        System.out.println("Microseconds per document in the node: " + (impl.nanos.get() - nanos) / 1000 / documents);
+        System.out.println("Writers opened: " + opened);
+
+        int interval = Math.max(CONF.getInt("node.write.commit.interval", 1000), 1);
+        check("Writer kept open across documents", true, opened <= documents / interval + 1);
+        if (budget > 0 && perDocument > budget) {
+            failures++;
+            System.out.println("FAILED: Ingesting a document allocates " + perDocument + " bytes, more than " + budget + ".");
+        }
+
+        impl.cleanIndex(def.getDefinitionID(), node);
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
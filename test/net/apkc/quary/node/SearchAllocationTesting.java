@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import net.apkc.quary.config.XMLBuilder;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.docs.QuaryDocument;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.Searcher;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Class for measuring the bytes allocated by the search path of a node.
+ *
+ * <p>
+ * Indexes a few thousand documents into a throwaway index, and then prints the
+ * bytes allocated by the searching thread per searcher acquired and per query.
+ * Every query is different, so none of them is answered from the caches.
+ * The numbers are compared with the ones recorded for the current search path,
+ * and it exits with an error when a query allocates more than the budget, so it
+ * can be used as a regression test. A budget of 0 turns the check off.
+ * Usage: SearchAllocationTesting [documents] [queries] [budget in bytes]
+ * </p>
+ *
+ * <p>
+ * The index is written under a temporary directory, set as quary.home, so the
+ * data of an installed node is never touched.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class SearchAllocationTesting
+{
+
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    /** Bytes allocated per searcher acquired, recorded with the default arguments and log4j configuration. */
+    private static final long BASELINE_SEARCHER = 0L;
+    /** Bytes allocated per query, recorded with the default arguments and log4j configuration. */
+    private static final long BASELINE_QUERY = 1056322L;
+    /** The recorded bytes per query, plus 25%. */
+    private static final long DEFAULT_BUDGET = 1320000L;
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static long allocatedBytes()
+    {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void index(NodeImplementation impl, IndexDefinition def, Node node, int documents)
+    {
+        impl.openWriter(CONF, def.getDefinitionID(), node);
+        for (int k = 0; k < documents; k++) {
+            String now = String.valueOf(System.currentTimeMillis() - k * 60000L);
+            QuaryDocument doc = QuaryDocument.newBuild()
+                    .add("anchor", "Test " + k)
+                    .add("boost", "1.0")
+                    .add("content", "apple banana cherry document number " + k + " term" + (k % 100))
+                    .add("contentraw", "raw " + k)
+                    .add("contentfilter", "filter " + k)
+                    .add("contentlength", "592")
+                    .add("digest", String.valueOf(k))
+                    .add("domain", "apkc.net")
+                    .add("fetchtime", now)
+                    .add("filetype", k % 2 == 0 ? "text/plain" : "text/html")
+                    .add("host", "www.apkc.net")
+                    .add("indextime", now)
+                    .add("lang", "en")
+                    .add("lastmodified", now)
+                    .add("segment", "123456")
+                    .add("site", "www.apkc.net")
+                    .add("title", "Test Document " + k)
+                    .add("url", "www.apkc.net/" + k);
+            doc.setSignature("allocation-" + k).setDefintionID(def.getDefinitionID());
+            impl.write(new Text(doc.getSignature()), doc, def, node, 0L);
+        }
+        impl.close(def.getDefinitionID(), node);
+    }
+
+    static void search(NodeImplementation impl, IndexDefinition def, Node node, int from, int queries) throws Exception
+    {
+        for (int k = from; k < from + queries; k++) {
+            Parameters params = Parameters.newBuild().setQueryString("apple term" + (k % 100) + " " + k).setEndOffset("10");
+            params.setFilters();
+            impl.search(CONF, def, node, params);
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        // Before any path is read.
+        File home = Files.createTempDirectory("quary").toFile();
+        new File(home, "data/index").mkdirs();
+        System.setProperty("quary.home", home.getAbsolutePath());
+
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long budget = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_BUDGET;
+        IndexDefinition def = XMLBuilder.parseDefinitionFile(SearchAllocationTesting.class.getResourceAsStream("/resources/definitions/TestDefinition.xml"));
+        Node node = Node.newBuild().setIpAddress("127.0.0.1").setNodeID("allocation" + System.nanoTime());
+        NodeImplementation impl = new NodeImplementation();
+        IndexState index = IndexRegistry.getInstance().getIndex(def.getDefinitionID(), node);
+
+        index(impl, def, node, documents);
+        impl.areSearchersOpen(true, def.getDefinitionID(), node);
+
+        // Acquiring and releasing a searcher.
+        for (int k = 0; k < queries; k++) {
+            index.release(index.getOpenSearcher());
+        }
+        long start = allocatedBytes();
+        for (int k = 0; k < queries; k++) {
+            Searcher searcher = index.getOpenSearcher();
+            index.release(searcher);
+        }
+        long perSearcher = (allocatedBytes() - start) / queries;
+        System.out.println("Bytes per searcher: " + perSearcher + " (recorded " + BASELINE_SEARCHER + ")");
+
+        // Whole queries. The first round warms up the JIT and the analysis caches.
+        search(impl, def, node, 0, queries);
+        start = allocatedBytes();
+        long time = System.nanoTime();
+        search(impl, def, node, queries, queries);
+        long perQuery = (allocatedBytes() - start) / queries;
+        System.out.println("Bytes per query: " + perQuery + " (recorded " + BASELINE_QUERY + ")");
+        System.out.println("Microseconds per query: " + (System.nanoTime() - time) / 1000 / queries);
+
+        impl.cleanIndex(def.getDefinitionID(), node);
+        if (budget > 0 && perQuery > budget) {
+            System.out.println("FAILED: A query allocates " + perQuery + " bytes, more than " + budget + ".");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.apkc.quary.config.XMLBuilder;
+import net.apkc.quary.definitions.index.IndexDefinition;
+import net.apkc.quary.docs.QuaryDocument;
+import net.apkc.quary.reactor.Parameters;
+import net.apkc.quary.reactor.ResultSet;
+import net.apkc.quary.util.QuaryConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Class for testing the search path of a node.
+ *
+ * <p>
+ * Indexes a few hundred documents into a throwaway index, and checks the
+ * filters, the deduplication, the paging by offsets and by cursors, the result
+ * cache, the prefetching of the next page, the leases and the batches of
+ * searches with different leases. The coalescing of identical searches and its
+ * deadlines are checked against the SearchCoalescer directly, with searches
+ * that take a known time. It exits with an error when a check fails, so it
+ * can be used as a regression test.
+ * Usage: SearchTesting
+ * </p>
+ *
+ * <p>
+ * The index is written under a temporary directory, set as quary.home, so the
+ * data of an installed node is never touched.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class SearchTesting
+{
+
+    private static final Configuration CONF = new QuaryConfiguration().create();
+    private static final int DOCUMENTS = 200;
+    private static int failures = 0;
+    private static int queries = 0;
+
+    static void index(NodeImplementation impl, IndexDefinition def, Node node, int from, int to)
+    {
+        impl.openWriter(CONF, def.getDefinitionID(), node);
+        for (int k = from; k < to; k++) {
+            String now = String.valueOf(System.currentTimeMillis() - k * 60000L);
+            QuaryDocument doc = QuaryDocument.newBuild()
+                    .add("anchor", "Test " + k)
+                    .add("boost", "1.0")
+                    .add("content", "apple banana document number " + k + " term" + (k % 10))
+                    .add("contentraw", "raw " + k)
+                    .add("contentfilter", "filter " + k)
+                    .add("contentlength", "592")
+                    // Every 4 documents are near-duplicates, 1 bit apart.
+                    .add("digest", String.valueOf(((k / 4) * 0x9E3779B97F4A7C15L) ^ (k % 4 == 3 ? 1L : 0L)))
+                    .add("domain", "apkc.net")
+                    .add("fetchtime", now)
+                    .add("filetype", k % 2 == 0 ? "text/plain" : "text/html")
+                    .add("host", "www.apkc.net")
+                    .add("indextime", now)
+                    .add("lang", "en")
+                    .add("lastmodified", now)
+                    .add("segment", "123456")
+                    .add("site", "www.apkc.net")
+                    .add("title", "Test Document " + k)
+                    .add("url", "www.apkc.net/" + k);
+            doc.setSignature("search-" + k).setDefintionID(def.getDefinitionID());
+            impl.write(new Text(doc.getSignature()), doc, def, node, 0L);
+        }
+        impl.close(def.getDefinitionID(), node);
+        impl.areSearchersOpen(true, def.getDefinitionID(), node);
+    }
+
+    /**
+     * Returns a new search. Every search gets a different query string, so it
+     * isn't answered from the caches filled by the previous checks.
+     */
+    static Parameters query(int start, int end) throws Exception
+    {
+        return Parameters.newBuild()
+                .setQueryString("apple -nothing" + (queries++))
+                .setStartOffset(String.valueOf(start))
+                .setEndOffset(String.valueOf(end));
+    }
+
+    static List<String> urls(ResultSet results)
+    {
+        List<String> urls = new ArrayList<>();
+        for (ResultSet.Hit hit : results.getHits()) {
+            urls.add(hit.getElement("url"));
+        }
+
+        return urls;
+    }
+
+    static long stat(String xml, String element)
+    {
+        Matcher m = Pattern.compile("<" + element + ">(\\d+)</" + element + ">").matcher(xml);
+        return m.find() ? Long.parseLong(m.group(1)) : -1L;
+    }
+
+    static void check(String name, boolean passed)
+    {
+        System.out.println((passed ? "OK: " : "FAILED: ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    static <T> void check(String name, T expected, T actual)
+    {
+        if (expected == null ? actual == null : expected.equals(actual)) {
+            System.out.println("OK: " + name);
+        }
+        else {
+            System.out.println("FAILED: " + name + ". Expected " + expected + ", got " + actual + ".");
+            failures++;
+        }
+    }
+
+    static void testFilters(NodeImplementation impl, IndexDefinition def, Node node) throws Exception
+    {
+        ResultSet all = impl.search(CONF, def, node, query(0, 10).setFilters());
+        check("All documents match", DOCUMENTS, all.getTotalHits());
+
+        ResultSet html = impl.search(CONF, def, node, query(0, DOCUMENTS).setFileRangeUnit("text/html").setReturnFields("filetype").setFilters());
+        boolean onlyHTML = true;
+        for (ResultSet.Hit hit : html.getHits()) {
+            onlyHTML &= "text/html".equals(hit.getElement("filetype"));
+        }
+        check("Filetype filter", DOCUMENTS / 2, html.getTotalHits());
+        check("Filetype filter returns only its filetype", onlyHTML);
+
+        ResultSet none = impl.search(CONF, def, node, query(0, 10).setLanguageRangeUnit("de").setFilters());
+        check("Language filter without matches", 0, none.getTotalHits());
+
+        ResultSet deduplicated = impl.search(CONF, def, node, query(0, DOCUMENTS).setUseDeduplication("1").setFilters());
+        check("Near-duplicates are collapsed", DOCUMENTS / 4, deduplicated.getHits().size());
+        Set<Long> groups = new HashSet<>();
+        for (ResultSet.Hit hit : impl.search(CONF, def, node, query(0, DOCUMENTS).setUseDeduplication("1").setReturnFields("url").setFilters()).getHits()) {
+            groups.add(Long.parseLong(hit.getElement("url").substring("www.apkc.net/".length())) / 4);
+        }
+        check("One document of every group of near-duplicates", DOCUMENTS / 4, groups.size());
+    }
+
+    static void testPaging(NodeImplementation impl, IndexDefinition def, Node node) throws Exception
+    {
+        ResultSet first = impl.search(CONF, def, node, query(0, 10).setFilters());
+        ResultSet second = impl.search(CONF, def, node, query(10, 20).setFilters());
+        ResultSet after = impl.search(CONF, def, node, query(0, 10).setSearchAfter(first.getCursor()).setFilters());
+        check("Cursor page is the offset page", urls(second), urls(after));
+
+        // Walk all the hits with cursors.
+        Set<String> seen = new HashSet<>();
+        boolean repeated = false;
+        int pages = 0;
+        String cursor = null;
+        do {
+            ResultSet page = impl.search(CONF, def, node, query(0, 30).setSearchAfter(cursor).setFilters());
+            for (String url : urls(page)) {
+                repeated |= !seen.add(url);
+            }
+            cursor = page.getCursor();
+            pages++;
+        }
+        while (cursor != null && pages < DOCUMENTS);
+        check("Cursors walk all the hits", DOCUMENTS, seen.size());
+        check("Cursors never repeat a hit", !repeated);
+    }
+
+    static void testCaches(NodeImplementation impl, IndexDefinition def, Node node) throws Exception
+    {
+        Parameters params = query(0, 10).setFilters();
+        ResultSet first = impl.search(CONF, def, node, params);
+        long hits = stat(ResultCache.getInstance().getStats(), "hits");
+        ResultSet second = impl.search(CONF, def, node, params.duplicate());
+        check("Repeated search is answered from the result cache", hits + 1, stat(ResultCache.getInstance().getStats(), "hits"));
+        check("Cached search has the same hits", urls(first), urls(second));
+
+        // The next page is fetched in the background.
+        Parameters prefetch = query(0, 10).setPrefetch("1").setFilters();
+        impl.search(CONF, def, node, prefetch);
+        for (int k = 0; k < 100 && stat(Prefetcher.getInstance().getStats(), "pending") > 0; k++) {
+            Thread.sleep(20);
+        }
+        hits = stat(Prefetcher.getInstance().getStats(), "hits");
+        ResultSet next = impl.search(CONF, def, node, prefetch.duplicate().setPrefetch("0").setStartOffset("10").setEndOffset("20"));
+        check("Next page is prefetched", hits + 1, stat(Prefetcher.getInstance().getStats(), "hits"));
+        check("Prefetched page has 10 hits", 10, next.getHits().size());
+    }
+
+    static void testLeases(NodeImplementation impl, IndexDefinition def, Node node) throws Exception
+    {
+        ResultSet leased = impl.search(CONF, def, node, query(0, 10).setOpenLease("1").setFilters());
+        check("Lease is opened", !leased.getLeaseID().isEmpty());
+
+        index(impl, def, node, DOCUMENTS, DOCUMENTS + 10);
+        ResultSet pinned = impl.search(CONF, def, node, query(0, 10).setLeaseID(leased.getLeaseID()).setFilters());
+        ResultSet latest = impl.search(CONF, def, node, query(0, 10).setFilters());
+        check("Lease keeps its reader", DOCUMENTS, pinned.getTotalHits());
+        check("Lease is returned with the result", leased.getLeaseID(), pinned.getLeaseID());
+        check("Search without lease sees the new documents", DOCUMENTS + 10, latest.getTotalHits());
+        check("Search without lease has no lease", "", latest.getLeaseID());
+
+        ResultSet expired = impl.search(CONF, def, node, query(0, 10).setLeaseID("expired").setFilters());
+        check("Expired lease opens a new one", !expired.getLeaseID().isEmpty() && !expired.getLeaseID().equals("expired"));
+
+        // A batch with searches without lease, with a new lease and with the old lease.
+        ResultSet[] batch = impl.searchBatch(CONF, def, node, new Parameters[]{
+            query(0, 10).setFilters(),
+            query(0, 10).setOpenLease("1").setFilters(),
+            query(0, 10).setLeaseID(leased.getLeaseID()).setFilters(),
+            query(0, 10).setOpenLease("1").setFilters()
+        });
+        check("Batch search without lease has no lease", "", batch[0].getLeaseID());
+        check("Batch search opens a new lease", !batch[1].getLeaseID().isEmpty() && !batch[1].getLeaseID().equals(leased.getLeaseID()));
+        check("Batch search with a lease keeps it", leased.getLeaseID(), batch[2].getLeaseID());
+        check("Batch search with a lease keeps its reader", DOCUMENTS, batch[2].getTotalHits());
+        check("Batch searches opening a lease share it", batch[1].getLeaseID(), batch[3].getLeaseID());
+    }
+
+    static void testCoalescing() throws Exception
+    {
+        SearchCoalescer coalescer = SearchCoalescer.getInstance();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        SearchCoalescer.Search slow = () -> {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                Thread.sleep(500);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ResultSet.newBuild().setTotalHits(7);
+        };
+
+        List<ResultSet> results = new ArrayList<>();
+        Thread leader = new Thread(() -> {
+            try {
+                results.add(coalescer.execute("coalescing-test", 0L, slow));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        leader.start();
+        started.await();
+
+        long timeouts = stat(coalescer.getStats(), "timeouts");
+        ResultSet late = coalescer.execute("coalescing-test", System.currentTimeMillis() + 50, slow);
+        check("Waiter past its deadline gets a partial result", true, late.isPartial());
+        check("Waiter past its deadline is counted", timeouts + 1, stat(coalescer.getStats(), "timeouts"));
+
+        ResultSet waited = coalescer.execute("coalescing-test", 0L, slow);
+        leader.join();
+        check("Identical search is executed once", 1, runs.get());
+        check("Waiter gets the result of the search in flight", 7, waited.getTotalHits());
+        check("Waiter gets its own copy", results.get(0) != waited);
+
+        // A partial result belongs to the deadline of its search, so waiters search again.
+        CountDownLatch partialStarted = new CountDownLatch(1);
+        Thread partialLeader = new Thread(() -> {
+            try {
+                coalescer.execute("coalescing-partial", 0L, () -> {
+                    partialStarted.countDown();
+                    try {
+                        Thread.sleep(300);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return ResultSet.newBuild().setPartial(true);
+                });
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        partialLeader.start();
+        partialStarted.await();
+        long partials = stat(coalescer.getStats(), "partials");
+        ResultSet own = coalescer.execute("coalescing-partial", 0L, () -> ResultSet.newBuild().setTotalHits(3));
+        partialLeader.join();
+        check("Waiter of a partial result searches again", 3, own.getTotalHits());
+        check("Waiter of a partial result is counted", partials + 1, stat(coalescer.getStats(), "partials"));
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        // Before any path is read.
+        File home = Files.createTempDirectory("quary").toFile();
+        new File(home, "data/index").mkdirs();
+        System.setProperty("quary.home", home.getAbsolutePath());
+
+        IndexDefinition def = XMLBuilder.parseDefinitionFile(SearchTesting.class.getResourceAsStream("/resources/definitions/TestDefinition.xml"));
+        Node node = Node.newBuild().setIpAddress("127.0.0.1").setNodeID("search" + System.nanoTime());
+        NodeImplementation impl = new NodeImplementation();
+
+        index(impl, def, node, 0, DOCUMENTS);
+        testFilters(impl, def, node);
+        testPaging(impl, def, node);
+        testCaches(impl, def, node);
+        testLeases(impl, def, node);
+        testCoalescing();
+
+        impl.cleanIndex(def.getDefinitionID(), node);
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
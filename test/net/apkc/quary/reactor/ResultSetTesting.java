@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.quary.reactor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import net.apkc.quary.filters.DateRangeFilter;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Class for testing the binary form of the searches and their results.
+ *
+ * <p>
+ * Writes and reads back ResultSet, Hit, Aggregations and Parameters, the way
+ * Hadoop RPC does, including element values longer than the 64KB that
+ * writeUTF() allows, and checks they come back the same. It also checks the
+ * merging of the result sets of several shards, the cursors and the
+ * normalized keys of the caches. It exits with an error when a check fails,
+ * so it can be used as a regression test.
+ * Usage: ResultSetTesting
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ */
+public class ResultSetTesting
+{
+
+    private static int failures = 0;
+
+    static byte[] serialize(Writable w) throws IOException
+    {
+        DataOutputBuffer out = new DataOutputBuffer();
+        w.write(out);
+
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    static <T extends Writable> T deserialize(byte[] bytes, T w) throws IOException
+    {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        w.readFields(in);
+        if (in.available() > 0) {
+            throw new IOException(in.available() + " bytes left after reading.");
+        }
+
+        return w;
+    }
+
+    static String xml(ResultSet results) throws IOException
+    {
+        StringBuilder out = new StringBuilder();
+        results.writeXML(out);
+
+        return out.toString();
+    }
+
+    static String json(ResultSet results) throws IOException
+    {
+        StringBuilder out = new StringBuilder();
+        results.writeJSON(out);
+
+        return out.toString();
+    }
+
+    static void check(String name, boolean passed)
+    {
+        System.out.println((passed ? "OK: " : "FAILED: ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    static <T> void check(String name, T expected, T actual)
+    {
+        if (expected == null ? actual == null : expected.equals(actual)) {
+            System.out.println("OK: " + name);
+        }
+        else {
+            System.out.println("FAILED: " + name + ". Expected " + expected + ", got " + actual + ".");
+            failures++;
+        }
+    }
+
+    static String repeat(String s, int times)
+    {
+        StringBuilder b = new StringBuilder(s.length() * times);
+        for (int k = 0; k < times; k++) {
+            b.append(s);
+        }
+
+        return b.toString();
+    }
+
+    static ResultSet.Hit hit(int doc, float score, String shard)
+    {
+        return new ResultSet.Hit(doc, score, shard).setElement("title", "Doc " + shard + "/" + doc).setElement("url", "www.apkc.net/" + shard + "/" + doc);
+    }
+
+    static void testWritable() throws IOException
+    {
+        // Longer than 64KB in UTF-8, with characters of 1, 2, 3 and 4 bytes.
+        String content = repeat("añ€😀", 20000);
+        ResultSet results = ResultSet.newBuild()
+                .setTotalHits(1234)
+                .setShardID("node-a")
+                .addHit(new ResultSet.Hit(7, 1.5f, "node-a")
+                        .setElement("title", "Título")
+                        .setElement("content", content)
+                        .setElement("empty", null)
+                        .setPassages(new String[]{"first <b>passage</b>", repeat("é", 40000)}))
+                .addHit(hit(9, 0.5f, "node-a"))
+                .setAggregations(Aggregations.newBuild()
+                        .addTermCount("filetype", "text/html", 3)
+                        .addTermCount("lang", "en", 2)
+                        .addHistogramCount(3600000L, 5)
+                        .setHistogramUnit(3600000))
+                .setLeaseID("lease-1")
+                .setSearchTime(12.5d)
+                .setErrorMessage("Something failed.")
+                .setPartial(true);
+
+        byte[] bytes = serialize(results);
+        ResultSet read = deserialize(bytes, ResultSet.newBuild());
+        check("ResultSet round trip keeps the bytes", Arrays.equals(bytes, serialize(read)));
+        check("ResultSet round trip keeps the XML", xml(results), xml(read));
+        check("ResultSet round trip keeps the JSON", json(results), json(read));
+        check("Element longer than 64KB", content, read.getHits().get(0).getElement("content"));
+        check("NULL element is empty", "", read.getHits().get(0).getElement("empty"));
+        check("Total hits", 1234, read.getTotalHits());
+        check("Lease", "lease-1", read.getLeaseID());
+        check("Partial", true, read.isPartial());
+        check("Aggregations", (Integer) 5, read.getAggregations().getHistogram().get(3600000L));
+
+        ResultSet empty = deserialize(serialize(ResultSet.newBuild()), ResultSet.newBuild());
+        check("Empty ResultSet round trip", xml(ResultSet.newBuild()), xml(empty));
+        check("Empty ResultSet has no cursor", null, empty.getCursor());
+    }
+
+    static void testMerge()
+    {
+        ResultSet a = ResultSet.newBuild().setTotalHits(10).setShardID("a")
+                .addHit(hit(1, 3.0f, "a")).addHit(hit(2, 2.0f, "a")).addHit(hit(3, 1.0f, "a"))
+                .setAggregations(Aggregations.newBuild().addTermCount("filetype", "text/html", 4));
+        ResultSet b = ResultSet.newBuild().setTotalHits(5).setShardID("b")
+                .addHit(hit(1, 2.0f, "b")).addHit(hit(0, 2.0f, "b")).addHit(hit(5, 0.5f, "b"))
+                .setAggregations(Aggregations.newBuild().addTermCount("filetype", "text/html", 1).addTermCount("filetype", "text/plain", 2));
+
+        ResultSet merged = ResultSet.merge(Arrays.asList(b, a), 0, 10);
+        StringBuilder order = new StringBuilder();
+        for (ResultSet.Hit h : merged.getHits()) {
+            order.append(h.getShardID()).append(h.getDoc()).append(' ');
+        }
+        check("Merge orders by score, shard and document", "a1 a2 b0 b1 a3 b5 ", order.toString());
+        check("Merge adds the total hits", 15, merged.getTotalHits());
+        check("Merge adds the aggregations", (Integer) 5, merged.getAggregations().getTermCounts("filetype").get("text/html"));
+        check("Merge isn't partial", false, merged.isPartial());
+
+        ResultSet page = ResultSet.merge(Arrays.asList(a, b), 2, 3);
+        check("Merge page", 3, page.getHits().size());
+        check("Merge page starts at the offset", "b0", page.getHits().get(0).getShardID() + page.getHits().get(0).getDoc());
+        check("Merge past the end is empty", 0, ResultSet.merge(Arrays.asList(a, b), 10, 3).getHits().size());
+
+        List<ResultSet> missing = Arrays.asList(a, null, ResultSet.newBuild().setErrorMessage("Shard c failed.").setPartial(true));
+        ResultSet partial = ResultSet.merge(missing, 0, 10);
+        check("Merge with a missing shard is partial", true, partial.isPartial());
+        check("Merge keeps the errors", "Shard c failed.", partial.getErrorMessage());
+    }
+
+    static void testCursor() throws Exception
+    {
+        ResultSet results = ResultSet.newBuild().addHit(hit(1, 3.0f, "a")).addHit(hit(42, 1.25f, "b"));
+        check("Cursor of the last hit", "1.25:42:b", results.getCursor());
+
+        // Node IDs are UUIDs, without colons.
+        Parameters params = Parameters.newBuild().setQueryString("apple").setSearchAfter(Parameters.makeCursor(new ScoreDoc(42, 1.25f), "5f2b8c0e"));
+        check("Cursor score", 1.25f, params.getSearchAfter().score);
+        check("Cursor document", 42, params.getSearchAfter().doc);
+        check("Cursor shard", "5f2b8c0e", params.getAfterShard());
+        check("Cursor without shard", 42, Parameters.newBuild().setQueryString("apple").setSearchAfter(ResultSet.newBuild().addHit(hit(42, 1.25f, "")).getCursor()).getSearchAfter().doc);
+        check("Malformed cursor is ignored", null, Parameters.newBuild().setQueryString("apple").setSearchAfter("x:y").getSearchAfter());
+    }
+
+    static void testParameters() throws Exception
+    {
+        Parameters params = Parameters.newBuild()
+                .setQueryString("  apple   banana ")
+                .setStartOffset("0")
+                .setEndOffset("20")
+                .setUseTimeRange("1")
+                .setDateRangeUnit("2")
+                .setDateRangeTimeFactor("3")
+                .setFileRangeUnit("text/html")
+                .setLanguageRangeUnit("en")
+                .setUseDeduplication("1")
+                .setMaxHammingDistance("4")
+                .setReturnFields("title,url")
+                .setFacets("filetype,lang")
+                .setHistogramUnit("3600000")
+                .setShardID("node-a")
+                .setSearchAfter("1.5:7:node-a")
+                .setLeaseID("lease-1")
+                .setPrefetch("1")
+                .setTimeout("250")
+                .setFilters();
+
+        long now = System.currentTimeMillis();
+        byte[] bytes = serialize(params);
+        Parameters read = deserialize(bytes, Parameters.newBuild());
+        check("Parameters round trip keeps the bytes", Arrays.equals(bytes, serialize(read)));
+        check("Parameters round trip keeps the key", params.getNormalizedKey(now), read.getNormalizedKey(now));
+        check("Filters round trip", 3, read.getFilters().getFilters().size());
+        check("Lease", "lease-1", read.getLeaseID());
+        check("Prefetch", true, read.getPrefetch());
+        check("Timeout", 250L, read.getTimeout());
+        check("Hamming distance", 4, read.getMaxHammingDistance());
+        check("Duplicate keeps the key", params.getNormalizedKey(now), params.duplicate().getNormalizedKey(now));
+
+        // The same search written differently has the same key, a different one doesn't.
+        Parameters a = Parameters.newBuild().setQueryString("apple  banana").setFileRangeUnit("text/html").setLanguageRangeUnit("en").setFilters();
+        Parameters b = Parameters.newBuild().setQueryString(" apple banana ").setFileRangeUnit("text/html").setLanguageRangeUnit("en").setFilters();
+        Parameters c = Parameters.newBuild().setQueryString("apple banana").setFileRangeUnit("text/plain").setLanguageRangeUnit("en").setFilters();
+        check("Key collapses white space", a.getNormalizedKey(now), b.getNormalizedKey(now));
+        check("Key depends on the filters", !a.getNormalizedKey(now).equals(c.getNormalizedKey(now)));
+        check("Key depends on the shard", !a.getNormalizedKey(now).equals(a.duplicate().setShardID("x").getNormalizedKey(now)));
+
+        // A date range yields the same key while the node filters on the same rounded lower bound, months and years
+        // on the calendar. Checked hour by hour over a year.
+        for (int unit = DateRangeFilter.DAY_RANGE; unit <= DateRangeFilter.YEAR_RANGE; unit++) {
+            Parameters d = Parameters.newBuild().setQueryString("apple").setUseTimeRange("1").setDateRangeUnit(String.valueOf(unit)).setDateRangeTimeFactor("1").setFilters();
+            boolean matches = true;
+            long start = 1767225600000L; // 2026-01-01 00:00 GMT
+            for (long t = start; t < start + 366L * 86400000L; t += 3600000L) {
+                boolean sameBound = DateRangeFilter.getLowerTimestamp(unit, 1, t) == DateRangeFilter.getLowerTimestamp(unit, 1, t + 3600000L);
+                boolean sameKey = d.getNormalizedKey(t).equals(d.getNormalizedKey(t + 3600000L));
+                matches &= sameBound == sameKey;
+            }
+            check("Date range key follows the filter bound, unit " + unit, matches);
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        testWritable();
+        testMerge();
+        testCursor();
+        testParameters();
+
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " checks.");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -79,7 +79,6 @@ public class ReactorTesting
                 .append("<root definitionID=\"000\" id=\"").append(k + 1).append("\">")
                 .append("<anchor>Test</anchor>")
                 .append("<boost>1.0</boost>")
-                .append("<boostwithgravity>1.0</boostwithgravity>")
                 .append("<content>QW4gSW5wdXRTdHJlYW1SZWFkZXIgaXMgYSBicmlkZ2UgZnJvbSBieXRlIHN0cmVhbXMgdG8gY2hhcmFjdGVyIHN0cmVhbXM6IEl0IHJlYWRzIGJ5dGVzIGFuZCBkZWNvZGVzIHRoZW0gaW50byBjaGFyYWN0ZXJzIHVzaW5nIGEgc3BlY2lmaWVkIGNoYXJzZXQuIFRoZSBjaGFyc2V0IHRoYXQgaXQgdXNlcyBtYXkgYmUgc3BlY2lmaWVkIGJ5IG5hbWUgb3IgbWF5IGJlIGdpdmVuIGV4cGxpY2l0bHksIG9yIHRoZSBwbGF0Zm9ybSdzIGRlZmF1bHQgY2hhcnNldCBtYXkgYmUgYWNjZXB0ZWQuIEVhY2ggaW52b2NhdGlvbiBvZiBvbmUgb2YgYW4gSW5wdXRTdHJlYW1SZWFkZXIncyByZWFkKCkgbWV0aG9kcyBtYXkgY2F1c2Ugb25lIG9yIG1vcmUgYnl0ZXMgdG8gYmUgcmVhZCBmcm9tIHRoZSB1bmRlcmx5aW5nIGJ5dGUtaW5wdXQgc3RyZWFtLiBUbyBlbmFibGUgdGhlIGVmZmljaWVudCBjb252ZXJzaW9uIG9mIGJ5dGVzIHRvIGNoYXJhY3RlcnMsIG1vcmUgYnl0ZXMgbWF5IGJlIHJlYWQgYWhlYWQgZnJvbSB0aGUgdW5kZXJseWluZyBzdHJlYW0gdGhhbiBhcmUgbmVjZXNzYXJ5IHRvIHNhdGlzZnkgdGhlIGN1cnJlbnQgcmVhZCBvcGVyYXRpb24u</content>")
                 .append("<contentraw>QW4gSW5wdXRTdHJlYW1SZWFkZXIgaXMgYSBicmlkZ2UgZnJvbSBieXRlIHN0cmVhbXMgdG8gY2hhcmFjdGVyIHN0cmVhbXM6IEl0IHJlYWRzIGJ5dGVzIGFuZCBkZWNvZGVzIHRoZW0gaW50byBjaGFyYWN0ZXJzIHVzaW5nIGEgc3BlY2lmaWVkIGNoYXJzZXQuIFRoZSBjaGFyc2V0IHRoYXQgaXQgdXNlcyBtYXkgYmUgc3BlY2lmaWVkIGJ5IG5hbWUgb3IgbWF5IGJlIGdpdmVuIGV4cGxpY2l0bHksIG9yIHRoZSBwbGF0Zm9ybSdzIGRlZmF1bHQgY2hhcnNldCBtYXkgYmUgYWNjZXB0ZWQuIEVhY2ggaW52b2NhdGlvbiBvZiBvbmUgb2YgYW4gSW5wdXRTdHJlYW1SZWFkZXIncyByZWFkKCkgbWV0aG9kcyBtYXkgY2F1c2Ugb25lIG9yIG1vcmUgYnl0ZXMgdG8gYmUgcmVhZCBmcm9tIHRoZSB1bmRlcmx5aW5nIGJ5dGUtaW5wdXQgc3RyZWFtLiBUbyBlbmFibGUgdGhlIGVmZmljaWVudCBjb252ZXJzaW9uIG9mIGJ5dGVzIHRvIGNoYXJhY3RlcnMsIG1vcmUgYnl0ZXMgbWF5IGJlIHJlYWQgYWhlYWQgZnJvbSB0aGUgdW5kZXJseWluZyBzdHJlYW0gdGhhbiBhcmUgbmVjZXNzYXJ5IHRvIHNhdGlzZnkgdGhlIGN1cnJlbnQgcmVhZCBvcGVyYXRpb24u</contentraw>")
                 .append("<contentfilter>QW4gSW5wdXRTdHJlYW1SZWFkZXIgaXMgYSBicmlkZ2UgZnJvbSBieXRlIHN0cmVhbXMgdG8gY2hhcmFjdGVyIHN0cmVhbXM6IEl0IHJlYWRzIGJ5dGVzIGFuZCBkZWNvZGVzIHRoZW0gaW50byBjaGFyYWN0ZXJzIHVzaW5nIGEgc3BlY2lmaWVkIGNoYXJzZXQuIFRoZSBjaGFyc2V0IHRoYXQgaXQgdXNlcyBtYXkgYmUgc3BlY2lmaWVkIGJ5IG5hbWUgb3IgbWF5IGJlIGdpdmVuIGV4cGxpY2l0bHksIG9yIHRoZSBwbGF0Zm9ybSdzIGRlZmF1bHQgY2hhcnNldCBtYXkgYmUgYWNjZXB0ZWQuIEVhY2ggaW52b2NhdGlvbiBvZiBvbmUgb2YgYW4gSW5wdXRTdHJlYW1SZWFkZXIncyByZWFkKCkgbWV0aG9kcyBtYXkgY2F1c2Ugb25lIG9yIG1vcmUgYnl0ZXMgdG8gYmUgcmVhZCBmcm9tIHRoZSB1bmRlcmx5aW5nIGJ5dGUtaW5wdXQgc3RyZWFtLiBUbyBlbmFibGUgdGhlIGVmZmljaWVudCBjb252ZXJzaW9uIG9mIGJ5dGVzIHRvIGNoYXJhY3RlcnMsIG1vcmUgYnl0ZXMgbWF5IGJlIHJlYWQgYWhlYWQgZnJvbSB0aGUgdW5kZXJseWluZyBzdHJlYW0gdGhhbiBhcmUgbmVjZXNzYXJ5IHRvIHNhdGlzZnkgdGhlIGN1cnJlbnQgcmVhZCBvcGVyYXRpb24u</contentfilter>")
@@ -88,15 +87,8 @@ public class ReactorTesting
                 .append("<domain>apkc.net</domain>")
                 .append("<fetchtime>").append(System.currentTimeMillis()).append("</fetchtime>")
                 .append("<filetype>text/plain</filetype>")
-                .append("<gravity>10.0</gravity>")
                 .append("<host>www.apkc.net</host>")
                 .append("<indextime>").append(System.currentTimeMillis()).append("</indextime>")
-                .append("<itsecond></itsecond>")
-                .append("<itminute></itminute>")
-                .append("<ithour></ithour>")
-                .append("<itday></itday>")
-                .append("<itmonth></itmonth>")
-                .append("<ityear></ityear>")
                 .append("<lang>en</lang>")
                 .append("<lastmodified>").append(System.currentTimeMillis()).append("</lastmodified>")
                 .append("<segment>123456</segment>")